@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.bobrinkman.healthymiamiwatchface.core.StepBatchCodec;
+import com.bobrinkman.healthymiamiwatchface.core.StepBlockStore;
+import com.bobrinkman.healthymiamiwatchface.core.StepSyncReceiver;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.Wearable;
+import com.google.android.gms.wearable.WearableListenerService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives the step batches the watch face puts in the Data Layer, adds them to the
+ * phone's step store, and deletes them so they aren't delivered again.
+ *
+ * A batch is only deleted once its steps and its key are flushed to the store's log, so if
+ * the process dies first, the batch is still there to be added again. StepSyncReceiver
+ * knows each batch by the node it came from and its id, so a batch that is delivered
+ * again, in any order, is skipped instead of being counted twice. Batches that were left
+ * behind, because we died or couldn't reach the Data Layer, are picked up by scanning the
+ * Data Layer at the first chance after starting or after a failure.
+ *
+ * onDataChanged() runs on a background thread, so the file I/O and the blocking calls to
+ * the Data Layer are fine here.
+ */
+public class StepSyncListenerService extends WearableListenerService {
+    private static final String TAG = "StepSyncListener";
+
+    private static final String STEP_STORE_FILE = "step_blocks.bin";
+    private static final long CONNECT_TIMEOUT_S = 30;
+    private static final long DATA_API_TIMEOUT_S = 30;
+
+    /** A batch copied out of its DataItem, which is only valid until its buffer is released. */
+    private static final class Batch {
+        final Uri mUri;
+        final byte[] mData;
+
+        Batch(Uri uri, byte[] data) {
+            mUri = uri;
+            mData = data;
+        }
+    }
+
+    //All the steps we have ever been sent, one compressed block per day
+    private final StepBlockStore mStepStore = new StepBlockStore();
+    private final StepSyncReceiver mReceiver = new StepSyncReceiver(mStepStore);
+    private GoogleApiClient mClient;
+    //True until we have looked through the Data Layer for batches left over from before we
+    // started, or from a failed delete
+    private boolean mScanNeeded = true;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        try {
+            mStepStore.openLog(new File(getFilesDir(), STEP_STORE_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open step store, keeping it in memory only", e);
+        }
+        mReceiver.prune(System.currentTimeMillis());
+        mClient = new GoogleApiClient.Builder(this)
+                .addApi(Wearable.API)
+                .build();
+    }
+
+    @Override
+    public void onDestroy() {
+        mStepStore.closeLog();
+        mClient.disconnect();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onDataChanged(DataEventBuffer dataEvents) {
+        ArrayList<Batch> batches = new ArrayList<Batch>();
+        for (DataEvent event : dataEvents) {
+            if (event.getType() == DataEvent.TYPE_CHANGED) {
+                addBatch(batches, event.getDataItem());
+            }
+        }
+        boolean connected = mClient.isConnected()
+                || mClient.blockingConnect(CONNECT_TIMEOUT_S, TimeUnit.SECONDS).isSuccess();
+        if (connected && mScanNeeded) {
+            DataItemBuffer items = Wearable.DataApi.getDataItems(mClient)
+                    .await(DATA_API_TIMEOUT_S, TimeUnit.SECONDS);
+            try {
+                if (items.getStatus().isSuccess()) {
+                    //Anything also in dataEvents is skipped by its key the second time
+                    for (DataItem item : items) {
+                        addBatch(batches, item);
+                    }
+                    mScanNeeded = false;
+                }
+            } finally {
+                items.release();
+            }
+        }
+        long nowMs = System.currentTimeMillis();
+        for (Batch batch : batches) {
+            //The host is the node that sent it
+            String source = batch.mUri.getHost();
+            try {
+                mReceiver.receive(source != null ? source : "", batch.mData,
+                        batch.mData.length, nowMs);
+            } catch (IOException e) {
+                //Can't ever be read, so delete it anyway
+                Log.e(TAG, "Dropping bad step batch " + batch.mUri, e);
+            }
+        }
+        if (!mStepStore.flushLog()) {
+            //Keep the batches, so they are added again once the store can be saved
+            Log.w(TAG, "Could not save step store, keeping " + batches.size() + " batches");
+            return;
+        }
+        if (!connected) {
+            Log.w(TAG, "Could not connect to delete " + batches.size() + " step batches");
+            mScanNeeded = true;
+            return;
+        }
+        for (Batch batch : batches) {
+            DataApi.DeleteDataItemsResult result = Wearable.DataApi
+                    .deleteDataItems(mClient, batch.mUri)
+                    .await(DATA_API_TIMEOUT_S, TimeUnit.SECONDS);
+            if (!result.getStatus().isSuccess()) {
+                mScanNeeded = true;
+            }
+        }
+    }
+
+    /** Adds item to batches if it is a step batch. */
+    private static void addBatch(ArrayList<Batch> batches, DataItem item) {
+        Uri uri = item.getUri();
+        String path = uri.getPath();
+        if (path == null || !path.startsWith(StepBatchCodec.DATA_PATH_PREFIX)) {
+            return;
+        }
+        byte[] data = item.getData();
+        batches.add(new Batch(uri, data != null ? data : new byte[0]));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per step counter event of keeping ActivityMetrics up to date, replaying bursts of
+ * walking separated by idle stretches of up to a couple of hours, so the windows both slide
+ * and empty out. Run with the gc profiler (the default for the jmh task) to see the
+ * allocation rate, which should be zero.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ActivityMetricsBenchmark {
+    private static final int STREAM_LENGTH = 1 << 14;
+
+    //Time since the previous event, and steps since it
+    private final long[] mGapsMs = new long[STREAM_LENGTH];
+    private final int[] mSteps = new int[STREAM_LENGTH];
+    private final ActivityMetrics mMetrics = new ActivityMetrics();
+    private long mTimeMs = 1427846400000L;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        boolean walking = true;
+        for(int i=0;i<STREAM_LENGTH;i++){
+            if(random.nextInt(50) == 0) {
+                walking = !walking;
+            }
+            if(walking) {
+                //The counter reports about every step or two
+                mGapsMs[i] = 400 + random.nextInt(800);
+                mSteps[i] = 1 + random.nextInt(2);
+            } else {
+                //A few stray steps now and then, sometimes after hours of nothing
+                mGapsMs[i] = random.nextInt(10) == 0 ? random.nextInt(2 * 3600 * 1000)
+                        : random.nextInt(5 * 60 * 1000);
+                mSteps[i] = 1 + random.nextInt(5);
+            }
+        }
+    }
+
+    /** One sensor event, as drainStepEvents() feeds it. */
+    @Benchmark
+    public int event() {
+        int i = mNext++ & (STREAM_LENGTH-1);
+        mTimeMs += mGapsMs[i];
+        mMetrics.add(mTimeMs, mSteps[i]);
+        return mNext;
+    }
+
+    /** One sensor event, then everything a frame reads. */
+    @Benchmark
+    public int eventAndRead() {
+        int i = mNext++ & (STREAM_LENGTH-1);
+        mTimeMs += mGapsMs[i];
+        ActivityMetrics metrics = mMetrics;
+        metrics.add(mTimeMs, mSteps[i]);
+        metrics.advanceTo(mTimeMs);
+        return metrics.getCadence() + metrics.getShortWindowSteps()
+                + metrics.getLongWindowSteps() + metrics.getActiveMinutesToday();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getting the time of day for a frame, with frames 50 ms apart as in interactive
+ * mode. FaceClock is compared with setting a Calendar every frame, which is about what
+ * Time.setToNow() used to cost us.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FaceClockBenchmark {
+    private static final long FRAME_MS = 50;
+    //A zone with daylight saving, so the offset lookups aren't trivial
+    private static final TimeZone ZONE = TimeZone.getTimeZone("America/New_York");
+
+    private final FaceClock mClock = new FaceClock(ZONE);
+    private final Calendar mCalendar = new GregorianCalendar(ZONE);
+    private long mNowMs;
+
+    @Setup
+    public void setUp() {
+        mNowMs = 1430734110000L;
+    }
+
+    @Benchmark
+    public int faceClock() {
+        mNowMs += FRAME_MS;
+        FaceClock clock = mClock;
+        clock.update(mNowMs);
+        return clock.getHour() + clock.getMinute() + clock.getSecond() + clock.getMillis();
+    }
+
+    @Benchmark
+    public int calendar() {
+        mNowMs += FRAME_MS;
+        Calendar calendar = mCalendar;
+        calendar.setTimeInMillis(mNowMs);
+        return calendar.get(Calendar.HOUR_OF_DAY) + calendar.get(Calendar.MINUTE)
+                + calendar.get(Calendar.SECOND) + calendar.get(Calendar.MILLISECOND);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the layout, for the two screen shapes we design for: making a new one, which
+ * happens when the bounds, chin or draw mode change, and the lookups onDraw() does every
+ * frame. Run with the gc profiler (the default for the jmh task) to see the allocation
+ * rate, which should be zero for perFrame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LayoutBenchmark {
+    @Param({"ROUND_320", "SQUARE_280"})
+    public String geometry;
+
+    //Text sizes at 320px, roughly what Open Sans 300 gives us: each digit adds its advance
+    private static final int[] DIGIT_ADVANCES = {37, 18, 13, 6};
+    private static final int[] DIGIT_HEIGHTS = {64, 32, 16, 8};
+
+    private static final FaceLayout.TextMeasurer MEASURER = new FaceLayout.TextMeasurer() {
+        @Override
+        public int getDigitsWidth(int font, int count) {
+            return count * DIGIT_ADVANCES[font] - 1;
+        }
+
+        @Override
+        public int getDigitsHeight(int font) {
+            return DIGIT_HEIGHTS[font];
+        }
+    };
+
+    private FaceLayout mLayout;
+    private int mWidth;
+    private int mHeight;
+    private boolean mIsRound;
+    private int mTick;
+
+    @Setup
+    public void setUp() {
+        if("ROUND_320".equals(geometry)) {
+            mWidth = 320;
+            mHeight = 320;
+            mIsRound = true;
+        } else {
+            mWidth = 280;
+            mHeight = 280;
+            mIsRound = false;
+        }
+        mLayout = new FaceLayout(mWidth, mHeight, mIsRound, 0, 0, MEASURER);
+    }
+
+    /** A new layout, as after a bounds or mode change. */
+    @Benchmark
+    public FaceLayout rebuild() {
+        return new FaceLayout(mWidth, mHeight + (mTick++ & 1), mIsRound, 0, 0, MEASURER);
+    }
+
+    /** What onDraw() does every frame: check the layout still fits, then look things up. */
+    @Benchmark
+    public float perFrame() {
+        int tick = mTick++;
+        FaceLayout layout = mLayout;
+        if(!layout.matches(mWidth, mHeight, mIsRound, 0, 0)) {
+            throw new IllegalStateException();
+        }
+        int hourDigits = 1 + (tick & 1);
+        int stepDigits = 1 + tick % 5;
+        return layout.getHourBaseline() + layout.getDigitsLeft(hourDigits)
+                + layout.getPillRight(stepDigits) + layout.getShoeLeft(stepDigits);
+    }
+}
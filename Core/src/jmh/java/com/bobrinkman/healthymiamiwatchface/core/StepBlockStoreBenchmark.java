@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the phone's step store with years of synthetic history: a waking day of 16
+ * hours with a few walks and scattered steps in between. Queries are for random ranges
+ * that start and end mid-day, as a local day, week or month does. load is reading the
+ * whole store back, as on app start; ingestMinute is one minute from a sync batch. The
+ * size on disk is printed after setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StepBlockStoreBenchmark {
+    private static final int MINUTES_PER_DAY = StepBlockStore.MINUTES_PER_DAY;
+    private static final int QUERIES = 1024;
+    //Local midnight in a UTC-5 zone
+    private static final int LOCAL_OFFSET_MINUTES = 5 * 60;
+
+    @Param({"1", "3", "5"})
+    public int years;
+
+    private StepBlockStore mStore;
+    private byte[] mSaved;
+    private final long[] mQueryStarts = new long[QUERIES];
+    private int mNext;
+    private long mFirstDay;
+    private long mIngestMinute;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        mStore = new StepBlockStore();
+        mFirstDay = 1430734110000L / 60000L / MINUTES_PER_DAY - 365L * years;
+        int days = 365 * years;
+        for(int d=0;d<days;d++){
+            long dayStart = (mFirstDay + d) * MINUTES_PER_DAY + LOCAL_OFFSET_MINUTES;
+            for(int m=7*60;m<23*60;m++){
+                boolean walk = (m / 20) % 9 == d % 9 || (m / 15) % 23 == 0;
+                if(walk) {
+                    mStore.add(dayStart + m, 60 + random.nextInt(60));
+                } else if(random.nextInt(6) == 0) {
+                    mStore.add(dayStart + m, 1 + random.nextInt(20));
+                }
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        mStore.writeTo(out);
+        out.close();
+        mSaved = bytes.toByteArray();
+        System.out.printf("%n%d days in %d bytes, %.0f bytes per day%n", mStore.getDayCount(),
+                mSaved.length, mSaved.length / (double)mStore.getDayCount());
+
+        for(int i=0;i<QUERIES;i++){
+            mQueryStarts[i] = (mFirstDay + random.nextInt(days - 31)) * MINUTES_PER_DAY
+                    + LOCAL_OFFSET_MINUTES;
+        }
+        mIngestMinute = (mFirstDay + days) * MINUTES_PER_DAY;
+    }
+
+    private long nextQueryStart() {
+        mNext = (mNext + 1) & (QUERIES - 1);
+        return mQueryStarts[mNext];
+    }
+
+    @Benchmark
+    public long sumLocalDay() {
+        long start = nextQueryStart();
+        return mStore.sum(start, start + MINUTES_PER_DAY);
+    }
+
+    @Benchmark
+    public long sumLocalWeek() {
+        long start = nextQueryStart();
+        return mStore.sum(start, start + 7 * MINUTES_PER_DAY);
+    }
+
+    @Benchmark
+    public long sumLocalMonth() {
+        long start = nextQueryStart();
+        return mStore.sum(start, start + 30 * MINUTES_PER_DAY);
+    }
+
+    @Benchmark
+    public long sumEverything() {
+        return mStore.sumDays(mFirstDay, mFirstDay + 365L * years);
+    }
+
+    @Benchmark
+    public long ingestMinute() {
+        mIngestMinute++;
+        mStore.add(mIngestMinute, 90);
+        return mIngestMinute;
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        StepBlockStore store = new StepBlockStore();
+        store.readFrom(new DataInputStream(new ByteArrayInputStream(mSaved)));
+        return store.getDayCount();
+    }
+}
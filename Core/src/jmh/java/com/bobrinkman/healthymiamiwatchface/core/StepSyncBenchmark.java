@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the watch to phone step sync, run over LoopbackStepSyncTransport so no phone is
+ * needed. addMinute is the sensor thread's share for one minute of walking, including its
+ * part of the batches it triggers. encodeHour and decodeHour are one batch of 60 minutes.
+ * The payload size per minute is printed at the end of each run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StepSyncBenchmark {
+    private static final int BATCH_MINUTES = 60;
+
+    private long mReceived;
+    private final StepBatchCodec.Sink mSink = new StepBatchCodec.Sink() {
+        @Override
+        public void onBucket(long minute, int steps) {
+            mReceived += steps;
+        }
+    };
+    private final LoopbackStepSyncTransport mTransport = new LoopbackStepSyncTransport(mSink);
+    private final StepSyncBatcher mBatcher =
+            new StepSyncBatcher(mTransport, BATCH_MINUTES, 15 * 60 * 1000L);
+
+    private final long[] mMinutes = new long[BATCH_MINUTES];
+    private final int[] mSteps = new int[BATCH_MINUTES];
+    private final byte[] mPayload = new byte[StepBatchCodec.maxEncodedSize(BATCH_MINUTES)];
+    private int mPayloadLength;
+    private long mMinute;
+
+    @Setup
+    public void setUp() {
+        //A realistic hour: mostly idle minutes with no bucket at all, some walking
+        Random random = new Random(42);
+        long minute = 1430734110000L / 60000L;
+        for(int i=0;i<BATCH_MINUTES;i++){
+            minute += 1 + random.nextInt(3);
+            mMinutes[i] = minute;
+            mSteps[i] = 20 + random.nextInt(100);
+        }
+        mPayloadLength = StepBatchCodec.encode(1, mMinutes, mSteps, BATCH_MINUTES, mPayload);
+        mMinute = minute;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if(mTransport.getBatches() > 0) {
+            System.out.printf("%n%.2f bytes per minute of steps%n",
+                    mTransport.getBytes() / (double)mBatcher.getBucketsSent());
+        }
+    }
+
+    @Benchmark
+    public long addMinute() {
+        mMinute++;
+        mBatcher.add(mMinute, 90, mMinute * 60000L);
+        return mReceived;
+    }
+
+    @Benchmark
+    public int encodeHour() {
+        return StepBatchCodec.encode(mMinute, mMinutes, mSteps, BATCH_MINUTES, mPayload);
+    }
+
+    @Benchmark
+    public long decodeHour() throws IOException {
+        return StepBatchCodec.decode(mPayload, mPayloadLength, mSink);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the step bookkeeping, replaying a recorded-looking stream of step counter events:
+ * bursts of walking separated by idle stretches, a day rollover every few thousand events,
+ * and the occasional reboot that resets the counter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class StepTrackerBenchmark {
+    private static final int STREAM_LENGTH = 1 << 14;
+    private static final int EVENTS_PER_DAY = 3000;
+    private static final int EVENTS_PER_REBOOT = 11000;
+
+    private final int[] mCounts = new int[STREAM_LENGTH];
+    private final int[] mDays = new int[STREAM_LENGTH];
+    private final StepTracker mTracker = new StepTracker();
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        int count = 0;
+        int day = 20150401;
+        boolean walking = false;
+        for(int i=0;i<STREAM_LENGTH;i++){
+            if(random.nextInt(50) == 0) {
+                walking = !walking;
+            }
+            //Counter events arrive about once a step while walking, and rarely otherwise
+            count += walking ? 1 + random.nextInt(3) : random.nextInt(2);
+            if(i % EVENTS_PER_REBOOT == EVENTS_PER_REBOOT-1) {
+                count = random.nextInt(10);
+            }
+            if(i % EVENTS_PER_DAY == EVENTS_PER_DAY-1) {
+                day++;
+            }
+            mCounts[i] = count;
+            mDays[i] = day;
+        }
+        mTracker.set(new StepState(mDays[0], mCounts[0], mCounts[0]));
+    }
+
+    /** One sensor event, plus the rollover check that the next frame would do. */
+    @Benchmark
+    @Group("uncontended")
+    public int sensorEvent() {
+        int i = mNext++ & (STREAM_LENGTH-1);
+        mTracker.onSensorCount(mCounts[i]);
+        mTracker.rollOverIfNewDay(mDays[i]);
+        return mTracker.getTodaySteps();
+    }
+
+    /** The sensor thread updating while the render thread reads, as on the watch. */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public boolean sensorThread() {
+        int i = mNext++ & (STREAM_LENGTH-1);
+        return mTracker.onSensorCount(mCounts[i]);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public int renderThread() {
+        return mTracker.getTodaySteps();
+    }
+}
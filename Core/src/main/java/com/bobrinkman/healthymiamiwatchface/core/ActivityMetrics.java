@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+/**
+ * Live activity numbers derived from step counter deltas: cadence, steps in the last 10 and
+ * 60 minutes, and active minutes today.
+ *
+ * Steps go into two rings of buckets, one per second for cadence and one per minute for the
+ * totals, and running sums over the windows are kept next to them. Adding steps touches one
+ * bucket of each and the sums, and moving time forward empties the buckets that fall out of
+ * the windows, so the cost per event is constant apart from clearing buckets for time that
+ * has passed, which never goes past the size of a ring. Nothing allocates after
+ * construction.
+ *
+ * Times are local milliseconds: milliseconds since the epoch plus the time zone offset, so
+ * that days start at local midnight. A minute counts as active once it has
+ * ACTIVE_MINUTE_STEPS steps, and only minutes of the current day count towards today. All
+ * methods are synchronized: steps come from the sensor thread and reads from the render
+ * thread.
+ */
+public final class ActivityMetrics {
+    public static final int CADENCE_WINDOW_SECONDS = 30;
+    public static final int SHORT_WINDOW_MINUTES = 10;
+    public static final int LONG_WINDOW_MINUTES = 60;
+    //About a brisk walk
+    public static final int ACTIVE_MINUTE_STEPS = 100;
+
+    private static final long MS_PER_SECOND = 1000;
+    private static final int SECONDS_PER_MINUTE = 60;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final int[] mSecondSteps = new int[CADENCE_WINDOW_SECONDS];
+    private final int[] mMinuteSteps = new int[LONG_WINDOW_MINUTES];
+    //Newest second and minute in the rings, or NONE if we haven't seen a time yet
+    private long mNewestSecond = NONE;
+    private long mNewestMinute = NONE;
+    private int mCadenceSteps;
+    private int mShortWindowSteps;
+    private int mLongWindowSteps;
+
+    private long mDay = NONE;
+    private int mActiveMinutesToday;
+
+    private long mEvents;
+    private long mLateSteps;
+
+    /**
+     * Adds steps taken at localMs. Steps a little older than the newest seen still count, as
+     * long as their minute is in the 60 minute window; older ones are dropped.
+     */
+    public synchronized void add(long localMs, int steps) {
+        if(steps <= 0) {
+            return;
+        }
+        long second = localMs / MS_PER_SECOND;
+        advance(second);
+        mEvents++;
+        if(mNewestSecond - second < CADENCE_WINDOW_SECONDS) {
+            mSecondSteps[(int)(second % CADENCE_WINDOW_SECONDS)] += steps;
+            mCadenceSteps += steps;
+        }
+        long minute = second / SECONDS_PER_MINUTE;
+        long minutesLate = mNewestMinute - minute;
+        if(minutesLate >= LONG_WINDOW_MINUTES) {
+            mLateSteps += steps;
+            return;
+        }
+        int slot = (int)(minute % LONG_WINDOW_MINUTES);
+        int before = mMinuteSteps[slot];
+        mMinuteSteps[slot] = before + steps;
+        mLongWindowSteps += steps;
+        if(minutesLate < SHORT_WINDOW_MINUTES) {
+            mShortWindowSteps += steps;
+        }
+        if(before < ACTIVE_MINUTE_STEPS && before + steps >= ACTIVE_MINUTE_STEPS
+                && minute / StepHistory.MINUTES_PER_DAY == mDay) {
+            mActiveMinutesToday++;
+        }
+    }
+
+    /** Moves the windows up to localMs, so steps that are too old stop counting. */
+    public synchronized void advanceTo(long localMs) {
+        advance(localMs / MS_PER_SECOND);
+    }
+
+    private void advance(long second) {
+        if(mNewestSecond == NONE) {
+            mNewestSecond = second;
+            mNewestMinute = second / SECONDS_PER_MINUTE;
+            mDay = mNewestMinute / StepHistory.MINUTES_PER_DAY;
+            return;
+        }
+        if(second <= mNewestSecond) {
+            return;
+        }
+        if(second - mNewestSecond >= CADENCE_WINDOW_SECONDS) {
+            for(int i=0;i<CADENCE_WINDOW_SECONDS;i++){
+                mSecondSteps[i] = 0;
+            }
+            mCadenceSteps = 0;
+        } else {
+            for(long s = mNewestSecond + 1; s <= second; s++) {
+                int slot = (int)(s % CADENCE_WINDOW_SECONDS);
+                mCadenceSteps -= mSecondSteps[slot];
+                mSecondSteps[slot] = 0;
+            }
+        }
+        mNewestSecond = second;
+
+        long minute = second / SECONDS_PER_MINUTE;
+        if(minute <= mNewestMinute) {
+            return;
+        }
+        if(minute - mNewestMinute >= LONG_WINDOW_MINUTES) {
+            for(int i=0;i<LONG_WINDOW_MINUTES;i++){
+                mMinuteSteps[i] = 0;
+            }
+            mShortWindowSteps = 0;
+            mLongWindowSteps = 0;
+        } else {
+            for(long m = mNewestMinute + 1; m <= minute; m++) {
+                //The minute leaving the short window is still in the ring, unless it was
+                // emptied earlier in this loop, in which case it holds 0
+                mShortWindowSteps -= mMinuteSteps[(int)((m - SHORT_WINDOW_MINUTES)
+                        % LONG_WINDOW_MINUTES)];
+                int slot = (int)(m % LONG_WINDOW_MINUTES);
+                mLongWindowSteps -= mMinuteSteps[slot];
+                mMinuteSteps[slot] = 0;
+            }
+        }
+        mNewestMinute = minute;
+        long day = minute / StepHistory.MINUTES_PER_DAY;
+        if(day != mDay) {
+            mDay = day;
+            mActiveMinutesToday = 0;
+        }
+    }
+
+    /**
+     * Sets today's active minutes from somewhere that saw more of the day than we did, e.g.
+     * stored step history after a restart. Ignored if it isn't about today, or is less than
+     * what we counted ourselves.
+     */
+    public synchronized void seedActiveMinutesToday(long localMs, int activeMinutes) {
+        advance(localMs / MS_PER_SECOND);
+        if(localMs / MS_PER_SECOND / SECONDS_PER_MINUTE / StepHistory.MINUTES_PER_DAY == mDay
+                && activeMinutes > mActiveMinutesToday) {
+            mActiveMinutesToday = activeMinutes;
+        }
+    }
+
+    /** Steps per minute over the last CADENCE_WINDOW_SECONDS. */
+    public synchronized int getCadence() {
+        return mCadenceSteps * SECONDS_PER_MINUTE / CADENCE_WINDOW_SECONDS;
+    }
+
+    /** Steps in the last SHORT_WINDOW_MINUTES, counting the current minute. */
+    public synchronized int getShortWindowSteps() {
+        return mShortWindowSteps;
+    }
+
+    /** Steps in the last LONG_WINDOW_MINUTES, counting the current minute. */
+    public synchronized int getLongWindowSteps() {
+        return mLongWindowSteps;
+    }
+
+    public synchronized int getActiveMinutesToday() {
+        return mActiveMinutesToday;
+    }
+
+    public synchronized long getEvents() {
+        return mEvents;
+    }
+
+    /** Steps that arrived after their minute had left the 60 minute window. */
+    public synchronized long getLateSteps() {
+        return mLateSteps;
+    }
+}
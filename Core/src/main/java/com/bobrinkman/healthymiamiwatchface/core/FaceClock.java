@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Local time of day for the frame being drawn, worked out from one timestamp per frame.
+ *
+ * Within a minute, update() just subtracts the start of the minute, so seconds and millis
+ * always come from the same reading. Crossing into the next minute bumps the minute and
+ * hour, after a check that the zone's UTC offset hasn't changed (daylight saving). Only a
+ * jump of more than a minute, a new day, an offset change or a new time zone does the full
+ * recompute, and only a new day goes through Calendar to get the date. Not thread safe.
+ */
+public final class FaceClock {
+    private static final long MS_PER_SECOND = 1000;
+    private static final long MS_PER_MINUTE = 60 * MS_PER_SECOND;
+    private static final long MS_PER_HOUR = 60 * MS_PER_MINUTE;
+    private static final long MS_PER_DAY = 24 * MS_PER_HOUR;
+
+    private final Calendar mCalendar;
+    private TimeZone mZone;
+    private boolean mValid = false;
+
+    private long mTimeMs;
+    private int mOffsetMs;
+    private long mMinuteStartMs;
+    private long mNextMinuteMs;
+    private long mNextDayMs;
+    //Days since the epoch, in local time
+    private long mDayNumber = Long.MIN_VALUE;
+
+    private int mHour;
+    private int mMinute;
+    private int mSecond;
+    private int mMillis;
+    private int mYear;
+    private int mMonth;
+    private int mMonthDay;
+
+    private long mIncrementalMinutes;
+    private long mRecomputes;
+    private long mCalendarRecomputes;
+
+    public FaceClock(TimeZone zone) {
+        mZone = zone;
+        mCalendar = new GregorianCalendar(zone);
+    }
+
+    /** Call when the time zone changes. The next update() recomputes everything. */
+    public void setTimeZone(TimeZone zone) {
+        mZone = zone;
+        mCalendar.setTimeZone(zone);
+        mValid = false;
+        mDayNumber = Long.MIN_VALUE;
+    }
+
+    public TimeZone getTimeZone() {
+        return mZone;
+    }
+
+    /** Sets every field from nowMs, milliseconds since the epoch. */
+    public void update(long nowMs) {
+        mTimeMs = nowMs;
+        if(mValid && nowMs >= mMinuteStartMs && nowMs < mNextMinuteMs) {
+            setWithinMinute(nowMs);
+            return;
+        }
+        if(mValid && nowMs >= mNextMinuteMs && nowMs < mNextMinuteMs + MS_PER_MINUTE
+                && nowMs < mNextDayMs && mZone.getOffset(nowMs) == mOffsetMs) {
+            //Just the next minute, the usual case
+            mMinuteStartMs = mNextMinuteMs;
+            mNextMinuteMs += MS_PER_MINUTE;
+            mMinute++;
+            if(mMinute == 60) {
+                mMinute = 0;
+                mHour++;
+            }
+            setWithinMinute(nowMs);
+            mIncrementalMinutes++;
+            return;
+        }
+        recompute(nowMs);
+    }
+
+    private void setWithinMinute(long nowMs) {
+        int msInMinute = (int)(nowMs - mMinuteStartMs);
+        mSecond = msInMinute / (int)MS_PER_SECOND;
+        mMillis = msInMinute % (int)MS_PER_SECOND;
+    }
+
+    private void recompute(long nowMs) {
+        mOffsetMs = mZone.getOffset(nowMs);
+        long local = nowMs + mOffsetMs;
+        long msOfDay = floorMod(local, MS_PER_DAY);
+        long localDayStart = local - msOfDay;
+
+        mHour = (int)(msOfDay / MS_PER_HOUR);
+        mMinute = (int)(msOfDay / MS_PER_MINUTE % 60);
+        mMinuteStartMs = nowMs - msOfDay % MS_PER_MINUTE;
+        mNextMinuteMs = mMinuteStartMs + MS_PER_MINUTE;
+        //If the offset changes before then, update() notices at the minute boundary
+        mNextDayMs = localDayStart + MS_PER_DAY - mOffsetMs;
+        setWithinMinute(nowMs);
+
+        long dayNumber = localDayStart / MS_PER_DAY;
+        if(dayNumber != mDayNumber) {
+            mCalendar.setTimeInMillis(nowMs);
+            mYear = mCalendar.get(Calendar.YEAR);
+            mMonth = mCalendar.get(Calendar.MONTH);
+            mMonthDay = mCalendar.get(Calendar.DAY_OF_MONTH);
+            mDayNumber = dayNumber;
+            mCalendarRecomputes++;
+        }
+        mValid = true;
+        mRecomputes++;
+    }
+
+    private static long floorMod(long x, long y) {
+        long mod = x % y;
+        return mod < 0 ? mod + y : mod;
+    }
+
+    /** The time zone's offset from UTC at the last update(). */
+    public int getOffsetMs() {
+        return mOffsetMs;
+    }
+
+    /** The timestamp passed to the last update(). */
+    public long getTimeMs() {
+        return mTimeMs;
+    }
+
+    /** 0 to 23. */
+    public int getHour() {
+        return mHour;
+    }
+
+    public int getMinute() {
+        return mMinute;
+    }
+
+    public int getSecond() {
+        return mSecond;
+    }
+
+    /** Milliseconds into the current second, from the same reading as getSecond(). */
+    public int getMillis() {
+        return mMillis;
+    }
+
+    public int getYear() {
+        return mYear;
+    }
+
+    /** 0 to 11, like Calendar.MONTH. */
+    public int getMonth() {
+        return mMonth;
+    }
+
+    public int getMonthDay() {
+        return mMonthDay;
+    }
+
+    /**
+     * A number that identifies the local date: year * 10000 + month * 100 + day of month,
+     * with the month counted from 0. Only useful for comparing against earlier values.
+     */
+    public int getDayKey() {
+        return mYear * 10000 + mMonth * 100 + mMonthDay;
+    }
+
+    /** Minute changes handled without a full recompute. */
+    public long getIncrementalMinutes() {
+        return mIncrementalMinutes;
+    }
+
+    public long getRecomputes() {
+        return mRecomputes;
+    }
+
+    /** Full recomputes that also had to work out the date. */
+    public long getCalendarRecomputes() {
+        return mCalendarRecomputes;
+    }
+}
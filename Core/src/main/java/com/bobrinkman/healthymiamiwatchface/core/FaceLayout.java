@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+/**
+ * Where everything goes on the watch face, for one display configuration: screen size and
+ * shape, the height of the flat "chin" at the bottom of some round screens, and the draw
+ * mode, which decides the fonts. Under the step pill go ACTIVITY_LINES lines of activity
+ * numbers, in a smaller font.
+ *
+ * All measurements are designed for a 320 pixel round watch (or 280 pixel square one) and
+ * scaled by uiScale for the real screen. Immutable, and everything is worked out in the
+ * constructor, so onDraw() only reads coordinates and makes a new layout when the
+ * configuration changes. The text only changes size with the number of digits, so the
+ * constructor measures the widest text for each count once, through a TextMeasurer, and
+ * the per-count getters look the answer up. That also keeps the step pill from changing
+ * width every time a digit does.
+ */
+public final class FaceLayout {
+    //Watch measurement constants
+    public static final float WATCH_DIM_ROUND = 320.0f;
+    public static final float WATCH_DIM_SQUARE = 280.0f;
+    public static final float WATCH_RADIUS =  WATCH_DIM_ROUND/2.0f;
+
+    //Measurement constants for the main time display
+    public static final float CIRCLE_WIDTH = WATCH_RADIUS;
+    public static final float CIRCLE_RADIUS = CIRCLE_WIDTH/2.0f;
+    public static final float CIRCLE_OFFSET = (float) Math.sqrt(CIRCLE_RADIUS*CIRCLE_RADIUS/2.0f);
+
+    //Padding around step counter as well as spacing between hours and minutes
+    public static final int PADDING = 12;
+
+    public static final float SHOE_PATH_WIDTH = 11.373f;
+    public static final float SHOE_PATH_HEIGHT = 22.0f;
+
+    //How far in from the edge of the circle the minute and seconds rings are
+    public static final float MINUTE_RING_INSET = 1.0f;
+    public static final float SECONDS_RING_INSET = 4.0f;
+
+    //Longest text we lay out: any int, sign included
+    public static final int MAX_DIGITS = 11;
+    //The hour has one or two digits, the minutes always two
+    public static final int MAX_HOUR_DIGITS = 2;
+    public static final int MINUTE_DIGITS = 2;
+
+    public static final int FONT_HOUR = 0;
+    public static final int FONT_MINUTE = 1;
+    public static final int FONT_STEPS = 2;
+    public static final int FONT_ACTIVITY = 3;
+
+    public static final int ACTIVITY_LINES = 2;
+
+    /** Measures digits in the face's fonts, at the scale the layout is for. */
+    public interface TextMeasurer {
+        /** Ink width of the widest text of count digits in font, in pixels. */
+        int getDigitsWidth(int font, int count);
+
+        /** Ink height of the tallest digits in font, in pixels. */
+        int getDigitsHeight(int font);
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mIsRound;
+    private final int mChinSize;
+    private final int mMode;
+
+    private final float mUiScale;
+    private final int mTimeCenterX;
+    private final int mTimeCenterY;
+    private final int mCircleLeft;
+    private final int mCircleRight;
+    private final int mCircleTop;
+    private final int mCircleBottom;
+    private final int mCircleSize;
+    private final float mMinuteRingInset;
+    private final float mSecondsRingInset;
+    private final int mRingPad;
+    private final int mStepCenterY;
+
+    private final float mHourBaseline;
+    private final float mMinuteBaseline;
+    //Area the digits can cover, padded, by number of hour digits
+    private final int[] mDigitsLeft = new int[MAX_HOUR_DIGITS + 1];
+    private final int[] mDigitsRight = new int[MAX_HOUR_DIGITS + 1];
+    private final int mDigitsTop;
+    private final int mDigitsBottom;
+
+    //The step pill. Only its width depends on the number of digits
+    private final int[] mPillLeft = new int[MAX_DIGITS + 1];
+    private final int[] mPillRight = new int[MAX_DIGITS + 1];
+    private final float[] mShoeLeft = new float[MAX_DIGITS + 1];
+    private final int mPillTop;
+    private final int mPillBottom;
+    private final int mPillRadius;
+    private final float mStepTextX;
+    private final float mStepTextY;
+    private final float mShoeTop;
+
+    //Activity lines, centered under the pill
+    private final float[] mActivityBaselines = new float[ACTIVITY_LINES];
+    private final int mActivityTop;
+    private final int mActivityBottom;
+
+    /**
+     * @param chinSize height of the flat part at the bottom of the screen, or 0
+     * @param mode whatever the caller's fonts depend on. Only compared, in matches()
+     */
+    public FaceLayout(int width, int height, boolean isRound, int chinSize, int mode,
+                      TextMeasurer measurer) {
+        mWidth = width;
+        mHeight = height;
+        mIsRound = isRound;
+        mChinSize = chinSize;
+        mMode = mode;
+
+        float uiScale = getUiScale(width, height, isRound);
+        mUiScale = uiScale;
+
+        //The time is shown in a circle whose circumference touches
+        // both the center of the view and (in a circular watch), the
+        // edge of the view. It is at a 45 degree angle up and right
+        // of the center of the view
+        mTimeCenterX = (int)(width/2 + uiScale*CIRCLE_OFFSET);
+        mTimeCenterY = (int)(height/2 - uiScale*CIRCLE_OFFSET);
+
+        mCircleLeft = (int)(mTimeCenterX - (uiScale*CIRCLE_RADIUS));
+        mCircleRight = (int)(mCircleLeft + (2 * uiScale*CIRCLE_RADIUS));
+        mCircleTop = (int)(mTimeCenterY - (uiScale*CIRCLE_RADIUS));
+        mCircleBottom = (int)(mCircleTop + (2 * uiScale*CIRCLE_RADIUS));
+        mCircleSize = (int)(2*uiScale*CIRCLE_RADIUS);
+        mMinuteRingInset = uiScale*MINUTE_RING_INSET;
+        mSecondsRingInset = uiScale*SECONDS_RING_INSET;
+        //The ring stroke width, so anti-aliased edges are covered
+        mRingPad = (int)Math.ceil(uiScale*2) + 1;
+
+        //The hour above the minutes, centered vertically in the circle
+        int padding = (int)(uiScale*PADDING);
+        float hourHeight = measurer.getDigitsHeight(FONT_HOUR);
+        float minuteHeight = measurer.getDigitsHeight(FONT_MINUTE);
+        float digitsTotalHeight = hourHeight + uiScale*PADDING + minuteHeight;
+        mHourBaseline = mTimeCenterY + (hourHeight-(digitsTotalHeight/2));
+        mMinuteBaseline = mTimeCenterY + (digitsTotalHeight/2);
+        int minuteWidth = measurer.getDigitsWidth(FONT_MINUTE, MINUTE_DIGITS);
+        for(int count=1;count<=MAX_HOUR_DIGITS;count++){
+            int digitsWidth = Math.max(measurer.getDigitsWidth(FONT_HOUR, count), minuteWidth);
+            mDigitsLeft[count] = mTimeCenterX - digitsWidth/2 - padding;
+            mDigitsRight[count] = mTimeCenterX + digitsWidth/2 + padding;
+        }
+        mDigitsTop = (int)(mTimeCenterY - digitsTotalHeight/2) - padding;
+        mDigitsBottom = (int)(mTimeCenterY + digitsTotalHeight/2) + padding;
+
+        //The rounded rectangle around the step count and shoe icon
+        int textHeight = measurer.getDigitsHeight(FONT_STEPS);
+        int roomForRounded = textHeight+(int)(2*uiScale*PADDING);
+        int fullHeight = textHeight + (int)(2*uiScale*PADDING);
+        mPillRadius = roomForRounded/2;
+        //Letters in the activity lines reach below the baseline, by up to half a digit
+        int activityHeight = measurer.getDigitsHeight(FONT_ACTIVITY);
+        int lineGap = padding/3;
+        int activityBlock = padding/2 + ACTIVITY_LINES*activityHeight
+                + (ACTIVITY_LINES-1)*lineGap + activityHeight/2;
+        mStepCenterY = placeStepPill(mTimeCenterY + (int)(0.75*uiScale*CIRCLE_WIDTH),
+                fullHeight/2, fullHeight/2 + activityBlock, padding);
+        mPillTop = mStepCenterY - fullHeight/2;
+        mPillBottom = mStepCenterY + fullHeight/2;
+        mStepTextX = mTimeCenterX+uiScale*SHOE_PATH_WIDTH/2;
+        mStepTextY = mStepCenterY+textHeight/2;
+        mShoeTop = mStepCenterY - uiScale*SHOE_PATH_HEIGHT/ 2;
+        for(int count=1;count<=MAX_DIGITS;count++){
+            int contentWidth = measurer.getDigitsWidth(FONT_STEPS, count)
+                    + (int)(uiScale*SHOE_PATH_WIDTH);
+            int fullWidth = contentWidth + roomForRounded;
+            mPillLeft[count] = mTimeCenterX - fullWidth/2;
+            mPillRight[count] = mTimeCenterX + fullWidth/2;
+            mShoeLeft[count] = mTimeCenterX - contentWidth / 2 - uiScale*SHOE_PATH_WIDTH / 2;
+        }
+
+        int lineTop = mPillBottom + padding/2;
+        for(int i=0;i<ACTIVITY_LINES;i++){
+            mActivityBaselines[i] = lineTop + activityHeight;
+            lineTop += activityHeight + lineGap;
+        }
+        mActivityTop = mPillBottom + padding/4;
+        mActivityBottom = mPillBottom + activityBlock + padding/4;
+    }
+
+    /**
+     * Moves the step pill, and the activity lines under it, up from where the design puts
+     * them if they would come within padding of the chin. They never go up past the circle
+     * around the time, though.
+     */
+    private int placeStepPill(int centerY, int above, int below, int padding) {
+        int maxBottom = mHeight - mChinSize - padding;
+        int bottom = centerY + below;
+        if(mChinSize <= 0 || bottom <= maxBottom) {
+            return centerY;
+        }
+        int highest = mCircleBottom + padding + above;
+        return Math.max(highest, centerY - (bottom - maxBottom));
+    }
+
+    public static float getUiScale(int width, int height, boolean isRound) {
+        float watchSize = (float)(width > height ? width : height);
+        return watchSize / (isRound ? WATCH_DIM_ROUND : WATCH_DIM_SQUARE);
+    }
+
+    /** True if this layout is the one for the given configuration. */
+    public boolean matches(int width, int height, boolean isRound, int chinSize, int mode) {
+        return width == mWidth && height == mHeight && isRound == mIsRound
+                && chinSize == mChinSize && mode == mMode;
+    }
+
+    private static int clampDigits(int count, int max) {
+        return count < 1 ? 1 : count > max ? max : count;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getChinSize() {
+        return mChinSize;
+    }
+
+    public float getUiScale() {
+        return mUiScale;
+    }
+
+    public int getTimeCenterX() {
+        return mTimeCenterX;
+    }
+
+    public int getTimeCenterY() {
+        return mTimeCenterY;
+    }
+
+    public int getCircleLeft() {
+        return mCircleLeft;
+    }
+
+    public int getCircleRight() {
+        return mCircleRight;
+    }
+
+    public int getCircleTop() {
+        return mCircleTop;
+    }
+
+    public int getCircleBottom() {
+        return mCircleBottom;
+    }
+
+    /** Size of the square the circle and its rings are drawn in. */
+    public int getCircleSize() {
+        return mCircleSize;
+    }
+
+    public float getMinuteRingInset() {
+        return mMinuteRingInset;
+    }
+
+    public float getSecondsRingInset() {
+        return mSecondsRingInset;
+    }
+
+    /** How far the rings' and the pill's anti-aliased edges can reach past their bounds. */
+    public int getRingPad() {
+        return mRingPad;
+    }
+
+    public int getStepCenterY() {
+        return mStepCenterY;
+    }
+
+    public float getHourBaseline() {
+        return mHourBaseline;
+    }
+
+    public float getMinuteBaseline() {
+        return mMinuteBaseline;
+    }
+
+    public int getDigitsLeft(int hourDigits) {
+        return mDigitsLeft[clampDigits(hourDigits, MAX_HOUR_DIGITS)];
+    }
+
+    public int getDigitsRight(int hourDigits) {
+        return mDigitsRight[clampDigits(hourDigits, MAX_HOUR_DIGITS)];
+    }
+
+    public int getDigitsTop() {
+        return mDigitsTop;
+    }
+
+    public int getDigitsBottom() {
+        return mDigitsBottom;
+    }
+
+    public int getPillLeft(int stepDigits) {
+        return mPillLeft[clampDigits(stepDigits, MAX_DIGITS)];
+    }
+
+    public int getPillTop() {
+        return mPillTop;
+    }
+
+    public int getPillRight(int stepDigits) {
+        return mPillRight[clampDigits(stepDigits, MAX_DIGITS)];
+    }
+
+    public int getPillBottom() {
+        return mPillBottom;
+    }
+
+    public int getPillRadius() {
+        return mPillRadius;
+    }
+
+    public float getStepTextX() {
+        return mStepTextX;
+    }
+
+    public float getStepTextY() {
+        return mStepTextY;
+    }
+
+    public float getShoeLeft(int stepDigits) {
+        return mShoeLeft[clampDigits(stepDigits, MAX_DIGITS)];
+    }
+
+    public float getShoeTop() {
+        return mShoeTop;
+    }
+
+    public float getActivityBaseline(int line) {
+        return mActivityBaselines[line];
+    }
+
+    public int getActivityTop() {
+        return mActivityTop;
+    }
+
+    public int getActivityBottom() {
+        return mActivityBottom;
+    }
+}
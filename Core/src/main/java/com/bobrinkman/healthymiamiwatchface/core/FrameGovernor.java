@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+/**
+ * Picks the fastest interactive frame rate the face can afford, from a few fixed tiers.
+ *
+ * Two things cap the rate. The first is a CPU budget: a tier is only allowed if its frame
+ * rate times the average cost of a frame fits in the budget per second. The average is an
+ * exponential moving average over about the last eight frames. The second is the battery:
+ * the lower the level, the slower the fastest allowed tier, unless the watch is charging.
+ * The slower of the two caps wins.
+ *
+ * To keep from flapping between tiers, slowing down happens as soon as update() sees the
+ * need, but speeding up needs the faster tier to fit in UPGRADE_FRACTION of the budget,
+ * the battery to be BATTERY_HYSTERESIS_PERCENT above the threshold, and the current tier to
+ * have lasted MIN_DWELL_MS. Not thread safe. Everything is expected on the main thread.
+ *
+ * The seconds ring sweeps once a second, so below MIN_SECONDS_RING_FPS it would be drawn at
+ * the same angle, or nearly, every frame and look stuck. Tiers that slow are drawn without
+ * it; see isSecondsRingShown(). The minute ring and digits still move at any tier.
+ */
+public final class FrameGovernor {
+    private static final int[] TIER_FPS = {20, 10, 4, 1};
+    public static final int TIER_COUNT = TIER_FPS.length;
+    //At 4 FPS the seconds ring moves a quarter turn per frame, the slowest that still reads
+    // as motion
+    public static final int MIN_SECONDS_RING_FPS = 4;
+
+    //Below each level (percent), not charging, the fastest tier allowed is one slower
+    private static final int[] BATTERY_THRESHOLDS = {30, 15, 5};
+    private static final int BATTERY_HYSTERESIS_PERCENT = 5;
+
+    private static final double UPGRADE_FRACTION = 0.7;
+    private static final long MIN_DWELL_MS = 10 * 1000;
+    //Weight of each new frame in the average, as a shift: 1/8
+    private static final int AVERAGE_SHIFT = 3;
+
+    public static final int LIMIT_NONE = 0;
+    public static final int LIMIT_CPU = 1;
+    public static final int LIMIT_BATTERY = 2;
+
+    private final long mCpuBudgetNsPerSecond;
+
+    private long mAverageCostNs = -1;
+    private int mBatteryPercent = 100;
+    private boolean mCharging = false;
+
+    private int mTier = 0;
+    private int mLimit = LIMIT_NONE;
+    private long mTierSinceMs = Long.MIN_VALUE;
+    private long mTierChanges;
+    private final long[] mTierMs = new long[TIER_COUNT];
+
+    /** @param cpuBudgetNsPerSecond how much drawing time per second the face may use */
+    public FrameGovernor(long cpuBudgetNsPerSecond) {
+        mCpuBudgetNsPerSecond = cpuBudgetNsPerSecond;
+    }
+
+    public static int getTierFps(int tier) {
+        return TIER_FPS[tier];
+    }
+
+    /** Adds the cost of one interactive frame to the average. */
+    public void recordFrame(long costNs) {
+        if(mAverageCostNs < 0) {
+            mAverageCostNs = costNs;
+        } else {
+            mAverageCostNs += (costNs - mAverageCostNs) >> AVERAGE_SHIFT;
+        }
+    }
+
+    /** @param percent battery level, 0 to 100 */
+    public void setBattery(int percent, boolean charging) {
+        mBatteryPercent = percent;
+        mCharging = charging;
+    }
+
+    /**
+     * Works out the tier for nowMs (any monotonic clock) from what has been recorded.
+     * Returns true if it changed.
+     */
+    public boolean update(long nowMs) {
+        if(mTierSinceMs == Long.MIN_VALUE) {
+            mTierSinceMs = nowMs;
+        }
+        int cpuTier = fastestCpuTier(1.0);
+        int batteryTier = fastestBatteryTier(0);
+        int target = Math.max(cpuTier, batteryTier);
+        if(target < mTier) {
+            //Only speed up if it would still fit with room to spare
+            if(nowMs - mTierSinceMs < MIN_DWELL_MS) {
+                return false;
+            }
+            cpuTier = fastestCpuTier(UPGRADE_FRACTION);
+            batteryTier = fastestBatteryTier(BATTERY_HYSTERESIS_PERCENT);
+            target = Math.max(cpuTier, batteryTier);
+            if(target >= mTier) {
+                return false;
+            }
+        } else if(target == mTier) {
+            return false;
+        }
+        mTierMs[mTier] += nowMs - mTierSinceMs;
+        mTierSinceMs = nowMs;
+        mTier = target;
+        mLimit = target == 0 ? LIMIT_NONE : cpuTier >= batteryTier ? LIMIT_CPU : LIMIT_BATTERY;
+        mTierChanges++;
+        return true;
+    }
+
+    /** The fastest tier whose cost fits in fraction of the budget. */
+    private int fastestCpuTier(double fraction) {
+        if(mAverageCostNs < 0) {
+            return 0;
+        }
+        double budget = mCpuBudgetNsPerSecond * fraction;
+        for(int t=0;t<TIER_COUNT;t++){
+            if(TIER_FPS[t] * (double)mAverageCostNs <= budget) {
+                return t;
+            }
+        }
+        return TIER_COUNT - 1;
+    }
+
+    /** The fastest tier the battery allows, with each threshold raised by margin. */
+    private int fastestBatteryTier(int margin) {
+        if(mCharging) {
+            return 0;
+        }
+        int tier = 0;
+        for(int i=0;i<BATTERY_THRESHOLDS.length;i++){
+            if(mBatteryPercent < BATTERY_THRESHOLDS[i] + margin) {
+                tier = i + 1;
+            }
+        }
+        return tier;
+    }
+
+    public int getTier() {
+        return mTier;
+    }
+
+    public int getFps() {
+        return TIER_FPS[mTier];
+    }
+
+    /** Whether the current tier is fast enough for the seconds ring to be drawn. */
+    public boolean isSecondsRingShown() {
+        return TIER_FPS[mTier] >= MIN_SECONDS_RING_FPS;
+    }
+
+    /** The frame interval of the current tier, for RedrawScheduler's cap. */
+    public long getMinDelayMs() {
+        return 1000 / TIER_FPS[mTier];
+    }
+
+    /** Why the tier isn't the fastest one, as a LIMIT_* constant. */
+    public int getLimit() {
+        return mLimit;
+    }
+
+    /** Average frame cost in ns, or -1 before any frame is recorded. */
+    public long getAverageFrameCostNs() {
+        return mAverageCostNs;
+    }
+
+    public int getBatteryPercent() {
+        return mBatteryPercent;
+    }
+
+    public boolean isCharging() {
+        return mCharging;
+    }
+
+    public long getTierChanges() {
+        return mTierChanges;
+    }
+
+    /** Total time spent in tier, up to nowMs. */
+    public long getTimeInTierMs(int tier, long nowMs) {
+        long ms = mTierMs[tier];
+        if(tier == mTier && mTierSinceMs != Long.MIN_VALUE) {
+            ms += nowMs - mTierSinceMs;
+        }
+        return ms;
+    }
+}
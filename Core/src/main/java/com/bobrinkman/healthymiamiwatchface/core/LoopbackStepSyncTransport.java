@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import java.io.IOException;
+
+/**
+ * A StepSyncTransport that decodes each batch straight into a sink, in process. Stands in
+ * for the Data Layer when there is no paired phone: in benchmarks, and to check the
+ * protocol end to end. setConnected(false) makes sends fail, as they do while the phone is
+ * out of range. Sends finish before send() returns.
+ */
+public final class LoopbackStepSyncTransport implements StepSyncTransport {
+    private final StepBatchCodec.Sink mSink;
+    private boolean mConnected = true;
+    private long mBatches;
+    private long mBytes;
+
+    public LoopbackStepSyncTransport(StepBatchCodec.Sink sink) {
+        mSink = sink;
+    }
+
+    public void setConnected(boolean connected) {
+        mConnected = connected;
+    }
+
+    @Override
+    public boolean send(long batchId, byte[] payload, int length, Callback callback) {
+        if(!mConnected) {
+            return false;
+        }
+        try {
+            StepBatchCodec.decode(payload, length, mSink);
+        } catch (IOException e) {
+            //We encoded it ourselves, so this is a bug
+            throw new IllegalStateException("Could not decode batch " + batchId, e);
+        }
+        mBatches++;
+        mBytes += length;
+        callback.onSendDone(batchId, true);
+        return true;
+    }
+
+    public long getBatches() {
+        return mBatches;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import java.io.IOException;
+
+/**
+ * Compact wire format for a batch of (minute, steps) buckets sent from the watch to the
+ * phone.
+ *
+ * A batch is a version byte, then varints: the batch id, the number of buckets, the first
+ * bucket's minute and steps, and for each later bucket the change in minute (zigzag
+ * encoded, so late steps for an earlier minute still work) and its steps. Minutes are
+ * numbered from the Unix epoch, as in StepHistory. A minute of walking usually takes 2 or 3
+ * bytes, against 12 for a plain long and int.
+ */
+public final class StepBatchCodec {
+    /** Where batches go in the Wearable Data Layer, followed by the batch id. */
+    public static final String DATA_PATH_PREFIX = "/healthymiami/steps/";
+
+    public static final int VERSION = 1;
+
+    //Longest varint for a long
+    private static final int MAX_VARINT_BYTES = 10;
+
+    /** Gets the buckets of a batch as it is decoded. */
+    public interface Sink {
+        void onBucket(long minute, int steps);
+    }
+
+    private StepBatchCodec() {
+    }
+
+    /** Most bytes encode() can use for count buckets. */
+    public static int maxEncodedSize(int count) {
+        return 1 + 3*MAX_VARINT_BYTES + count * 2*MAX_VARINT_BYTES;
+    }
+
+    /**
+     * Encodes the first count buckets into out, which must have room for
+     * maxEncodedSize(count) bytes. Returns the number of bytes used.
+     */
+    public static int encode(long batchId, long[] minutes, int[] steps, int count, byte[] out) {
+        int pos = 0;
+        out[pos++] = (byte)VERSION;
+        pos = writeVarint(batchId, out, pos);
+        pos = writeVarint(count, out, pos);
+        long previous = 0;
+        for(int i=0;i<count;i++){
+            long minute = minutes[i];
+            if(i == 0) {
+                pos = writeVarint(minute, out, pos);
+            } else {
+                long delta = minute - previous;
+                pos = writeVarint((delta << 1) ^ (delta >> 63), out, pos);
+            }
+            pos = writeVarint(steps[i], out, pos);
+            previous = minute;
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes a batch, handing each bucket to sink, and returns its batch id. Throws
+     * IOException if the batch is truncated, malformed or from a newer version.
+     */
+    public static long decode(byte[] in, int length, Sink sink) throws IOException {
+        Reader reader = new Reader(in, length);
+        int version = reader.readByte();
+        if(version != VERSION) {
+            throw new IOException("Unknown step batch version " + version);
+        }
+        long batchId = reader.readVarint();
+        long count = reader.readVarint();
+        long minute = 0;
+        for(long i=0;i<count;i++){
+            if(i == 0) {
+                minute = reader.readVarint();
+            } else {
+                long zigzag = reader.readVarint();
+                minute += (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+            long steps = reader.readVarint();
+            if(steps > Integer.MAX_VALUE) {
+                throw new IOException("Bad step count " + steps);
+            }
+            sink.onBucket(minute, (int)steps);
+        }
+        if(reader.mPos != length) {
+            throw new IOException("Trailing bytes in step batch");
+        }
+        return batchId;
+    }
+
+    private static int writeVarint(long value, byte[] out, int pos) {
+        while((value & ~0x7FL) != 0) {
+            out[pos++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte)value;
+        return pos;
+    }
+
+    private static final class Reader {
+        private final byte[] mIn;
+        private final int mLength;
+        private int mPos;
+
+        Reader(byte[] in, int length) {
+            mIn = in;
+            mLength = length;
+        }
+
+        int readByte() throws IOException {
+            if(mPos >= mLength) {
+                throw new IOException("Step batch is truncated");
+            }
+            return mIn[mPos++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for(int shift=0;shift<64;shift+=7){
+                int b = readByte();
+                value |= (long)(b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Varint too long in step batch");
+        }
+    }
+}
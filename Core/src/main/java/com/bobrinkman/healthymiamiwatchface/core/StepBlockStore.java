@@ -0,0 +1,653 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Steps per minute for as long as we have them, for the phone, where there can be years of
+ * history.
+ *
+ * Minutes are numbered from the Unix epoch (UTC), as in StepHistory, and grouped into one
+ * block per UTC day. A block is stored compressed and column by column: the number of
+ * minutes with steps, then the minute of day of each (as varint deltas), then the steps in
+ * each (as varints). A day with a few hours of walking takes a few hundred bytes. The
+ * newest day is kept uncompressed while steps are still arriving for it.
+ *
+ * The block index is sorted by day and holds each day's total, with running totals of
+ * those on top, so the steps in any range of whole days cost two binary searches. A range
+ * that starts or ends mid-day also reads the one or two blocks at its ends, so any range,
+ * such as a local day, week or month, costs O(log days) plus two blocks at most.
+ *
+ * Only the daily totals are precomputed; there are no stored weekly or monthly rollups.
+ * Weeks and months start at local midnight, which is a different UTC minute in every time
+ * zone and moves with daylight saving, so a stored rollup would only be right for one zone.
+ * The running totals answer any week or month in the same time as a stored rollup would
+ * take to look up, and add nothing to the log.
+ *
+ * Optionally backed by an append-only log of block records, which is replayed on open and
+ * compacted when it gets big. All methods are synchronized.
+ *
+ * The store also keeps the keys of the sync batches added to it, with when each was added,
+ * so StepSyncReceiver can skip a batch it is sent again. A key goes in the log in the same
+ * flush as the batch's steps, so after a crash either both are there or neither is.
+ * pruneAppliedBatches() forgets old keys; the log drops them at the next compaction.
+ */
+public final class StepBlockStore {
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    //Record header: day, total and encoded length, all ints
+    private static final int RECORD_HEADER_BYTES = 12;
+    private static final int MAX_VARINT_BYTES = 5;
+    private static final int INITIAL_CAPACITY = 64;
+    //The day of a record that holds an applied batch instead of a block: when it was
+    // applied, as a long, then its key in UTF-8
+    private static final int APPLIED_BATCH_RECORD = Integer.MIN_VALUE;
+    private static final int APPLIED_MS_BYTES = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private int mCount;
+    private long[] mDays = new long[INITIAL_CAPACITY];
+    //Encoded blocks. null for the open day, whose steps are in mOpenSteps
+    private byte[][] mBlocks = new byte[INITIAL_CAPACITY][];
+    private int[] mTotals = new int[INITIAL_CAPACITY];
+    //mBefore[i] is the sum of mTotals before block i. Valid below mBeforeValid
+    private long[] mBefore = new long[INITIAL_CAPACITY + 1];
+    private int mBeforeValid;
+
+    private long mOpenDay = NONE;
+    private final int[] mOpenSteps = new int[MINUTES_PER_DAY];
+    private final byte[] mScratch = new byte[encodedSizeLimit()];
+    private final int[] mLateSteps = new int[MINUTES_PER_DAY];
+    private int mNextPos;
+
+    //Days changed since the last flushLog()
+    private long[] mDirtyDays = new long[8];
+    private int mDirtyCount;
+
+    //Keys of the sync batches added, and when each was. Those added since the last
+    // flushLog() are in mNewBatches too
+    private final HashMap<String, Long> mAppliedBatches = new HashMap<>();
+    private final ArrayList<String> mNewBatches = new ArrayList<>();
+    //What the applied batches take up in the log
+    private long mAppliedBatchBytes;
+
+    private File mLogFile;
+    private DataOutputStream mLog;
+    private long mLogBytes;
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    /** Adds steps to the given minute. Earlier days can be added to at any time. */
+    public synchronized void add(long minute, int steps) {
+        if(steps <= 0) {
+            return;
+        }
+        long day = floorDiv(minute, MINUTES_PER_DAY);
+        int minuteOfDay = (int)(minute - day * MINUTES_PER_DAY);
+        if(day != mOpenDay) {
+            int index = find(day);
+            if(index < 0 && (mCount == 0 || day > mDays[mCount - 1])) {
+                //A new newest day
+                closeOpenDay();
+                index = insert(day);
+                Arrays.fill(mOpenSteps, 0);
+                mBlocks[index] = null;
+                mOpenDay = day;
+            } else if(index >= 0 && index == mCount - 1) {
+                //Steps for the newest day after it was closed, e.g. after a reload
+                closeOpenDay();
+                Arrays.fill(mOpenSteps, 0);
+                decode(mBlocks[index], mOpenSteps);
+                mBlocks[index] = null;
+                mOpenDay = day;
+            } else {
+                //Late steps for an older day. Rare, so just rebuild its block
+                int[] daySteps = mLateSteps;
+                Arrays.fill(daySteps, 0);
+                if(index < 0) {
+                    index = insert(day);
+                } else {
+                    decode(mBlocks[index], daySteps);
+                }
+                daySteps[minuteOfDay] += steps;
+                mBlocks[index] = encode(daySteps);
+                addToTotal(index, steps);
+                markDirty(day);
+                return;
+            }
+        }
+        mOpenSteps[minuteOfDay] += steps;
+        addToTotal(mCount - 1, steps);
+        markDirty(day);
+    }
+
+    /**
+     * Steps from fromMinute (inclusive) to toMinute (exclusive). Minutes we have no data for
+     * count as 0.
+     */
+    public synchronized long sum(long fromMinute, long toMinute) {
+        if(fromMinute >= toMinute || mCount == 0) {
+            return 0;
+        }
+        long fromDay = floorDiv(fromMinute, MINUTES_PER_DAY);
+        long lastDay = floorDiv(toMinute - 1, MINUTES_PER_DAY);
+        int first = lowerBound(fromDay);
+        int end = lowerBound(lastDay + 1);
+        if(first >= end) {
+            return 0;
+        }
+        long total = before(end) - before(first);
+        //Take off the parts of the end days that are outside the range
+        if(mDays[first] == fromDay) {
+            total -= sumWithinDay(first, 0, (int)(fromMinute - fromDay * MINUTES_PER_DAY));
+        }
+        if(mDays[end - 1] == lastDay) {
+            total -= sumWithinDay(end - 1, (int)(toMinute - lastDay * MINUTES_PER_DAY),
+                    MINUTES_PER_DAY);
+        }
+        return total;
+    }
+
+    /** Steps on days fromDay (inclusive) to toDay (exclusive), numbered from the epoch. */
+    public synchronized long sumDays(long fromDay, long toDay) {
+        if(fromDay >= toDay) {
+            return 0;
+        }
+        return before(lowerBound(toDay)) - before(lowerBound(fromDay));
+    }
+
+    /** Steps on the given UTC day. */
+    public synchronized int sumDay(long day) {
+        int index = find(day);
+        return index < 0 ? 0 : mTotals[index];
+    }
+
+    /**
+     * Fills out with the totals of days firstDay, firstDay+1, ... for out.length days, e.g.
+     * for a chart.
+     */
+    public synchronized void getDayTotals(long firstDay, int[] out) {
+        Arrays.fill(out, 0);
+        for(int i=lowerBound(firstDay);i<mCount && mDays[i] - firstDay < out.length;i++){
+            out[(int)(mDays[i] - firstDay)] = mTotals[i];
+        }
+    }
+
+    /** Whether markBatchApplied() was called for key, and it hasn't been pruned since. */
+    public synchronized boolean isBatchApplied(String key) {
+        return mAppliedBatches.containsKey(key);
+    }
+
+    /**
+     * Records that the sync batch with the given key has been added, at nowMs (ms since the
+     * epoch). It is written to the log by the next flushLog(), together with the batch's
+     * steps.
+     */
+    public synchronized void markBatchApplied(String key, long nowMs) {
+        if(mAppliedBatches.put(key, nowMs) == null) {
+            mAppliedBatchBytes += appliedBatchRecordBytes(key);
+        }
+        mNewBatches.add(key);
+    }
+
+    /** Forgets the batches applied before beforeMs. Returns how many there were. */
+    public synchronized int pruneAppliedBatches(long beforeMs) {
+        int pruned = 0;
+        Iterator<Map.Entry<String, Long>> it = mAppliedBatches.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if(entry.getValue() < beforeMs) {
+                mAppliedBatchBytes -= appliedBatchRecordBytes(entry.getKey());
+                it.remove();
+                pruned++;
+            }
+        }
+        return pruned;
+    }
+
+    public synchronized int getAppliedBatchCount() {
+        return mAppliedBatches.size();
+    }
+
+    private static int appliedBatchRecordBytes(String key) {
+        return RECORD_HEADER_BYTES + APPLIED_MS_BYTES + key.getBytes(UTF_8).length;
+    }
+
+    public synchronized int getDayCount() {
+        return mCount;
+    }
+
+    /** Bytes the days take up compressed, as they would be written to the log. */
+    public synchronized long getEncodedBytes() {
+        long bytes = 0;
+        for(int i=0;i<mCount;i++){
+            byte[] block = mBlocks[i];
+            bytes += RECORD_HEADER_BYTES + (block != null ? block.length : encodeOpenDay());
+        }
+        return bytes;
+    }
+
+    private int encodeOpenDay() {
+        return encodeInto(mOpenSteps, mScratch);
+    }
+
+    /** Closes the open day, if there is one, by compressing its block. */
+    private void closeOpenDay() {
+        if(mOpenDay == NONE) {
+            return;
+        }
+        int index = find(mOpenDay);
+        mBlocks[index] = encode(mOpenSteps);
+        mOpenDay = NONE;
+    }
+
+    private void addToTotal(int index, int steps) {
+        mTotals[index] += steps;
+        if(mBeforeValid > index + 1) {
+            mBeforeValid = index + 1;
+        }
+    }
+
+    /** Sum of the totals of the blocks before index. */
+    private long before(int index) {
+        if(mBeforeValid == 0) {
+            mBefore[0] = 0;
+            mBeforeValid = 1;
+        }
+        while(mBeforeValid <= index) {
+            mBefore[mBeforeValid] = mBefore[mBeforeValid - 1] + mTotals[mBeforeValid - 1];
+            mBeforeValid++;
+        }
+        return mBefore[index];
+    }
+
+    /** Steps in block index from minute of day from (inclusive) to to (exclusive). */
+    private long sumWithinDay(int index, int from, int to) {
+        if(from >= to) {
+            return 0;
+        }
+        long total = 0;
+        byte[] block = mBlocks[index];
+        if(block == null) {
+            for(int m=from;m<to;m++){
+                total += mOpenSteps[m];
+            }
+            return total;
+        }
+        //Walk the minute and step columns side by side
+        int n = readVarint(block, 0);
+        int minuteBytes = readVarint(block, mNextPos);
+        int pos = mNextPos;
+        int stepPos = pos + minuteBytes;
+        int minute = 0;
+        for(int i=0;i<n;i++){
+            minute += readVarint(block, pos);
+            pos = mNextPos;
+            int steps = readVarint(block, stepPos);
+            stepPos = mNextPos;
+            if(minute >= to) {
+                break;
+            }
+            if(minute >= from) {
+                total += steps;
+            }
+        }
+        return total;
+    }
+
+    /** Index of day in the index, or -1. */
+    private int find(long day) {
+        int index = lowerBound(day);
+        return index < mCount && mDays[index] == day ? index : -1;
+    }
+
+    /** Index of the first block on or after day. */
+    private int lowerBound(long day) {
+        int low = 0;
+        int high = mCount;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(mDays[mid] < day) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Adds an empty entry for day, which must not be there yet, and returns its index. */
+    private int insert(long day) {
+        if(mCount == mDays.length) {
+            int capacity = mDays.length * 2;
+            mDays = Arrays.copyOf(mDays, capacity);
+            mBlocks = Arrays.copyOf(mBlocks, capacity);
+            mTotals = Arrays.copyOf(mTotals, capacity);
+            mBefore = Arrays.copyOf(mBefore, capacity + 1);
+        }
+        int index = lowerBound(day);
+        int moved = mCount - index;
+        System.arraycopy(mDays, index, mDays, index + 1, moved);
+        System.arraycopy(mBlocks, index, mBlocks, index + 1, moved);
+        System.arraycopy(mTotals, index, mTotals, index + 1, moved);
+        mDays[index] = day;
+        mBlocks[index] = null;
+        mTotals[index] = 0;
+        mCount++;
+        if(mBeforeValid > index + 1) {
+            mBeforeValid = index + 1;
+        }
+        return index;
+    }
+
+    private void markDirty(long day) {
+        if(mLog == null) {
+            return;
+        }
+        for(int i=mDirtyCount-1;i>=0;i--){
+            if(mDirtyDays[i] == day) {
+                return;
+            }
+        }
+        if(mDirtyCount == mDirtyDays.length) {
+            mDirtyDays = Arrays.copyOf(mDirtyDays, mDirtyCount * 2);
+        }
+        mDirtyDays[mDirtyCount++] = day;
+    }
+
+    private static int encodedSizeLimit() {
+        return 2 * MAX_VARINT_BYTES + MINUTES_PER_DAY * 2 * MAX_VARINT_BYTES;
+    }
+
+    private byte[] encode(int[] daySteps) {
+        return Arrays.copyOf(mScratch, encodeInto(daySteps, mScratch));
+    }
+
+    /** Encodes a day's steps, one int per minute, into out. Returns the bytes used. */
+    private static int encodeInto(int[] daySteps, byte[] out) {
+        int n = 0;
+        int minuteBytes = 0;
+        int previous = 0;
+        for(int m=0;m<MINUTES_PER_DAY;m++){
+            if(daySteps[m] != 0) {
+                minuteBytes += varintSize(m - previous);
+                previous = m;
+                n++;
+            }
+        }
+        int pos = writeVarint(n, out, 0);
+        pos = writeVarint(minuteBytes, out, pos);
+        int stepPos = pos + minuteBytes;
+        previous = 0;
+        for(int m=0;m<MINUTES_PER_DAY;m++){
+            if(daySteps[m] != 0) {
+                pos = writeVarint(m - previous, out, pos);
+                stepPos = writeVarint(daySteps[m], out, stepPos);
+                previous = m;
+            }
+        }
+        return stepPos;
+    }
+
+    /** Decodes a block into daySteps, which must be all zeros. */
+    private void decode(byte[] block, int[] daySteps) {
+        int n = readVarint(block, 0);
+        int minuteBytes = readVarint(block, mNextPos);
+        int pos = mNextPos;
+        int stepPos = pos + minuteBytes;
+        int minute = 0;
+        for(int i=0;i<n;i++){
+            minute += readVarint(block, pos);
+            pos = mNextPos;
+            daySteps[minute] = readVarint(block, stepPos);
+            stepPos = mNextPos;
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(int value, byte[] out, int pos) {
+        while((value & ~0x7F) != 0) {
+            out[pos++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte)value;
+        return pos;
+    }
+
+    /** Reads the varint at pos, and leaves the position after it in mNextPos. */
+    private int readVarint(byte[] in, int pos) {
+        int value = 0;
+        for(int shift=0;;shift+=7){
+            int b = in[pos++];
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                mNextPos = pos;
+                return value;
+            }
+        }
+    }
+
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    /**
+     * Loads the store from logFile, if it exists, and appends changed days to it from now
+     * on. Later records for a day replace earlier ones. The file is rewritten compactly if
+     * it has grown to more than twice what the days and applied batches need, or ends in a
+     * partial record.
+     */
+    public synchronized void openLog(File logFile) throws IOException {
+        closeLog();
+        mLogFile = logFile;
+        mLogBytes = 0;
+        boolean partial = false;
+        if(logFile.exists()) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(logFile)));
+            try {
+                partial = !readFrom(in);
+            } finally {
+                in.close();
+            }
+            if(partial || mLogBytes > 2 * getNeededLogBytes()) {
+                compactLog();
+            }
+        }
+        mLog = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(logFile, true)));
+    }
+
+    /**
+     * Reads block records until the end of in. Returns false if the last one was cut off,
+     * in which case it is ignored.
+     */
+    boolean readFrom(DataInputStream in) throws IOException {
+        while(true) {
+            long day;
+            try {
+                day = in.readInt();
+            } catch (EOFException e) {
+                return true;
+            }
+            byte[] block;
+            int total;
+            try {
+                total = in.readInt();
+                block = new byte[in.readInt()];
+                in.readFully(block);
+            } catch (EOFException e) {
+                return false;
+            }
+            if(day == APPLIED_BATCH_RECORD) {
+                if(block.length >= APPLIED_MS_BYTES) {
+                    long appliedMs = new DataInputStream(new ByteArrayInputStream(block))
+                            .readLong();
+                    String key = new String(block, APPLIED_MS_BYTES,
+                            block.length - APPLIED_MS_BYTES, UTF_8);
+                    if(mAppliedBatches.put(key, appliedMs) == null) {
+                        mAppliedBatchBytes += appliedBatchRecordBytes(key);
+                    }
+                }
+                mLogBytes += RECORD_HEADER_BYTES + block.length;
+                continue;
+            }
+            closeOpenDay();
+            int index = find(day);
+            if(index < 0) {
+                index = insert(day);
+            }
+            addToTotal(index, total - mTotals[index]);
+            mBlocks[index] = block;
+            mLogBytes += RECORD_HEADER_BYTES + block.length;
+        }
+    }
+
+    /** Writes every day as one record, then every applied batch. */
+    void writeTo(DataOutputStream out) throws IOException {
+        for(int i=0;i<mCount;i++){
+            writeRecord(out, i);
+        }
+        for(Map.Entry<String, Long> entry : mAppliedBatches.entrySet()) {
+            writeAppliedBatchRecord(out, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static int writeAppliedBatchRecord(DataOutputStream out, String key,
+                                               long appliedMs) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        out.writeInt(APPLIED_BATCH_RECORD);
+        out.writeInt(0);
+        out.writeInt(APPLIED_MS_BYTES + keyBytes.length);
+        out.writeLong(appliedMs);
+        out.write(keyBytes);
+        return RECORD_HEADER_BYTES + APPLIED_MS_BYTES + keyBytes.length;
+    }
+
+    /** What the log would take up compacted: the days and the applied batches. */
+    private long getNeededLogBytes() {
+        return getEncodedBytes() + mAppliedBatchBytes;
+    }
+
+    private int writeRecord(DataOutputStream out, int index) throws IOException {
+        byte[] block = mBlocks[index];
+        int length;
+        if(block == null) {
+            block = mScratch;
+            length = encodeOpenDay();
+        } else {
+            length = block.length;
+        }
+        out.writeInt((int)mDays[index]);
+        out.writeInt(mTotals[index]);
+        out.writeInt(length);
+        out.write(block, 0, length);
+        return RECORD_HEADER_BYTES + length;
+    }
+
+    /**
+     * Appends the days changed since the last call, and the batches applied since then, to
+     * the log, and pushes it to disk. Returns true if they are all in the file. Returns
+     * false if there is no log, or it couldn't be written, in which case the log is closed
+     * and the store is only in memory from then on.
+     */
+    public synchronized boolean flushLog() {
+        if(mLog == null) {
+            return false;
+        }
+        try {
+            for(int i=0;i<mDirtyCount;i++){
+                mLogBytes += writeRecord(mLog, find(mDirtyDays[i]));
+            }
+            mDirtyCount = 0;
+            for(int i=0;i<mNewBatches.size();i++){
+                String key = mNewBatches.get(i);
+                Long appliedMs = mAppliedBatches.get(key);
+                if(appliedMs != null) {
+                    mLogBytes += writeAppliedBatchRecord(mLog, key, appliedMs);
+                }
+            }
+            mNewBatches.clear();
+            mLog.flush();
+            if(mLogBytes > 2 * getNeededLogBytes()) {
+                mLog.close();
+                mLog = null;
+                compactLog();
+                mLog = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mLogFile, true)));
+            }
+        } catch (IOException e) {
+            closeLog();
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void closeLog() {
+        if(mLog != null) {
+            try {
+                mLog.close();
+            } catch (IOException e) {
+                //Nothing more we can do
+            }
+            mLog = null;
+        }
+        mDirtyCount = 0;
+        mNewBatches.clear();
+    }
+
+    /** Rewrites the log with one record per day and per applied batch. */
+    private void compactLog() throws IOException {
+        File tmp = new File(mLogFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+        if(!tmp.renameTo(mLogFile)) {
+            throw new IOException("Could not replace " + mLogFile);
+        }
+        mLogBytes = getNeededLogBytes();
+    }
+}
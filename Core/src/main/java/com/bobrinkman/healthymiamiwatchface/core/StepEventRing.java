@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+/**
+ * Fixed-size buffer of step counter events (timestamp and raw count), used to collect a
+ * batch of sensor events before handling them all at once.
+ *
+ * Storage is preallocated primitive arrays, so pushing never allocates. If the buffer fills
+ * up, the oldest event is dropped. For a cumulative counter that only loses time
+ * resolution, not steps, since the next event's count includes it. That isn't so for the
+ * last event before the counter starts over, after a reboot, so that one is kept and the
+ * oldest event after it is dropped instead. Not thread safe: the sensor callback and the
+ * code that drains the buffer are expected to run on the same thread.
+ */
+public final class StepEventRing {
+    private final long[] mTimestampsNs;
+    private final int[] mCounts;
+    private final int mMask;
+    private int mHead; //index of the oldest event
+    private int mSize;
+    private long mDropped;
+
+    /** @param capacity rounded up to a power of two */
+    public StepEventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mTimestampsNs = new long[size];
+        mCounts = new int[size];
+        mMask = size - 1;
+    }
+
+    public void push(long timestampNs, int count) {
+        if(mSize == mCounts.length) {
+            drop(count);
+        }
+        int slot = (mHead + mSize) & mMask;
+        mTimestampsNs[slot] = timestampNs;
+        mCounts[slot] = count;
+        mSize++;
+    }
+
+    /**
+     * Drops the oldest event whose steps the event after it also counts, so none are lost.
+     * next is the count of the event about to be pushed.
+     */
+    private void drop(int next) {
+        int drop = 0;
+        for(int i=0;i<mSize;i++){
+            int after = i + 1 < mSize ? getCount(i + 1) : next;
+            if(after >= getCount(i)) {
+                drop = i;
+                break;
+            }
+        }
+        //Move the events before it up one, over it
+        for(int i=drop;i>0;i--){
+            int to = (mHead + i) & mMask;
+            int from = (mHead + i - 1) & mMask;
+            mTimestampsNs[to] = mTimestampsNs[from];
+            mCounts[to] = mCounts[from];
+        }
+        mHead = (mHead + 1) & mMask;
+        mSize--;
+        mDropped++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int capacity() {
+        return mCounts.length;
+    }
+
+    /** Timestamp of the i'th oldest event still in the buffer. */
+    public long getTimestampNs(int i) {
+        return mTimestampsNs[(mHead + i) & mMask];
+    }
+
+    /** Count of the i'th oldest event still in the buffer. */
+    public int getCount(int i) {
+        return mCounts[(mHead + i) & mMask];
+    }
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /** Number of events lost because the buffer was full. */
+    public long getDropped() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Steps per minute for the last few days.
+ *
+ * Minutes are numbered from the Unix epoch (UTC). Rather than the count for each minute, we
+ * keep a running total: slot m holds all steps up to and including minute m. A range sum is
+ * then just two lookups, and adding steps to the newest minute is one store. The totals are
+ * ints and are allowed to wrap, because only differences between them are ever used, and
+ * those stay small.
+ *
+ * The ring holds one more slot than the number of minutes it covers, so that the total
+ * just before the oldest minute is still there.
+ *
+ * Optionally backed by an append-only log of (minute, steps) records, which is replayed on
+ * open and compacted when it gets big. All methods are synchronized: updates come from the
+ * sensor thread, and reads can come from anywhere.
+ */
+public final class StepHistory {
+    public static final int MINUTES_PER_HOUR = 60;
+    public static final int MINUTES_PER_DAY = 24 * MINUTES_PER_HOUR;
+    public static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+
+    private static final int RECORD_BYTES = 8;
+
+    private final int mMinutes;
+    private final int[] mTotals;
+    //Minute held in the newest slot, or NONE if we have no data yet
+    private long mNewest = NONE;
+    //Nothing was recorded before this minute, so totals before it are 0
+    private long mFirst = NONE;
+    private int mTotal;
+    private long mDroppedSteps;
+
+    private File mLogFile;
+    private DataOutputStream mLog;
+    private long mLogRecords;
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    /** @param days how many days of history to keep */
+    public StepHistory(int days) {
+        mMinutes = days * MINUTES_PER_DAY;
+        mTotals = new int[mMinutes + 1];
+    }
+
+    /**
+     * Adds steps to the given minute. Normally this is the newest minute, or a later one.
+     * Late steps for an earlier minute still in the window cost time proportional to how
+     * late they are. Steps older than the window are dropped.
+     */
+    public synchronized void add(long minute, int steps) {
+        if(steps <= 0) {
+            return;
+        }
+        if(!addInMemory(minute, steps)) {
+            return;
+        }
+        if(mLog != null) {
+            try {
+                mLog.writeInt((int)minute);
+                mLog.writeInt(steps);
+                mLogRecords++;
+            } catch (IOException e) {
+                closeLog();
+            }
+        }
+    }
+
+    private boolean addInMemory(long minute, int steps) {
+        if(mNewest == NONE) {
+            mNewest = minute;
+            mFirst = minute;
+        } else if(minute > mNewest) {
+            advanceTo(minute);
+        } else if(minute <= mNewest - mMinutes) {
+            mDroppedSteps += steps;
+            return false;
+        }
+        if(minute < mFirst) {
+            mFirst = minute;
+        }
+        for(long m = minute; m <= mNewest; m++) {
+            mTotals[slot(m)] += steps;
+        }
+        mTotal += steps;
+        return true;
+    }
+
+    /** Starts new, empty, minutes up to and including minute. */
+    private void advanceTo(long minute) {
+        long from = Math.max(mNewest + 1, minute - mMinutes);
+        for(long m = from; m <= minute; m++) {
+            mTotals[slot(m)] = mTotal;
+        }
+        mNewest = minute;
+    }
+
+    private int slot(long minute) {
+        long s = minute % mTotals.length;
+        return (int)(s < 0 ? s + mTotals.length : s);
+    }
+
+    /**
+     * Steps from fromMinute (inclusive) to toMinute (exclusive). Anything outside the window
+     * we still have counts as 0.
+     */
+    public synchronized int sum(long fromMinute, long toMinute) {
+        if(mNewest == NONE) {
+            return 0;
+        }
+        long oldest = Math.max(mFirst, mNewest - mMinutes + 1);
+        long from = Math.max(fromMinute, oldest);
+        long to = Math.min(toMinute, mNewest + 1);
+        if(from >= to) {
+            return 0;
+        }
+        //Nothing was recorded before mFirst, so the total before it is 0
+        int before = (from == mFirst) ? 0 : mTotals[slot(from - 1)];
+        return mTotals[slot(to - 1)] - before;
+    }
+
+    public int sumHour(long hourStartMinute) {
+        return sum(hourStartMinute, hourStartMinute + MINUTES_PER_HOUR);
+    }
+
+    public int sumDay(long dayStartMinute) {
+        return sum(dayStartMinute, dayStartMinute + MINUTES_PER_DAY);
+    }
+
+    public int sumWeek(long weekStartMinute) {
+        return sum(weekStartMinute, weekStartMinute + MINUTES_PER_WEEK);
+    }
+
+    public synchronized long getNewestMinute() {
+        return mNewest;
+    }
+
+    /** Steps that arrived too late to fit in the window. */
+    public synchronized long getDroppedSteps() {
+        return mDroppedSteps;
+    }
+
+    /** Approximate heap used by this object and its arrays, in bytes. */
+    public long getMemoryFootprintBytes() {
+        //Object header plus fields, then the array header plus its ints
+        return 64 + 16 + 4L * mTotals.length;
+    }
+
+    /**
+     * Loads history from logFile, if it exists, and appends new steps to it from now on.
+     * The file is rewritten compactly first if it has grown to more than twice what the
+     * window needs, or if it ends in a partial record.
+     */
+    public synchronized void openLog(File logFile) throws IOException {
+        closeLog();
+        mLogFile = logFile;
+        mLogRecords = 0;
+        if(logFile.exists()) {
+            long length = logFile.length();
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(logFile)));
+            try {
+                for(long i = 0; i < length / RECORD_BYTES; i++) {
+                    int minute = in.readInt();
+                    int steps = in.readInt();
+                    if(steps > 0) {
+                        addInMemory(minute, steps);
+                    }
+                    mLogRecords++;
+                }
+            } catch (EOFException e) {
+                //File shrank under us, use what we got
+            } finally {
+                in.close();
+            }
+            if(length % RECORD_BYTES != 0 || mLogRecords > 2L * mMinutes) {
+                compactLog();
+            }
+        }
+        mLog = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(logFile, true)));
+    }
+
+    /** Pushes buffered log records to disk. Call after each batch of add() calls. */
+    public synchronized void flushLog() {
+        if(mLog == null) {
+            return;
+        }
+        try {
+            mLog.flush();
+            if(mLogRecords > 2L * mMinutes) {
+                mLog.close();
+                mLog = null;
+                compactLog();
+                mLog = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mLogFile, true)));
+            }
+        } catch (IOException e) {
+            closeLog();
+        }
+    }
+
+    public synchronized void closeLog() {
+        if(mLog != null) {
+            try {
+                mLog.close();
+            } catch (IOException e) {
+                //Nothing more we can do
+            }
+            mLog = null;
+        }
+    }
+
+    /** Rewrites the log with one record per non-empty minute in the window. */
+    private void compactLog() throws IOException {
+        File tmp = new File(mLogFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        long records = 0;
+        try {
+            if(mNewest != NONE) {
+                long oldest = Math.max(mFirst, mNewest - mMinutes + 1);
+                for(long m = oldest; m <= mNewest; m++) {
+                    int steps = sum(m, m + 1);
+                    if(steps > 0) {
+                        out.writeInt((int)m);
+                        out.writeInt(steps);
+                        records++;
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if(!tmp.renameTo(mLogFile)) {
+            throw new IOException("Could not replace " + mLogFile);
+        }
+        mLogRecords = records;
+    }
+}
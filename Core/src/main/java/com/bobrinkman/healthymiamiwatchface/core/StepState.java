@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+/**
+ * Immutable snapshot of the step bookkeeping: the day it belongs to, the last raw value from
+ * the step counter, and the raw value at midnight. Every change produces a new instance, so
+ * the whole snapshot can be swapped with a single compare-and-set and read from the render
+ * thread without locking.
+ *
+ * The step counter reports steps since reboot, so today's steps are always
+ * lastSteps - midnightSteps. After a reboot midnightSteps goes negative to preserve the
+ * steps taken before the reboot.
+ */
+public final class StepState {
+    public static final StepState EMPTY = new StepState(0, 0, 0);
+
+    /** year*10000 + month*100 + monthDay, in the format used by the CurDay preference */
+    private final int day;
+    private final int lastSteps;
+    private final int midnightSteps;
+
+    public StepState(int day, int lastSteps, int midnightSteps) {
+        this.day = day;
+        this.lastSteps = lastSteps;
+        this.midnightSteps = midnightSteps;
+    }
+
+    public int getDay() {
+        return day;
+    }
+
+    public int getLastSteps() {
+        return lastSteps;
+    }
+
+    public int getMidnightSteps() {
+        return midnightSteps;
+    }
+
+    public int getTodaySteps() {
+        return lastSteps - midnightSteps;
+    }
+
+    /**
+     * If todayIs greater than the day we stored, then it is a new day. But what if someone
+     * had a problem with the date on their device, and so the stored day is something far in
+     * the future? If the current day is at least 2 days before the stored day, we also treat
+     * it as a new day. The idea here is that if someone goes back and forth between two
+     * timezones we don't want to reset the counter multiple times.
+     */
+    public boolean isNewDay(int todayIs) {
+        return todayIs > day || todayIs < day-1;
+    }
+
+    /** Returns the state for the start of todayIs: whatever we have counted so far is midnight. */
+    public StepState rollOver(int todayIs) {
+        return new StepState(todayIs, lastSteps, lastSteps);
+    }
+
+    /**
+     * Returns the state after the step counter reported curStepCount. Two possibilities:
+     *  - Just a normal update of step count
+     *  - curStepCount < lastSteps ... this indicates a reboot.
+     */
+    public StepState withSensorCount(int curStepCount) {
+        if(curStepCount < lastSteps){
+            //If this was a reboot, then we want to save the amount of steps
+            // we had, by setting the midnight steps to an appropriate
+            // negative number
+            return new StepState(day, curStepCount, -(lastSteps - midnightSteps));
+        }
+        return new StepState(day, curStepCount, midnightSteps);
+    }
+
+    /**
+     * lastSteps < midnightSteps is an invalid state. This should only result from
+     * debugging, so callers should log it as an error.
+     */
+    public boolean isValid() {
+        return lastSteps >= midnightSteps;
+    }
+}
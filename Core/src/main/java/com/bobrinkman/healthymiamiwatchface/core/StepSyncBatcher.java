@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+/**
+ * Collects per-minute step counts on the watch and sends them to the phone in batches, so
+ * the radio isn't woken for every step.
+ *
+ * Steps for the same minute as the newest bucket are merged into it. A batch goes out as
+ * soon as maxBuckets minutes are waiting, or once the oldest waiting steps are maxDelayMs
+ * old, whichever comes first. A batch is at most maxBuckets minutes, the oldest waiting.
+ *
+ * Once a batch is encoded, its buckets and bytes are frozen until the transport reports
+ * it sent: later steps go into new buckets behind it. If the transport can't take it, says
+ * it failed, or hasn't answered after maxDelayMs, flushIfDue() sends the same bytes again
+ * under the same batch id once maxDelayMs has passed since the last try. The phone keys
+ * batches by id, so a batch that did arrive the first time isn't counted twice. While
+ * they wait, at most 4 * maxBuckets minutes are kept; past that, the oldest that aren't
+ * frozen are dropped and counted.
+ *
+ * Storage is preallocated, and the only allocation is in the transport. All methods are
+ * synchronized: steps come in on the sensor thread, flush() may be called from anywhere,
+ * and the transport may report back on any thread.
+ */
+public final class StepSyncBatcher {
+    private static final int BACKLOG_FACTOR = 4;
+
+    private final StepSyncTransport mTransport;
+    private final int mMaxBuckets;
+    private final long mMaxDelayMs;
+
+    //Waiting buckets, oldest first. The first mFrozenCount are the batch in mPayload
+    private final long[] mMinutes;
+    private final int[] mSteps;
+    private int mCount;
+    private int mFrozenCount;
+    //When the oldest waiting steps that aren't frozen arrived
+    private long mOldestMs;
+    private long mLastBatchId;
+    private final byte[] mPayload;
+    private int mPayloadLength;
+    //Whether mPayload has gone to the transport and it hasn't answered yet
+    private boolean mInFlight;
+    private long mSentAtMs;
+    //Whether the transport is in send(), so an answer from inside it doesn't send on
+    private boolean mSending;
+    //After a failed send, don't try again before this
+    private long mRetryAtMs;
+
+    private long mBatchesSent;
+    private long mBucketsSent;
+    private long mBytesSent;
+    private long mSendFailures;
+    private long mDroppedBuckets;
+
+    private final StepSyncTransport.Callback mSendCallback = new StepSyncTransport.Callback() {
+        @Override
+        public void onSendDone(long batchId, boolean success) {
+            onBatchDone(batchId, success);
+        }
+    };
+
+    public StepSyncBatcher(StepSyncTransport transport, int maxBuckets, long maxDelayMs) {
+        mTransport = transport;
+        mMaxBuckets = maxBuckets;
+        mMaxDelayMs = maxDelayMs;
+        mMinutes = new long[BACKLOG_FACTOR * maxBuckets];
+        mSteps = new int[BACKLOG_FACTOR * maxBuckets];
+        mPayload = new byte[StepBatchCodec.maxEncodedSize(maxBuckets)];
+    }
+
+    public long getMaxDelayMs() {
+        return mMaxDelayMs;
+    }
+
+    /**
+     * Adds steps taken in minute, which arrived at nowMs, and sends a batch if enough are
+     * waiting.
+     */
+    public synchronized void add(long minute, int steps, long nowMs) {
+        if(steps <= 0) {
+            return;
+        }
+        if(mCount > mFrozenCount && mMinutes[mCount - 1] == minute) {
+            mSteps[mCount - 1] += steps;
+        } else {
+            if(mCount == mMinutes.length) {
+                //A frozen batch is at most a quarter of the backlog, so there's one to drop
+                int drop = mFrozenCount;
+                System.arraycopy(mMinutes, drop + 1, mMinutes, drop, mCount - drop - 1);
+                System.arraycopy(mSteps, drop + 1, mSteps, drop, mCount - drop - 1);
+                mCount--;
+                mDroppedBuckets++;
+            }
+            if(mCount == mFrozenCount) {
+                mOldestMs = nowMs;
+            }
+            mMinutes[mCount] = minute;
+            mSteps[mCount] = steps;
+            mCount++;
+        }
+        if(mCount >= mMaxBuckets) {
+            flushIfDue(nowMs);
+        }
+    }
+
+    /**
+     * Sends the waiting buckets if there are maxBuckets of them or the oldest have waited
+     * maxDelayMs, or sends the last batch again if its try failed or went unanswered.
+     * Returns true if the transport took a batch.
+     */
+    public synchronized boolean flushIfDue(long nowMs) {
+        if(mInFlight) {
+            if(nowMs - mSentAtMs < mMaxDelayMs) {
+                return false;
+            }
+            //No answer: count it as failed and send it again below
+            mInFlight = false;
+            mSendFailures++;
+        } else if(nowMs < mRetryAtMs) {
+            return false;
+        }
+        return sendWhileDue(nowMs);
+    }
+
+    /**
+     * Sends whatever is waiting now, unless a batch is already on its way. Returns false if
+     * the transport didn't take it.
+     */
+    public synchronized boolean flush(long nowMs) {
+        while(mCount > 0 && !mInFlight) {
+            if(!send(nowMs)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean sendWhileDue(long nowMs) {
+        boolean sent = false;
+        while(!mInFlight && isDue(nowMs)) {
+            if(!send(nowMs)) {
+                break;
+            }
+            sent = true;
+        }
+        return sent;
+    }
+
+    private boolean isDue(long nowMs) {
+        return mFrozenCount > 0 || mCount >= mMaxBuckets
+                || (mCount > 0 && nowMs - mOldestMs >= mMaxDelayMs);
+    }
+
+    /**
+     * Sends the frozen batch, freezing the oldest buckets into one first if there isn't
+     * one. Returns true if it was sent or is on its way.
+     */
+    private boolean send(long nowMs) {
+        if(mFrozenCount == 0) {
+            //Batch ids only need to be unique for this watch. The time is, across restarts
+            // too, as long as we don't send more than one batch per millisecond
+            mLastBatchId = Math.max(nowMs, mLastBatchId + 1);
+            mFrozenCount = Math.min(mCount, mMaxBuckets);
+            mPayloadLength = StepBatchCodec.encode(mLastBatchId, mMinutes, mSteps,
+                    mFrozenCount, mPayload);
+        }
+        mInFlight = true;
+        mSentAtMs = nowMs;
+        mSending = true;
+        boolean taken = mTransport.send(mLastBatchId, mPayload, mPayloadLength, mSendCallback);
+        mSending = false;
+        if(!taken) {
+            mInFlight = false;
+            mSendFailures++;
+            mRetryAtMs = nowMs + mMaxDelayMs;
+            return false;
+        }
+        //The transport may have answered already
+        return mInFlight || mFrozenCount == 0;
+    }
+
+    private synchronized void onBatchDone(long batchId, boolean success) {
+        //An answer to a try we already gave up on, for a batch that has since gone through
+        if(mFrozenCount == 0 || batchId != mLastBatchId) {
+            return;
+        }
+        mInFlight = false;
+        if(!success) {
+            mSendFailures++;
+            mRetryAtMs = mSentAtMs + mMaxDelayMs;
+            return;
+        }
+        mRetryAtMs = 0;
+        mBatchesSent++;
+        mBucketsSent += mFrozenCount;
+        mBytesSent += mPayloadLength;
+        mCount -= mFrozenCount;
+        System.arraycopy(mMinutes, mFrozenCount, mMinutes, 0, mCount);
+        System.arraycopy(mSteps, mFrozenCount, mSteps, 0, mCount);
+        mFrozenCount = 0;
+        //The rest of a backlog is due straight away
+        if(!mSending) {
+            sendWhileDue(mSentAtMs);
+        }
+    }
+
+    /** Buckets waiting to be sent, including a batch that is on its way. */
+    public synchronized int getPendingBuckets() {
+        return mCount;
+    }
+
+    public synchronized long getBatchesSent() {
+        return mBatchesSent;
+    }
+
+    public synchronized long getBucketsSent() {
+        return mBucketsSent;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized long getSendFailures() {
+        return mSendFailures;
+    }
+
+    /** Buckets lost because too many were waiting for the transport. */
+    public synchronized long getDroppedBuckets() {
+        return mDroppedBuckets;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import java.io.IOException;
+
+/**
+ * The phone's end of step sync: adds each batch the watch sends to a StepBlockStore, once,
+ * however many times and in whatever order batches are delivered.
+ *
+ * A batch is known by where it came from and its id, which is only unique per watch.
+ * Nothing else about ids can be relied on: a watch whose clock is set back makes smaller
+ * ones, and two watches can make the same one. So the store keeps the key of every batch
+ * it adds, for KEEP_MS, and a batch whose key is there is skipped. A batch delivered again
+ * after that long would be counted twice, but that needs its delete to have failed for
+ * weeks. Synchronized, though the listener only calls it from one thread.
+ */
+public final class StepSyncReceiver {
+    /** How long an added batch is remembered. */
+    public static final long KEEP_MS = 30L * 24 * 60 * 60 * 1000;
+
+    /** receive() added the batch's steps. */
+    public static final int ADDED = 0;
+    /** receive() skipped the batch, because it was added before. */
+    public static final int DUPLICATE = 1;
+
+    //For checking that a whole batch decodes before adding any of it
+    private static final StepBatchCodec.Sink IGNORE_BUCKETS = new StepBatchCodec.Sink() {
+        @Override
+        public void onBucket(long minute, int steps) {
+        }
+    };
+
+    private final StepBlockStore mStore;
+    private final StepBatchCodec.Sink mStoreSink = new StepBatchCodec.Sink() {
+        @Override
+        public void onBucket(long minute, int steps) {
+            mStore.add(minute, steps);
+        }
+    };
+
+    public StepSyncReceiver(StepBlockStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Adds the first length bytes of data, a batch from source (e.g. the sending node's
+     * id), unless it was added before. nowMs is the time, in ms since the epoch, it is
+     * remembered from. Returns ADDED or DUPLICATE. Throws IOException, and adds nothing, if
+     * the batch can't be decoded. The caller still has to flush the store's log.
+     */
+    public synchronized int receive(String source, byte[] data, int length, long nowMs)
+            throws IOException {
+        long batchId = StepBatchCodec.decode(data, length, IGNORE_BUCKETS);
+        String key = source + "/" + batchId;
+        StepBlockStore store = mStore;
+        if(store.isBatchApplied(key)) {
+            return DUPLICATE;
+        }
+        StepBatchCodec.decode(data, length, mStoreSink);
+        store.markBatchApplied(key, nowMs);
+        return ADDED;
+    }
+
+    /** Forgets the batches added more than KEEP_MS before nowMs. */
+    public synchronized void prune(long nowMs) {
+        mStore.pruneAppliedBatches(nowMs - KEEP_MS);
+    }
+}
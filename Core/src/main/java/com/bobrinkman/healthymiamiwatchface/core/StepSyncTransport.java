@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+/**
+ * Carries encoded step batches from the watch to the phone. The real one goes over the
+ * Wearable Data Layer; LoopbackStepSyncTransport delivers them in process, for tests and
+ * benchmarks.
+ */
+public interface StepSyncTransport {
+    /** Hears how a send that the transport took on turned out. */
+    public interface Callback {
+        void onSendDone(long batchId, boolean success);
+    }
+
+    /**
+     * Starts sending one batch, encoded by StepBatchCodec. Returns false if it can't be sent
+     * right now, in which case callback is never called and the caller keeps the steps for
+     * later. Otherwise callback is called once, from any thread, possibly before this
+     * returns. payload is not used after this returns.
+     *
+     * A batch may be sent again under the same id if the first try failed or never
+     * finished, so the far end must treat a batch id it already has as the same batch.
+     */
+    boolean send(long batchId, byte[] payload, int length, Callback callback);
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Owns the current StepState and applies day rollovers and step counter readings to it.
+ *
+ * Lock-free: each update builds a new immutable StepState from the one it read, and only
+ * installs it if nobody else got there first, otherwise it retries. This lets the sensor
+ * thread and the render thread both update the state without ever blocking each other.
+ * Every update method returns true if the state changed, so the caller knows it has
+ * something new to persist.
+ */
+public final class StepTracker {
+    private final AtomicReference<StepState> mState =
+            new AtomicReference<>(StepState.EMPTY);
+
+    public StepState get() {
+        return mState.get();
+    }
+
+    public int getTodaySteps() {
+        return mState.get().getTodaySteps();
+    }
+
+    /** Replaces the state outright, e.g. with what was loaded from storage. */
+    public void set(StepState state) {
+        mState.set(state);
+    }
+
+    /**
+     * Checks for day rollover. When the day changes, the current step count becomes the
+     * midnight step count. If nothing was ever stored, this sets the current day and step
+     * count, which is probably the right thing to do.
+     */
+    public boolean rollOverIfNewDay(int todayIs) {
+        while(true) {
+            StepState cur = mState.get();
+            if(!cur.isNewDay(todayIs)) {
+                return false;
+            }
+            if(mState.compareAndSet(cur, cur.rollOver(todayIs))) {
+                return true;
+            }
+        }
+    }
+
+    /** Applies a reading from the step counter, which counts steps since reboot. */
+    public boolean onSensorCount(int curStepCount) {
+        while(true) {
+            StepState cur = mState.get();
+            StepState next = cur.withSensorCount(curStepCount);
+            if(next.getLastSteps() == cur.getLastSteps()
+                    && next.getMidnightSteps() == cur.getMidnightSteps()) {
+                return false;
+            }
+            if(mState.compareAndSet(cur, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * If the state is invalid (more steps at midnight than now), clears it. Since this
+     * should only happen while debugging, there is no point trying to salvage it.
+     */
+    public boolean resetIfInvalid() {
+        while(true) {
+            StepState cur = mState.get();
+            if(cur.isValid()) {
+                return false;
+            }
+            if(mState.compareAndSet(cur, StepState.EMPTY)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ActivityMetricsTest {
+    private static final long SECOND_MS = 1000;
+    private static final long MINUTE_MS = 60 * SECOND_MS;
+    private static final long DAY_MS = 24 * 60 * MINUTE_MS;
+    //Local midnight starting 2015-05-04, plus 10 hours
+    private static final long START_MS = 16559L * DAY_MS + 10 * 60 * MINUTE_MS;
+
+    @Test
+    public void cadenceCountsTheLast30Seconds() {
+        ActivityMetrics metrics = new ActivityMetrics();
+        //Two steps a second for 40 seconds: 120 steps a minute
+        for(int s=0;s<40;s++){
+            metrics.add(START_MS + s * SECOND_MS, 2);
+        }
+        assertEquals(120, metrics.getCadence());
+        //Standing still, each second that passes drops one second of steps
+        metrics.advanceTo(START_MS + 49 * SECOND_MS);
+        assertEquals(2 * 20 * 60 / 30, metrics.getCadence());
+        metrics.advanceTo(START_MS + 69 * SECOND_MS);
+        assertEquals(0, metrics.getCadence());
+    }
+
+    @Test
+    public void windowsDropMinutesAsTheyAgeOut() {
+        ActivityMetrics metrics = new ActivityMetrics();
+        //Minute i gets i + 1 steps, for 70 minutes
+        for(int i=0;i<70;i++){
+            metrics.add(START_MS + i * MINUTE_MS, i + 1);
+        }
+        //The last 10 minutes have 61..70 steps, the last 60 have 11..70
+        assertEquals(sum(61, 70), metrics.getShortWindowSteps());
+        assertEquals(sum(11, 70), metrics.getLongWindowSteps());
+
+        metrics.advanceTo(START_MS + 75 * MINUTE_MS);
+        assertEquals(sum(67, 70), metrics.getShortWindowSteps());
+        assertEquals(sum(17, 70), metrics.getLongWindowSteps());
+
+        //A long gap empties everything
+        metrics.advanceTo(START_MS + 200 * MINUTE_MS);
+        assertEquals(0, metrics.getShortWindowSteps());
+        assertEquals(0, metrics.getLongWindowSteps());
+        assertEquals(0, metrics.getCadence());
+    }
+
+    private static int sum(int from, int to) {
+        return (from + to) * (to - from + 1) / 2;
+    }
+
+    @Test
+    public void lateStepsCountIfTheirMinuteIsStillInTheWindow() {
+        ActivityMetrics metrics = new ActivityMetrics();
+        metrics.add(START_MS + 30 * MINUTE_MS, 5);
+        //5 minutes late: in both windows
+        metrics.add(START_MS + 25 * MINUTE_MS, 7);
+        //20 minutes late: only in the long window
+        metrics.add(START_MS + 10 * MINUTE_MS, 11);
+        //An hour late: dropped
+        metrics.add(START_MS - 31 * MINUTE_MS, 13);
+        assertEquals(12, metrics.getShortWindowSteps());
+        assertEquals(23, metrics.getLongWindowSteps());
+        assertEquals(13, metrics.getLateSteps());
+        assertEquals(4, metrics.getEvents());
+    }
+
+    @Test
+    public void activeMinutesCountTodayOnly() {
+        ActivityMetrics metrics = new ActivityMetrics();
+        int threshold = ActivityMetrics.ACTIVE_MINUTE_STEPS;
+        //Crosses the threshold in two events, then goes on past it
+        metrics.add(START_MS, threshold - 1);
+        assertEquals(0, metrics.getActiveMinutesToday());
+        metrics.add(START_MS + 30 * SECOND_MS, 1);
+        metrics.add(START_MS + 40 * SECOND_MS, 50);
+        assertEquals(1, metrics.getActiveMinutesToday());
+        metrics.add(START_MS + 2 * MINUTE_MS, threshold);
+        assertEquals(2, metrics.getActiveMinutesToday());
+
+        //Local midnight starts again from 0, and a late minute from yesterday doesn't count
+        long midnight = START_MS - START_MS % DAY_MS + DAY_MS;
+        metrics.add(midnight + 5 * SECOND_MS, 1);
+        assertEquals(0, metrics.getActiveMinutesToday());
+        metrics.add(midnight - 10 * SECOND_MS, threshold);
+        assertEquals(0, metrics.getActiveMinutesToday());
+    }
+
+    @Test
+    public void seedOnlyRaisesTodaysActiveMinutes() {
+        ActivityMetrics metrics = new ActivityMetrics();
+        metrics.add(START_MS, ActivityMetrics.ACTIVE_MINUTE_STEPS);
+        metrics.seedActiveMinutesToday(START_MS + SECOND_MS, 40);
+        assertEquals(40, metrics.getActiveMinutesToday());
+        metrics.seedActiveMinutesToday(START_MS + SECOND_MS, 10);
+        assertEquals(40, metrics.getActiveMinutesToday());
+        //About yesterday, after today has started
+        metrics.seedActiveMinutesToday(START_MS - DAY_MS, 90);
+        assertEquals(40, metrics.getActiveMinutesToday());
+    }
+
+    @Test
+    public void randomEventsMatchARecount() {
+        Random random = new Random(7);
+        ActivityMetrics metrics = new ActivityMetrics();
+        //Each event's time and steps, to count the windows again from scratch
+        int count = 20000;
+        long[] times = new long[count];
+        int[] steps = new int[count];
+        long now = START_MS;
+        long newest = START_MS;
+        for(int i=0;i<count;i++){
+            now += random.nextInt(random.nextInt(20) == 0 ? (int)(20 * MINUTE_MS) : 3000);
+            //Mostly on time, sometimes a little late
+            long time = now - (random.nextInt(10) == 0 ? random.nextInt((int)(5 * MINUTE_MS)) : 0);
+            times[i] = time;
+            steps[i] = 1 + random.nextInt(5);
+            metrics.add(time, steps[i]);
+
+            newest = Math.max(newest, time);
+            long newestSecond = newest / SECOND_MS;
+            long newestMinute = newestSecond / 60;
+            int cadence = 0;
+            int shortWindow = 0;
+            int longWindow = 0;
+            for(int j=Math.max(0, i - 3000);j<=i;j++){
+                long second = times[j] / SECOND_MS;
+                long minute = second / 60;
+                if(newestSecond - second < ActivityMetrics.CADENCE_WINDOW_SECONDS) {
+                    cadence += steps[j];
+                }
+                if(newestMinute - minute < ActivityMetrics.SHORT_WINDOW_MINUTES) {
+                    shortWindow += steps[j];
+                }
+                if(newestMinute - minute < ActivityMetrics.LONG_WINDOW_MINUTES) {
+                    longWindow += steps[j];
+                }
+            }
+            assertEquals(cadence * 60 / ActivityMetrics.CADENCE_WINDOW_SECONDS,
+                    metrics.getCadence());
+            assertEquals(shortWindow, metrics.getShortWindowSteps());
+            assertEquals(longWindow, metrics.getLongWindowSteps());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FaceClockTest {
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long DAY_MS = 24 * 60 * MINUTE_MS;
+    //2015-01-01T00:00:00Z
+    private static final long START_MS = 1420070400000L;
+
+    private static final String[] ZONES = {
+            "UTC", "America/New_York", "Europe/London", "Australia/Adelaide",
+            "Asia/Kathmandu", "Pacific/Apia"
+    };
+
+    /** Checks every field against a GregorianCalendar at the same time. */
+    private static void assertMatchesCalendar(FaceClock clock, long timeMs, TimeZone zone) {
+        Calendar calendar = new GregorianCalendar(zone);
+        calendar.setTimeInMillis(timeMs);
+        String at = zone.getID() + " at " + timeMs;
+        assertEquals(at, calendar.get(Calendar.HOUR_OF_DAY), clock.getHour());
+        assertEquals(at, calendar.get(Calendar.MINUTE), clock.getMinute());
+        assertEquals(at, calendar.get(Calendar.SECOND), clock.getSecond());
+        assertEquals(at, calendar.get(Calendar.MILLISECOND), clock.getMillis());
+        assertEquals(at, calendar.get(Calendar.YEAR), clock.getYear());
+        assertEquals(at, calendar.get(Calendar.MONTH), clock.getMonth());
+        assertEquals(at, calendar.get(Calendar.DAY_OF_MONTH), clock.getMonthDay());
+        assertEquals(at, zone.getOffset(timeMs), clock.getOffsetMs());
+    }
+
+    @Test
+    public void framesThroughAYearMatchCalendar() {
+        //Frames 50 ms apart for a minute around each step, then a jump of a bit under
+        // 7 hours, so every zone's daylight saving changes are crossed several ways
+        for(String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            FaceClock clock = new FaceClock(zone);
+            for(long base = START_MS; base < START_MS + 366 * DAY_MS; base += 397 * MINUTE_MS) {
+                for(long t = base - MINUTE_MS/2; t < base + MINUTE_MS/2; t += 50) {
+                    clock.update(t);
+                    assertMatchesCalendar(clock, t, zone);
+                }
+            }
+            assertTrue(clock.getIncrementalMinutes() > 0);
+        }
+    }
+
+    @Test
+    public void minuteTicksAcrossDaylightSavingMatchCalendar() {
+        //Ambient mode: one frame a minute, all through the days either side of the changes
+        TimeZone zone = TimeZone.getTimeZone("America/New_York");
+        FaceClock clock = new FaceClock(zone);
+        long[] changes = {1425798000000L, 1446357600000L};
+        for(long change : changes) {
+            for(long t = change - DAY_MS; t < change + DAY_MS; t += MINUTE_MS) {
+                clock.update(t);
+                assertMatchesCalendar(clock, t, zone);
+            }
+        }
+    }
+
+    @Test
+    public void randomTimesAndZoneChangesMatchCalendar() {
+        Random random = new Random(42);
+        TimeZone zone = TimeZone.getTimeZone(ZONES[0]);
+        FaceClock clock = new FaceClock(zone);
+        long t = START_MS;
+        for(int i=0;i<100000;i++){
+            int what = random.nextInt(100);
+            if(what == 0) {
+                zone = TimeZone.getTimeZone(ZONES[random.nextInt(ZONES.length)]);
+                clock.setTimeZone(zone);
+            } else if(what < 5) {
+                //Set back, or jumped ahead, e.g. by the network time
+                t += (long)(random.nextGaussian() * DAY_MS);
+            } else {
+                t += random.nextInt(2 * (int)MINUTE_MS);
+            }
+            clock.update(t);
+            assertMatchesCalendar(clock, t, zone);
+        }
+    }
+
+    @Test
+    public void timesBeforeTheEpochMatchCalendar() {
+        TimeZone zone = TimeZone.getTimeZone("America/New_York");
+        FaceClock clock = new FaceClock(zone);
+        for(long t = -DAY_MS - 1234; t < DAY_MS; t += 7 * MINUTE_MS + 1) {
+            clock.update(t);
+            assertMatchesCalendar(clock, t, zone);
+        }
+    }
+}
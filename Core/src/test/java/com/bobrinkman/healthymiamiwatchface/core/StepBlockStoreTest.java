@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StepBlockStoreTest {
+    private static final int DAY = StepBlockStore.MINUTES_PER_DAY;
+    //2015-05-04, in minutes since the epoch
+    private static final long START_MINUTE = 16559L * DAY;
+    private static final int DAYS = 20;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /** Fills store and steps (indexed from START_MINUTE) with the same random walking. */
+    private static void addWalking(StepBlockStore store, int[] steps, Random random) {
+        for(int i=0;i<steps.length;i++){
+            //A few hours of walking a day, in bursts
+            if(random.nextInt(10) == 0) {
+                int n = 1 + random.nextInt(120);
+                steps[i] += n;
+                store.add(START_MINUTE + i, n);
+            }
+        }
+    }
+
+    private static long naiveSum(int[] steps, long fromMinute, long toMinute) {
+        long total = 0;
+        for(long m = Math.max(fromMinute, START_MINUTE);
+            m < Math.min(toMinute, START_MINUTE + steps.length); m++) {
+            total += steps[(int)(m - START_MINUTE)];
+        }
+        return total;
+    }
+
+    private static void assertSameSteps(int[] steps, StepBlockStore store, Random random) {
+        assertEquals(naiveSum(steps, 0, Long.MAX_VALUE), store.sum(0, Long.MAX_VALUE));
+        for(int i=0;i<2000;i++){
+            long from = START_MINUTE - DAY + random.nextInt((DAYS + 2) * DAY);
+            long to = from + random.nextInt(3 * DAY);
+            assertEquals(naiveSum(steps, from, to), store.sum(from, to));
+        }
+        for(int d=-1;d<=DAYS;d++){
+            long day = START_MINUTE / DAY + d;
+            assertEquals(naiveSum(steps, day * DAY, (day + 1) * DAY), store.sumDay(day));
+        }
+    }
+
+    @Test
+    public void sumMatchesNaiveSum() {
+        Random random = new Random(1);
+        StepBlockStore store = new StepBlockStore();
+        int[] steps = new int[DAYS * DAY];
+        addWalking(store, steps, random);
+        assertEquals(DAYS, store.getDayCount());
+        assertSameSteps(steps, store, random);
+
+        long firstDay = START_MINUTE / DAY;
+        assertEquals(naiveSum(steps, START_MINUTE + 3 * DAY, START_MINUTE + 10 * DAY),
+                store.sumDays(firstDay + 3, firstDay + 10));
+        int[] totals = new int[DAYS + 2];
+        store.getDayTotals(firstDay - 1, totals);
+        assertEquals(0, totals[0]);
+        for(int d=0;d<DAYS;d++){
+            assertEquals(store.sumDay(firstDay + d), totals[d + 1]);
+        }
+        assertEquals(0, totals[DAYS + 1]);
+    }
+
+    @Test
+    public void emptyAndBackwardRangesSumToZero() {
+        StepBlockStore store = new StepBlockStore();
+        assertEquals(0, store.sum(0, Long.MAX_VALUE));
+        store.add(START_MINUTE, 10);
+        assertEquals(0, store.sum(START_MINUTE + 1, START_MINUTE));
+        assertEquals(0, store.sum(START_MINUTE, START_MINUTE));
+        assertEquals(10, store.sum(START_MINUTE, START_MINUTE + 1));
+        //Nothing happens for steps that aren't there
+        store.add(START_MINUTE + 1, 0);
+        store.add(START_MINUTE + 1, -5);
+        assertEquals(10, store.sum(0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void lateStepsForEarlierDaysAreAdded() {
+        Random random = new Random(2);
+        StepBlockStore store = new StepBlockStore();
+        int[] steps = new int[DAYS * DAY];
+        addWalking(store, steps, random);
+        //Late arrivals for closed days, and the newest day after it was closed
+        for(int i=0;i<500;i++){
+            int minute = random.nextInt(steps.length);
+            int n = 1 + random.nextInt(50);
+            steps[minute] += n;
+            store.add(START_MINUTE + minute, n);
+        }
+        assertSameSteps(steps, store, random);
+    }
+
+    @Test
+    public void lateStepsForADayWithNoStepsAreAdded() {
+        StepBlockStore store = new StepBlockStore();
+        store.add(START_MINUTE + 10 * DAY, 5);
+        store.add(START_MINUTE + 2 * DAY + 17, 33);
+        store.add(START_MINUTE + 20, 4);
+        assertEquals(3, store.getDayCount());
+        assertEquals(33, store.sum(START_MINUTE + DAY, START_MINUTE + 3 * DAY));
+        assertEquals(33, store.sumDay(START_MINUTE / DAY + 2));
+        assertEquals(42, store.sum(0, Long.MAX_VALUE));
+        //The newest day is still open
+        store.add(START_MINUTE + 10 * DAY + 1, 5);
+        assertEquals(10, store.sumDay(START_MINUTE / DAY + 10));
+    }
+
+    @Test
+    public void logReplaysToTheSameSteps() throws IOException {
+        Random random = new Random(3);
+        File log = new File(mFolder.getRoot(), "steps.bin");
+        StepBlockStore store = new StepBlockStore();
+        store.openLog(log);
+        int[] steps = new int[DAYS * DAY];
+        //Flush every few hours, as the phone would after each batch
+        for(int i=0;i<steps.length;i++){
+            if(random.nextInt(10) == 0) {
+                int n = 1 + random.nextInt(120);
+                steps[i] += n;
+                store.add(START_MINUTE + i, n);
+            }
+            if(i % 200 == 0) {
+                assertTrue(store.flushLog());
+            }
+        }
+        store.add(START_MINUTE + 5, 7);
+        steps[5] += 7;
+        store.markBatchApplied("watch/123456789", 1000);
+        assertTrue(store.flushLog());
+        store.closeLog();
+
+        StepBlockStore loaded = new StepBlockStore();
+        loaded.openLog(log);
+        assertEquals(DAYS, loaded.getDayCount());
+        assertTrue(loaded.isBatchApplied("watch/123456789"));
+        assertEquals(1, loaded.getAppliedBatchCount());
+        assertSameSteps(steps, loaded, random);
+
+        //The newest day can still be added to after a reload
+        loaded.add(START_MINUTE + steps.length - 1, 9);
+        steps[steps.length - 1] += 9;
+        assertSameSteps(steps, loaded, random);
+        loaded.closeLog();
+    }
+
+    @Test
+    public void logIsCompactedWhenItGetsBig() throws IOException {
+        File log = new File(mFolder.getRoot(), "steps.bin");
+        StepBlockStore store = new StepBlockStore();
+        store.openLog(log);
+        //Rewriting one day over and over appends a record each time
+        for(int i=0;i<500;i++){
+            store.add(START_MINUTE + i, 10);
+            store.markBatchApplied("watch/" + i, i);
+            assertTrue(store.flushLog());
+            //Each applied batch takes a 12 byte header, its time and a key of up to 9 bytes
+            long needed = store.getEncodedBytes() + 29L * store.getAppliedBatchCount();
+            assertTrue(log.length() <= 2 * needed + 100);
+        }
+        store.closeLog();
+
+        StepBlockStore loaded = new StepBlockStore();
+        loaded.openLog(log);
+        assertEquals(5000, loaded.sum(0, Long.MAX_VALUE));
+        assertEquals(500, loaded.getAppliedBatchCount());
+        loaded.closeLog();
+    }
+
+    @Test
+    public void prunedBatchesLeaveTheLogAtTheNextCompaction() throws IOException {
+        File log = new File(mFolder.getRoot(), "steps.bin");
+        StepBlockStore store = new StepBlockStore();
+        store.openLog(log);
+        for(int i=0;i<100;i++){
+            store.add(START_MINUTE + i, 1);
+            store.markBatchApplied("watch/" + i, i * 1000L);
+            assertTrue(store.flushLog());
+        }
+        assertEquals(50, store.pruneAppliedBatches(50 * 1000L));
+        assertFalse(store.isBatchApplied("watch/49"));
+        assertTrue(store.isBatchApplied("watch/50"));
+        //Enough new records to need a compaction, which leaves out the pruned batches
+        for(int i=0;i<300;i++){
+            store.add(START_MINUTE + 200 + i, 1);
+            assertTrue(store.flushLog());
+        }
+        store.closeLog();
+
+        StepBlockStore loaded = new StepBlockStore();
+        loaded.openLog(log);
+        assertEquals(50, loaded.getAppliedBatchCount());
+        assertFalse(loaded.isBatchApplied("watch/0"));
+        assertTrue(loaded.isBatchApplied("watch/99"));
+        assertEquals(400, loaded.sum(0, Long.MAX_VALUE));
+        loaded.closeLog();
+    }
+
+    @Test
+    public void partialRecordAtTheEndIsDropped() throws IOException {
+        File log = new File(mFolder.getRoot(), "steps.bin");
+        StepBlockStore store = new StepBlockStore();
+        store.openLog(log);
+        store.add(START_MINUTE, 10);
+        store.add(START_MINUTE + DAY, 20);
+        assertTrue(store.flushLog());
+        store.closeLog();
+        long goodLength = log.length();
+
+        //As if we died halfway through appending a record
+        FileOutputStream out = new FileOutputStream(log, true);
+        out.write(new byte[] {0, 0, 0x40, 0, 0, 0, 0});
+        out.close();
+
+        StepBlockStore loaded = new StepBlockStore();
+        loaded.openLog(log);
+        assertEquals(30, loaded.sum(0, Long.MAX_VALUE));
+        loaded.closeLog();
+        assertEquals(goodLength, log.length());
+    }
+
+    @Test
+    public void flushWithoutLogFails() {
+        StepBlockStore store = new StepBlockStore();
+        store.add(START_MINUTE, 10);
+        assertFalse(store.flushLog());
+    }
+}
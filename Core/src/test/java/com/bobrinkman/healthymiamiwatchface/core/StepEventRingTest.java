@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StepEventRingTest {
+    /** Steps in the events after a count of previous, as the engine adds them up. */
+    private static int steps(StepEventRing ring, int previous) {
+        int total = 0;
+        for(int i=0;i<ring.size();i++){
+            int count = ring.getCount(i);
+            //After a reboot the counter starts over from 0
+            total += count >= previous ? count - previous : count;
+            previous = count;
+        }
+        return total;
+    }
+
+    @Test
+    public void overflowDropsTheOldestAndKeepsTheSteps() {
+        StepEventRing ring = new StepEventRing(4);
+        for(int i=1;i<=6;i++){
+            ring.push(i * 1000L, 100 + 10 * i);
+        }
+        assertEquals(4, ring.size());
+        assertEquals(2, ring.getDropped());
+        assertEquals(3000L, ring.getTimestampNs(0));
+        assertEquals(60, steps(ring, 100));
+    }
+
+    @Test
+    public void overflowKeepsTheLastCountBeforeAReboot() {
+        StepEventRing ring = new StepEventRing(4);
+        int[] counts = {110, 120, 5, 10, 15, 20};
+        for(int i=0;i<counts.length;i++){
+            ring.push(i * 1000L, counts[i]);
+        }
+        assertEquals(4, ring.size());
+        //20 steps before the reboot and 20 after
+        assertEquals(40, steps(ring, 100));
+        assertEquals(120, ring.getCount(0));
+        assertEquals(20, ring.getCount(3));
+        //Still in time order
+        for(int i=1;i<ring.size();i++){
+            assertTrue(ring.getTimestampNs(i) > ring.getTimestampNs(i - 1));
+        }
+    }
+
+    @Test
+    public void newestCountBeforeARebootIsKept() {
+        StepEventRing ring = new StepEventRing(2);
+        ring.push(1000L, 110);
+        ring.push(2000L, 120);
+        ring.push(3000L, 5);
+        assertEquals(2, ring.size());
+        assertEquals(120 - 100 + 5, steps(ring, 100));
+    }
+}
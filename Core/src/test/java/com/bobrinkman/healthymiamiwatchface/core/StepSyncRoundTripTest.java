@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Steps through StepSyncBatcher, StepBatchCodec and LoopbackStepSyncTransport. */
+public class StepSyncRoundTripTest {
+    private static final int MAX_BUCKETS = 16;
+    private static final long MAX_DELAY_MS = 60 * 1000;
+    //2015-05-04T10:00Z, in minutes since the epoch
+    private static final long START_MINUTE = 16559L * 24 * 60 + 10 * 60;
+    private static final long START_MS = START_MINUTE * 60 * 1000;
+
+    /** What the phone got, in order. */
+    private static final class RecordingSink implements StepBatchCodec.Sink {
+        final ArrayList<Long> mMinutes = new ArrayList<Long>();
+        final ArrayList<Integer> mSteps = new ArrayList<Integer>();
+
+        @Override
+        public void onBucket(long minute, int steps) {
+            mMinutes.add(minute);
+            mSteps.add(steps);
+        }
+    }
+
+    /** Keeps a copy of each payload on its way to the loopback. */
+    private static final class RecordingTransport implements StepSyncTransport {
+        final LoopbackStepSyncTransport mLoopback;
+        final ArrayList<byte[]> mPayloads = new ArrayList<byte[]>();
+
+        RecordingTransport(LoopbackStepSyncTransport loopback) {
+            mLoopback = loopback;
+        }
+
+        @Override
+        public boolean send(long batchId, byte[] payload, int length, Callback callback) {
+            if(!mLoopback.send(batchId, payload, length, callback)) {
+                return false;
+            }
+            mPayloads.add(Arrays.copyOf(payload, length));
+            return true;
+        }
+    }
+
+    /** Takes every batch and answers only when told to, like the Data Layer. */
+    private static final class DeferredTransport implements StepSyncTransport {
+        final ArrayList<Long> mIds = new ArrayList<Long>();
+        final ArrayList<byte[]> mPayloads = new ArrayList<byte[]>();
+        final ArrayList<Callback> mCallbacks = new ArrayList<Callback>();
+
+        @Override
+        public boolean send(long batchId, byte[] payload, int length, Callback callback) {
+            mIds.add(batchId);
+            mPayloads.add(Arrays.copyOf(payload, length));
+            mCallbacks.add(callback);
+            return true;
+        }
+
+        void answer(int send, boolean success) {
+            mCallbacks.get(send).onSendDone(mIds.get(send), success);
+        }
+    }
+
+    @Test
+    public void gapsAndLateMinutesArriveInOrder() {
+        RecordingSink sink = new RecordingSink();
+        StepSyncBatcher batcher = new StepSyncBatcher(
+                new LoopbackStepSyncTransport(sink), MAX_BUCKETS, MAX_DELAY_MS);
+        long[] minutes = {
+                START_MINUTE, START_MINUTE + 1, START_MINUTE + 90, START_MINUTE + 3 * 24 * 60,
+                //Late, for a minute already sent
+                START_MINUTE + 1, START_MINUTE - 5000
+        };
+        int[] steps = {10, 20, 30, 40, 50, 60};
+        for(int i=0;i<minutes.length;i++){
+            batcher.add(minutes[i], steps[i], START_MS + i);
+        }
+        assertTrue(batcher.flush(START_MS + 10));
+        assertEquals(0, batcher.getPendingBuckets());
+        assertEquals(minutes.length, sink.mMinutes.size());
+        for(int i=0;i<minutes.length;i++){
+            assertEquals(minutes[i], (long)sink.mMinutes.get(i));
+            assertEquals(steps[i], (int)sink.mSteps.get(i));
+        }
+    }
+
+    @Test
+    public void sameMinuteIsMerged() {
+        RecordingSink sink = new RecordingSink();
+        StepSyncBatcher batcher = new StepSyncBatcher(
+                new LoopbackStepSyncTransport(sink), MAX_BUCKETS, MAX_DELAY_MS);
+        batcher.add(START_MINUTE, 3, START_MS);
+        batcher.add(START_MINUTE, 4, START_MS + 1000);
+        batcher.add(START_MINUTE + 1, 5, START_MS + 61000);
+        batcher.flush(START_MS + 62000);
+        assertEquals(Arrays.asList(START_MINUTE, START_MINUTE + 1), sink.mMinutes);
+        assertEquals(Arrays.asList(7, 5), sink.mSteps);
+    }
+
+    @Test
+    public void largeDeltasSurvive() {
+        RecordingSink sink = new RecordingSink();
+        StepSyncBatcher batcher = new StepSyncBatcher(
+                new LoopbackStepSyncTransport(sink), MAX_BUCKETS, MAX_DELAY_MS);
+        //Jumps of centuries each way, and the most steps a bucket can hold
+        long[] minutes = {0, Long.MAX_VALUE / 4, 1, Long.MIN_VALUE / 4, -1, START_MINUTE};
+        int[] steps = {1, Integer.MAX_VALUE, 127, 128, 16384, Integer.MAX_VALUE - 1};
+        for(int i=0;i<minutes.length;i++){
+            batcher.add(minutes[i], steps[i], START_MS);
+        }
+        batcher.flush(START_MS);
+        for(int i=0;i<minutes.length;i++){
+            assertEquals(minutes[i], (long)sink.mMinutes.get(i));
+            assertEquals(steps[i], (int)sink.mSteps.get(i));
+        }
+    }
+
+    @Test
+    public void stepsWaitWhileDisconnectedAndArriveOnce() {
+        final StepBlockStore phone = new StepBlockStore();
+        LoopbackStepSyncTransport loopback = new LoopbackStepSyncTransport(
+                new StepBatchCodec.Sink() {
+                    @Override
+                    public void onBucket(long minute, int steps) {
+                        phone.add(minute, steps);
+                    }
+                });
+        StepSyncBatcher batcher = new StepSyncBatcher(loopback, MAX_BUCKETS, MAX_DELAY_MS);
+        Random random = new Random(5);
+        long total = 0;
+        long nowMs = START_MS;
+        loopback.setConnected(false);
+        for(int i=0;i<3 * MAX_BUCKETS;i++){
+            nowMs += 30 * 1000;
+            int n = 1 + random.nextInt(100);
+            batcher.add(nowMs / 60000, n, nowMs);
+            total += n;
+            batcher.flushIfDue(nowMs);
+        }
+        assertEquals(0, loopback.getBatches());
+        assertTrue(batcher.getSendFailures() > 0);
+        assertEquals(0, batcher.getDroppedBuckets());
+
+        loopback.setConnected(true);
+        //Not before the retry delay is up
+        assertFalse(batcher.flushIfDue(nowMs));
+        nowMs += MAX_DELAY_MS;
+        assertTrue(batcher.flushIfDue(nowMs));
+        assertEquals(0, batcher.getPendingBuckets());
+        //The two minutes frozen on the first try, then the rest in batches of maxBuckets
+        assertEquals(3, loopback.getBatches());
+        assertEquals(total, phone.sum(0, Long.MAX_VALUE));
+        assertEquals(loopback.getBytes(), batcher.getBytesSent());
+    }
+
+    @Test
+    public void unansweredBatchIsSentAgainUnchanged() throws IOException {
+        DeferredTransport transport = new DeferredTransport();
+        StepSyncBatcher batcher = new StepSyncBatcher(transport, MAX_BUCKETS, MAX_DELAY_MS);
+        long nowMs = START_MS;
+        long total = 0;
+        for(int i=0;i<MAX_BUCKETS;i++){
+            batcher.add(START_MINUTE + i, 10, nowMs);
+            total += 10;
+        }
+        assertEquals(1, transport.mIds.size());
+        //More steps for the last minute in the batch don't change what's on its way
+        batcher.add(START_MINUTE + MAX_BUCKETS - 1, 5, nowMs);
+        assertEquals(MAX_BUCKETS + 1, batcher.getPendingBuckets());
+
+        assertFalse(batcher.flushIfDue(nowMs + MAX_DELAY_MS - 1));
+        nowMs += MAX_DELAY_MS;
+        assertTrue(batcher.flushIfDue(nowMs));
+        assertEquals(2, transport.mIds.size());
+        assertEquals(transport.mIds.get(0), transport.mIds.get(1));
+        assertTrue(Arrays.equals(transport.mPayloads.get(0), transport.mPayloads.get(1)));
+
+        //Both tries got through in the end; the phone counts the batch once
+        StepBlockStore phone = new StepBlockStore();
+        StepSyncReceiver receiver = new StepSyncReceiver(phone);
+        assertEquals(StepSyncReceiver.ADDED,
+                receive(receiver, "watch", transport.mPayloads.get(0)));
+        assertEquals(StepSyncReceiver.DUPLICATE,
+                receive(receiver, "watch", transport.mPayloads.get(1)));
+        assertEquals(total, phone.sum(0, Long.MAX_VALUE));
+
+        transport.answer(1, true);
+        //The first try's late answer changes nothing
+        transport.answer(0, false);
+        assertEquals(1, batcher.getPendingBuckets());
+        assertEquals(1, batcher.getBatchesSent());
+        assertEquals(MAX_BUCKETS, batcher.getBucketsSent());
+        assertEquals(1, batcher.getSendFailures());
+    }
+
+    @Test
+    public void failedBatchIsRetriedUnderTheSameId() {
+        DeferredTransport transport = new DeferredTransport();
+        StepSyncBatcher batcher = new StepSyncBatcher(transport, MAX_BUCKETS, MAX_DELAY_MS);
+        batcher.add(START_MINUTE, 10, START_MS);
+        assertTrue(batcher.flush(START_MS));
+        //Already on its way
+        assertTrue(batcher.flush(START_MS + 1));
+        assertEquals(1, transport.mIds.size());
+
+        transport.answer(0, false);
+        assertEquals(1, batcher.getSendFailures());
+        batcher.add(START_MINUTE + 1, 20, START_MS + 60000);
+        assertFalse(batcher.flushIfDue(START_MS + MAX_DELAY_MS - 1));
+        assertTrue(batcher.flushIfDue(START_MS + MAX_DELAY_MS));
+        assertEquals(transport.mIds.get(0), transport.mIds.get(1));
+        assertTrue(Arrays.equals(transport.mPayloads.get(0), transport.mPayloads.get(1)));
+
+        //The next batch gets a new id and only the minute that wasn't in the first
+        transport.answer(1, true);
+        assertTrue(batcher.flush(START_MS + MAX_DELAY_MS + 1));
+        assertEquals(3, transport.mIds.size());
+        assertTrue(transport.mIds.get(2) > transport.mIds.get(1));
+        transport.answer(2, true);
+        assertEquals(0, batcher.getPendingBuckets());
+        assertEquals(2, batcher.getBucketsSent());
+    }
+
+    /** Sends batches of steps from a new batcher, as after a restart, and returns them. */
+    private static ArrayList<byte[]> sendBatches(long startMs, int batches, long[] total) {
+        RecordingTransport transport = new RecordingTransport(
+                new LoopbackStepSyncTransport(new RecordingSink()));
+        StepSyncBatcher batcher = new StepSyncBatcher(transport, MAX_BUCKETS, MAX_DELAY_MS);
+        long nowMs = startMs;
+        for(int b=0;b<batches;b++){
+            for(int i=0;i<5;i++){
+                nowMs += 60 * 1000;
+                batcher.add(nowMs / 60000, 10 + i, nowMs);
+                total[0] += 10 + i;
+            }
+            assertTrue(batcher.flush(nowMs));
+        }
+        return transport.mPayloads;
+    }
+
+    private static int receive(StepSyncReceiver receiver, String source, byte[] payload)
+            throws IOException {
+        return receiver.receive(source, payload, payload.length, START_MS);
+    }
+
+    @Test
+    public void batchesAreAddedOnceInAnyOrder() throws IOException {
+        long[] total = new long[1];
+        ArrayList<byte[]> payloads = sendBatches(START_MS, 20, total);
+        StepBlockStore store = new StepBlockStore();
+        StepSyncReceiver receiver = new StepSyncReceiver(store);
+        //Newest first, then all of them again
+        for(int i=payloads.size()-1;i>=0;i--){
+            assertEquals(StepSyncReceiver.ADDED, receive(receiver, "watch", payloads.get(i)));
+        }
+        for(byte[] payload : payloads) {
+            assertEquals(StepSyncReceiver.DUPLICATE, receive(receiver, "watch", payload));
+        }
+        assertEquals(total[0], store.sum(0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void batchesAfterTheClockGoesBackAreAdded() throws IOException {
+        long[] total = new long[1];
+        ArrayList<byte[]> before = sendBatches(START_MS, 5, total);
+        //The watch restarts with its clock a day behind, so its ids are all smaller
+        ArrayList<byte[]> after = sendBatches(START_MS - 24 * 60 * 60 * 1000L, 5, total);
+        StepBlockStore store = new StepBlockStore();
+        StepSyncReceiver receiver = new StepSyncReceiver(store);
+        for(byte[] payload : before) {
+            assertEquals(StepSyncReceiver.ADDED, receive(receiver, "watch", payload));
+        }
+        for(byte[] payload : after) {
+            assertEquals(StepSyncReceiver.ADDED, receive(receiver, "watch", payload));
+        }
+        assertEquals(total[0], store.sum(0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void twoWatchesWithTheSameIdsAreBothAdded() throws IOException {
+        long[] total = new long[1];
+        ArrayList<byte[]> first = sendBatches(START_MS, 3, total);
+        ArrayList<byte[]> second = sendBatches(START_MS, 3, total);
+        StepBlockStore store = new StepBlockStore();
+        StepSyncReceiver receiver = new StepSyncReceiver(store);
+        for(int i=0;i<first.size();i++){
+            assertEquals(StepSyncReceiver.ADDED, receive(receiver, "watch1", first.get(i)));
+            assertEquals(StepSyncReceiver.ADDED, receive(receiver, "watch2", second.get(i)));
+        }
+        assertEquals(total[0], store.sum(0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void appliedBatchesSurviveAReload() throws IOException {
+        long[] total = new long[1];
+        ArrayList<byte[]> payloads = sendBatches(START_MS, 4, total);
+        File log = File.createTempFile("steps", ".bin");
+        try {
+            StepBlockStore store = new StepBlockStore();
+            store.openLog(log);
+            StepSyncReceiver receiver = new StepSyncReceiver(store);
+            receive(receiver, "watch", payloads.get(2));
+            receive(receiver, "watch", payloads.get(0));
+            assertTrue(store.flushLog());
+            store.closeLog();
+
+            //As after the phone's process was killed, with the batches not yet deleted
+            StepBlockStore loaded = new StepBlockStore();
+            loaded.openLog(log);
+            receiver = new StepSyncReceiver(loaded);
+            for(int i=0;i<payloads.size();i++){
+                assertEquals(i == 0 || i == 2 ? StepSyncReceiver.DUPLICATE
+                        : StepSyncReceiver.ADDED, receive(receiver, "watch", payloads.get(i)));
+            }
+            assertEquals(total[0], loaded.sum(0, Long.MAX_VALUE));
+            //Long after, the keys are forgotten
+            receiver.prune(START_MS + StepSyncReceiver.KEEP_MS + 1);
+            assertEquals(0, loaded.getAppliedBatchCount());
+            loaded.closeLog();
+        } finally {
+            log.delete();
+        }
+    }
+
+    @Test
+    public void badBatchesAddNothing() {
+        long[] total = new long[1];
+        byte[] payload = sendBatches(START_MS, 1, total).get(0);
+        StepBlockStore store = new StepBlockStore();
+        StepSyncReceiver receiver = new StepSyncReceiver(store);
+        try {
+            receiver.receive("watch", payload, payload.length - 1, START_MS);
+            fail("Received a truncated batch");
+        } catch (IOException e) {
+            //Expected
+        }
+        assertEquals(0, store.sum(0, Long.MAX_VALUE));
+        assertEquals(0, store.getAppliedBatchCount());
+    }
+
+    @Test
+    public void truncatedPayloadsAreRejected() {
+        RecordingTransport transport = new RecordingTransport(
+                new LoopbackStepSyncTransport(new RecordingSink()));
+        StepSyncBatcher batcher = new StepSyncBatcher(transport, MAX_BUCKETS, MAX_DELAY_MS);
+        for(int i=0;i<MAX_BUCKETS - 1;i++){
+            batcher.add(START_MINUTE + i * 7, 1000 + i * 300, START_MS);
+        }
+        batcher.flush(START_MS);
+        byte[] payload = transport.mPayloads.get(0);
+
+        RecordingSink sink = new RecordingSink();
+        for(int length=0;length<payload.length;length++){
+            try {
+                StepBatchCodec.decode(payload, length, sink);
+                fail("Decoded " + length + " of " + payload.length + " bytes");
+            } catch (IOException e) {
+                //Expected
+            }
+        }
+        //One byte too many is as bad as one too few
+        byte[] longer = Arrays.copyOf(payload, payload.length + 1);
+        try {
+            StepBatchCodec.decode(longer, longer.length, sink);
+            fail("Decoded trailing bytes");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void otherVersionsAreRejected() throws IOException {
+        byte[] payload = new byte[StepBatchCodec.maxEncodedSize(1)];
+        int length = StepBatchCodec.encode(99, new long[] {START_MINUTE}, new int[] {5}, 1,
+                payload);
+        RecordingSink sink = new RecordingSink();
+        assertEquals(99, StepBatchCodec.decode(payload, length, sink));
+        payload[0] = (byte)(StepBatchCodec.VERSION + 1);
+        try {
+            StepBatchCodec.decode(payload, length, sink);
+            fail("Decoded an unknown version");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bobrinkman.healthymiamiwatchface.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StepTrackerTest {
+    //Day keys as FaceClock.getDayKey() makes them: 2015-05-04 and the two days after
+    private static final int MAY_4 = 20150404;
+    private static final int MAY_5 = 20150405;
+    private static final int MAY_6 = 20150406;
+
+    @Test
+    public void firstReadingOfTheDayBecomesMidnight() {
+        StepTracker tracker = new StepTracker();
+        assertTrue(tracker.rollOverIfNewDay(MAY_4));
+        assertTrue(tracker.onSensorCount(1000));
+        //Nothing was stored, so the steps before the first rollover count as today's
+        assertEquals(1000, tracker.getTodaySteps());
+        assertTrue(tracker.rollOverIfNewDay(MAY_5));
+        assertEquals(0, tracker.getTodaySteps());
+        assertTrue(tracker.onSensorCount(1250));
+        assertEquals(250, tracker.getTodaySteps());
+        assertEquals(MAY_5, tracker.get().getDay());
+    }
+
+    @Test
+    public void sameDayIsNotARollover() {
+        StepTracker tracker = new StepTracker();
+        tracker.rollOverIfNewDay(MAY_4);
+        tracker.onSensorCount(500);
+        StepState before = tracker.get();
+        assertFalse(tracker.rollOverIfNewDay(MAY_4));
+        assertSame(before, tracker.get());
+        assertFalse(tracker.onSensorCount(500));
+        assertSame(before, tracker.get());
+    }
+
+    @Test
+    public void oneDayBackIsNotARolloverButTwoAre() {
+        StepState state = new StepState(MAY_6, 300, 100);
+        //Going back and forth across a date line mustn't reset the count
+        assertFalse(state.isNewDay(MAY_5));
+        assertFalse(state.isNewDay(MAY_6));
+        //A clock that was far in the future, now put right
+        assertTrue(state.isNewDay(MAY_4));
+        assertTrue(state.isNewDay(20150407));
+    }
+
+    @Test
+    public void counterResetAfterRebootKeepsTodaysSteps() {
+        StepTracker tracker = new StepTracker();
+        tracker.set(new StepState(MAY_4, 5000, 4000));
+        assertEquals(1000, tracker.getTodaySteps());
+        //The counter starts again from 0 after a reboot
+        assertTrue(tracker.onSensorCount(20));
+        assertEquals(1020, tracker.getTodaySteps());
+        assertEquals(-1000, tracker.get().getMidnightSteps());
+        assertTrue(tracker.get().isValid());
+        assertTrue(tracker.onSensorCount(120));
+        assertEquals(1120, tracker.getTodaySteps());
+        //And midnight after that works as usual
+        assertTrue(tracker.rollOverIfNewDay(MAY_5));
+        assertEquals(0, tracker.getTodaySteps());
+        tracker.onSensorCount(150);
+        assertEquals(30, tracker.getTodaySteps());
+    }
+
+    @Test
+    public void invalidStateIsCleared() {
+        StepTracker tracker = new StepTracker();
+        tracker.set(new StepState(MAY_4, 100, 200));
+        assertFalse(tracker.get().isValid());
+        assertTrue(tracker.resetIfInvalid());
+        assertSame(StepState.EMPTY, tracker.get());
+        assertFalse(tracker.resetIfInvalid());
+    }
+
+    @Test
+    public void persistedStateRoundTrips() {
+        StepTracker tracker = new StepTracker();
+        tracker.rollOverIfNewDay(MAY_4);
+        tracker.onSensorCount(800);
+        tracker.rollOverIfNewDay(MAY_5);
+        tracker.onSensorCount(850);
+        tracker.onSensorCount(870);
+
+        //The engine saves these three ints, and loads them the same way
+        StepState saved = tracker.get();
+        StepTracker loaded = new StepTracker();
+        loaded.set(new StepState(saved.getDay(), saved.getLastSteps(),
+                saved.getMidnightSteps()));
+        assertEquals(tracker.getTodaySteps(), loaded.getTodaySteps());
+        assertFalse(loaded.resetIfInvalid());
+        assertFalse(loaded.rollOverIfNewDay(MAY_5));
+
+        tracker.onSensorCount(890);
+        loaded.onSensorCount(890);
+        assertEquals(tracker.getTodaySteps(), loaded.getTodaySteps());
+        assertEquals(90, loaded.getTodaySteps());
+    }
+}
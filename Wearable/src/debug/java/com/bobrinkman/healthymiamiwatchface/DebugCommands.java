@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bobrinkman.healthymiamiwatchface;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+/**
+ * The dump() commands that only debug builds have. Release builds get a version of this
+ * class from src/release that turns them down, so RenderHarness never ships.
+ */
+final class DebugCommands {
+    private DebugCommands() {
+    }
+
+    /**
+     * Handles "harness", "harness save" and "harness overdraw" by starting RenderHarness on
+     * face. Returns straight away: the runs happen later on the main looper, one per
+     * message, and write their report to a file.
+     */
+    static void startRenderHarness(ScriptableFace face, File filesDir, String[] args,
+                                   PrintWriter pw) {
+        boolean overdraw = args.length >= 2 && "overdraw".equals(args[1]);
+        boolean saveGolden = args.length >= 2 && "save".equals(args[1]);
+        RenderHarness harness = new RenderHarness(face, filesDir);
+        if(harness.start(overdraw, saveGolden, pw)) {
+            pw.println("Render harness started, results in " + harness.getReportFile());
+        }
+    }
+}
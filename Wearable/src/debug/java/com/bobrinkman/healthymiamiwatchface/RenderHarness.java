@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.bobrinkman.healthymiamiwatchface.core.ActivityMetrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.TimeZone;
+
+/**
+ * Drives an engine's onDraw() through scripted frames in every display mode and a few
+ * screen sizes, and reports how fast and how wasteful drawing is. Debug builds only. Start
+ * it with
+ *   adb shell dumpsys activity service .HealthyMiamiWatchFaceService harness
+ * on a watch or emulator, or add "save" to record the current output as the golden frames.
+ * The report goes to files/render_harness/report.txt.
+ *
+ * Each run draws into an offscreen bitmap from ScriptedInputs: a fixed time (in UTC), step
+ * count and ambient state, so the output doesn't depend on when or where it runs, and the
+ * real step data and frame pacing aren't touched. For each size and mode it reports frames
+ * per second, draw calls per frame (on the screen and the engine's offscreen layers) and
+ * allocations per frame. The last frame of each run is compared with the golden PNG in
+ * files/render_harness, if there is one, so a change meant to be performance-only can be
+ * checked for exactly the same pixels.
+ *
+ * With "overdraw" instead, it uses OverdrawAnalyzer to count draw calls and painted pixels
+ * per layer for two frames of each run: one drawn from scratch, including the static
+ * layer, and the ordinary frame after it. The heatmaps go in files/render_harness too.
+ *
+ * Runs one size and mode per message on the main looper, so the face keeps drawing its
+ * own frames in between. The engine is scripted only for the length of one run, and put
+ * back the way it was afterwards, apart from its frame counters.
+ */
+final class RenderHarness {
+    private static final String TAG = "MiamiRenderHarness";
+
+    private static final int WARMUP_FRAMES = 20;
+    private static final int FRAMES = 120;
+
+    //10:08:30.000 UTC on 2015-05-04. Interactive frames are 50 ms apart, ambient frames a
+    // minute apart, and both runs cross a minute boundary
+    private static final long START_TIME_MS = 1430734110000L;
+    private static final long INTERACTIVE_FRAME_MS = 50;
+    private static final long AMBIENT_FRAME_MS = 60 * 1000;
+    private static final int START_STEPS = 9876;
+
+    private static final String DIR = "render_harness";
+    private static final String REPORT = "report.txt";
+
+    private static final String[] SIZE_NAMES = {"round320", "square280", "round320chin30"};
+    private static final int[] SIZE_WIDTHS = {320, 280, 320};
+    private static final int[] SIZE_HEIGHTS = {320, 280, 320};
+    private static final boolean[] SIZE_ROUND = {true, false, true};
+    private static final int[] SIZE_CHINS = {0, 0, 30};
+
+    private static final String[] MODE_NAMES = {
+            "interactive", "ambient", "low-bit", "burn-in", "low-bit+burn-in"
+    };
+    private static final boolean[] MODE_AMBIENT = {false, true, true, true, true};
+    private static final boolean[] MODE_LOW_BIT = {false, false, true, false, true};
+    private static final boolean[] MODE_BURN_IN = {false, false, false, true, true};
+
+    private static final int RUNS = SIZE_NAMES.length * MODE_NAMES.length;
+
+    //Only one harness at a time. Main thread only
+    private static boolean sRunning;
+
+    /** What the engine draws from during a run: fixed values, and no real steps or pacing. */
+    private static final class ScriptedInputs implements FrameInputs {
+        private final boolean mAmbient;
+        //Nothing is ever added, so the activity lines always show zeros
+        private final ActivityMetrics mActivity = new ActivityMetrics();
+        long mTimeMs;
+        int mSteps;
+
+        ScriptedInputs(boolean ambient) {
+            mAmbient = ambient;
+        }
+
+        @Override
+        public long getTimeMs() {
+            return mTimeMs;
+        }
+
+        @Override
+        public boolean isAmbient() {
+            return mAmbient;
+        }
+
+        @Override
+        public int getTodaySteps() {
+            return mSteps;
+        }
+
+        @Override
+        public ActivityMetrics getActivity() {
+            return mActivity;
+        }
+
+        @Override
+        public void onFrameStart() {
+        }
+
+        @Override
+        public void onFrameDrawn(long drawNs, boolean ambient) {
+        }
+    }
+
+    private final ScriptableFace mFace;
+    private final File mDir;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mOverdraw;
+    private boolean mSaveGolden;
+    private PrintWriter mReport;
+    private int mNextRun;
+    private ScriptedInputs mInputs;
+
+    //Engine state to put back after each run
+    private boolean mIsRound;
+    private int mChinSize;
+    private boolean mLowBit;
+    private boolean mBurnIn;
+    private boolean mStatsEnabled;
+
+    private final Runnable mRunNext = new Runnable() {
+        @Override
+        public void run() {
+            runNext();
+        }
+    };
+
+    RenderHarness(ScriptableFace face, File filesDir) {
+        mFace = face;
+        mDir = new File(filesDir, DIR);
+    }
+
+    File getReportFile() {
+        return new File(mDir, REPORT);
+    }
+
+    /**
+     * Starts the runs. If overdraw is true, counts overdraw instead of timing frames. If
+     * saveGolden is true, the last frame of each run replaces its golden PNG instead of
+     * being compared with it. Returns false, with why in pw, if it couldn't start.
+     */
+    boolean start(boolean overdraw, boolean saveGolden, PrintWriter pw) {
+        if(sRunning) {
+            pw.println("The render harness is already running");
+            return false;
+        }
+        if(!mDir.isDirectory() && !mDir.mkdirs()) {
+            pw.println("Can't create " + mDir);
+            return false;
+        }
+        try {
+            mReport = new PrintWriter(new FileWriter(getReportFile()));
+        } catch (IOException e) {
+            pw.println("Can't write " + getReportFile() + ": " + e);
+            return false;
+        }
+        sRunning = true;
+        mOverdraw = overdraw;
+        mSaveGolden = saveGolden;
+        mNextRun = 0;
+        if(overdraw) {
+            mReport.println("Overdraw, after " + WARMUP_FRAMES + " warm-up frames");
+        } else {
+            mReport.println("Render harness: " + FRAMES + " frames per run, after "
+                    + WARMUP_FRAMES + " warm-up frames");
+            mReport.println("  size            mode              fps   us/frame  draws/frame"
+                    + "  allocs/frame  bytes/frame  golden");
+        }
+        mHandler.post(mRunNext);
+        return true;
+    }
+
+    private void runNext() {
+        int size = mNextRun / MODE_NAMES.length;
+        int mode = mNextRun % MODE_NAMES.length;
+        boolean failed = false;
+        setUp(size, mode);
+        try {
+            if(mOverdraw) {
+                overdrawOne(size, mode);
+            } else {
+                runOne(size, mode);
+            }
+        } catch (RuntimeException e) {
+            //Most likely the engine went away under us
+            mReport.println("Run failed: " + e);
+            failed = true;
+        } finally {
+            tearDown();
+        }
+        mNextRun++;
+        if(!failed && mNextRun < RUNS) {
+            mHandler.post(mRunNext);
+            return;
+        }
+        mReport.close();
+        mReport = null;
+        sRunning = false;
+        Log.i(TAG, "Render harness " + (failed ? "failed" : "done") + ", see "
+                + getReportFile());
+    }
+
+    /** Scripts the engine for the given size and mode, at the start time. */
+    private void setUp(int size, int mode) {
+        ScriptableFace face = mFace;
+        mIsRound = face.isRound();
+        mChinSize = face.getChinSize();
+        mLowBit = face.isLowBitAmbient();
+        mBurnIn = face.hasBurnInProtection();
+        mStatsEnabled = face.getFrameStats().isEnabled();
+        face.getFrameStats().setEnabled(false);
+        face.getClock().setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        mInputs = new ScriptedInputs(MODE_AMBIENT[mode]);
+        mInputs.mTimeMs = START_TIME_MS;
+        face.setFrameInputs(mInputs);
+        face.setDisplay(SIZE_ROUND[size], SIZE_CHINS[size], MODE_LOW_BIT[mode],
+                MODE_BURN_IN[mode]);
+    }
+
+    private void tearDown() {
+        ScriptableFace face = mFace;
+        face.setDisplay(mIsRound, mChinSize, mLowBit, mBurnIn);
+        face.getFrameStats().setEnabled(mStatsEnabled);
+        face.getClock().setTimeZone(TimeZone.getDefault());
+        face.setFrameInputs(null);
+        mInputs = null;
+    }
+
+    private void runOne(int size, int mode) {
+        int width = SIZE_WIDTHS[size];
+        int height = SIZE_HEIGHTS[size];
+        long frameMs = MODE_AMBIENT[mode] ? AMBIENT_FRAME_MS : INTERACTIVE_FRAME_MS;
+
+        Bitmap screen = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        CountingCanvas canvas = new CountingCanvas(screen);
+        Rect bounds = new Rect(0, 0, width, height);
+
+        for(int i=0;i<WARMUP_FRAMES;i++){
+            drawFrame(canvas, bounds, START_TIME_MS + i*frameMs, START_STEPS + i);
+        }
+
+        long drawCalls = -countDrawCalls(canvas);
+        long totalNs = 0;
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            for(int i=0;i<FRAMES;i++){
+                //Step every few frames, so the step pill is redrawn some of the time
+                totalNs += drawFrame(canvas, bounds, START_TIME_MS + i*frameMs,
+                        START_STEPS + i/4);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        long allocs = Debug.getThreadAllocCount();
+        long allocBytes = Debug.getThreadAllocSize();
+        drawCalls += countDrawCalls(canvas);
+
+        //The chin isn't visible on a real watch, so don't let it affect the comparison
+        if(SIZE_CHINS[size] > 0) {
+            canvas.save();
+            canvas.clipRect(0, height - SIZE_CHINS[size], width, height);
+            canvas.drawColor(Color.BLACK);
+            canvas.restore();
+        }
+        String golden = checkGolden(screen, SIZE_NAMES[size] + "-" + MODE_NAMES[mode]);
+        screen.recycle();
+
+        double usPerFrame = totalNs / 1000.0 / FRAMES;
+        mReport.printf("  %-15s %-15s %6.0f %10.1f %12.1f %13.1f %12.0f  %s%n",
+                SIZE_NAMES[size], MODE_NAMES[mode],
+                usPerFrame > 0 ? 1000000.0 / usPerFrame : 0.0, usPerFrame,
+                drawCalls / (double)FRAMES, allocs / (double)FRAMES,
+                allocBytes / (double)FRAMES, golden);
+    }
+
+    private void overdrawOne(int size, int mode) {
+        ScriptableFace face = mFace;
+        int width = SIZE_WIDTHS[size];
+        int height = SIZE_HEIGHTS[size];
+        long frameMs = MODE_AMBIENT[mode] ? AMBIENT_FRAME_MS : INTERACTIVE_FRAME_MS;
+        String name = SIZE_NAMES[size] + "-" + MODE_NAMES[mode];
+
+        Bitmap screen = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        CountingCanvas canvas = new CountingCanvas(screen);
+        Rect bounds = new Rect(0, 0, width, height);
+        for(int i=0;i<WARMUP_FRAMES;i++){
+            drawFrame(canvas, bounds, START_TIME_MS + i*frameMs, START_STEPS + i);
+        }
+        long timeMs = START_TIME_MS + WARMUP_FRAMES*frameMs;
+        int steps = START_STEPS + WARMUP_FRAMES;
+
+        OverdrawAnalyzer analyzer = new OverdrawAnalyzer(width, height);
+        canvas.setAnalyzer(analyzer);
+        face.setOverdrawAnalyzer(analyzer);
+        try {
+            //The static layer is normally shared and built long before, so build a
+            // throwaway one to see what it costs
+            Bitmap layer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            face.drawStaticLayer(layer);
+            layer.recycle();
+            drawFrame(canvas, bounds, timeMs, steps);
+            analyzer.dump(mReport, name + ", from scratch:");
+            writeHeatmap(analyzer, name + "-overdraw-full");
+
+            analyzer.reset();
+            drawFrame(canvas, bounds, timeMs + frameMs, steps);
+            analyzer.dump(mReport, name + ", next frame:");
+            writeHeatmap(analyzer, name + "-overdraw-next");
+        } finally {
+            face.setOverdrawAnalyzer(null);
+            canvas.setAnalyzer(null);
+            analyzer.release();
+            screen.recycle();
+        }
+    }
+
+    private void writeHeatmap(OverdrawAnalyzer analyzer, String name) {
+        Bitmap heatmap = analyzer.createHeatmap();
+        writePng(heatmap, new File(mDir, name + ".png"));
+        heatmap.recycle();
+    }
+
+    /** Draws one frame and returns how long it took, in ns. */
+    private long drawFrame(Canvas canvas, Rect bounds, long timeMs, int steps) {
+        mInputs.mTimeMs = timeMs;
+        mInputs.mSteps = steps;
+        long start = System.nanoTime();
+        mFace.onDraw(canvas, bounds);
+        long ns = System.nanoTime() - start;
+        //On a watch this happens while idle after the frame, so it isn't timed
+        mFace.prepareAmbientFrame();
+        return ns;
+    }
+
+    private long countDrawCalls(CountingCanvas screen) {
+        return screen.getDrawCalls() + mFace.getOffscreenDrawCalls();
+    }
+
+    /** Saves frame as the golden PNG for name, or compares it with the one saved before. */
+    private String checkGolden(Bitmap frame, String name) {
+        File goldenFile = new File(mDir, name + ".png");
+        if(mSaveGolden) {
+            return writePng(frame, goldenFile) ? "saved" : "save failed";
+        }
+        if(!goldenFile.exists()) {
+            return "none";
+        }
+        Bitmap golden = BitmapFactory.decodeFile(goldenFile.getPath());
+        if(golden == null) {
+            return "unreadable";
+        }
+        boolean same = golden.sameAs(frame);
+        golden.recycle();
+        if(same) {
+            return "same";
+        }
+        //Keep what we got, to compare by eye
+        writePng(frame, new File(mDir, name + ".actual.png"));
+        return "DIFFERENT";
+    }
+
+    private static boolean writePng(Bitmap bitmap, File file) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            return bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if(out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //Nothing more we can do
+                }
+            }
+        }
+    }
+}
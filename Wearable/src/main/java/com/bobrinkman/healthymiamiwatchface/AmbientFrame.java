@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import java.io.PrintWriter;
+
+/**
+ * A spare frame buffer holding next minute's ambient frame, composed ahead of time.
+ *
+ * In ambient mode the only things that change at a time tick are the digits and possibly
+ * the step count. Right after an ambient frame is shown, the engine draws the background and
+ * the next minute's digits in here. At the tick, if the key still matches, the engine swaps
+ * this bitmap with its frame buffer instead of redrawing, and only patches in the step pill.
+ * The key covers the draw mode (ambient, low-bit, burn-in), size and scale, so a frame
+ * composed for one variant is never shown in another.
+ */
+final class AmbientFrame {
+    private final BitmapBudget mBudget;
+    private Bitmap mBitmap;
+    private final Canvas mCanvas = new Canvas();
+    private boolean mValid = false;
+
+    private int mDrawMode;
+    private int mWidth;
+    private int mHeight;
+    private float mUiScale;
+    private int mHour;
+    private int mMinute;
+
+    private long mPrepared;
+    private long mHits;
+    private long mMisses;
+
+    AmbientFrame(BitmapBudget budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Returns a canvas to compose the frame for the given key into. The caller must draw
+     * every pixel, then call setReady().
+     */
+    Canvas begin(int drawMode, int width, int height, float uiScale, int hour, int minute) {
+        mValid = false;
+        if(mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            if(mBitmap != null) {
+                mCanvas.setBitmap(null);
+                mBudget.recycle(BitmapBudget.CATEGORY_AMBIENT_FRAME, mBitmap);
+            }
+            //Gets swapped with the frame buffer, so has to be made the same way
+            mBitmap = mBudget.create(BitmapBudget.CATEGORY_AMBIENT_FRAME, width, height,
+                    BitmapBudget.CONTENT_ANY);
+            mCanvas.setBitmap(mBitmap);
+        }
+        mDrawMode = drawMode;
+        mWidth = width;
+        mHeight = height;
+        mUiScale = uiScale;
+        mHour = hour;
+        mMinute = minute;
+        return mCanvas;
+    }
+
+    void setReady() {
+        mValid = true;
+        mPrepared++;
+    }
+
+    /** True if a frame is ready for exactly this key. */
+    boolean matches(int drawMode, int width, int height, float uiScale, int hour, int minute) {
+        return mValid && drawMode == mDrawMode && width == mWidth
+                && height == mHeight && uiScale == mUiScale
+                && hour == mHour && minute == mMinute;
+    }
+
+    /** Counts a tick where no matching frame was ready, for dump(). */
+    void countMiss() {
+        mMisses++;
+    }
+
+    /**
+     * Hands over the composed frame, and takes frameBuffer (which must be the same size and
+     * config) as the bitmap to compose the next one into. The two swap budget categories,
+     * which doesn't change the byte counts.
+     */
+    Bitmap swap(Bitmap frameBuffer) {
+        Bitmap ready = mBitmap;
+        mBitmap = frameBuffer;
+        mCanvas.setBitmap(frameBuffer);
+        mValid = false;
+        mHits++;
+        return ready;
+    }
+
+    void invalidate() {
+        mValid = false;
+    }
+
+    /** Frees the spare buffer. It is allocated again the next time begin() is called. */
+    void release() {
+        mValid = false;
+        if(mBitmap != null) {
+            mCanvas.setBitmap(null);
+            mBudget.recycle(BitmapBudget.CATEGORY_AMBIENT_FRAME, mBitmap);
+            mBitmap = null;
+        }
+    }
+
+    /** Like release(), but counted as an eviction, for when memory is short. */
+    void evict() {
+        if(mBitmap != null) {
+            mBudget.countEviction(BitmapBudget.CATEGORY_AMBIENT_FRAME, mBitmap.getByteCount());
+        }
+        release();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  ambient precompose: prepared " + mPrepared + ", used " + mHits
+                + ", missed " + mMisses + ", bytes "
+                + (mBitmap == null ? 0 : mBitmap.getByteCount()));
+    }
+}
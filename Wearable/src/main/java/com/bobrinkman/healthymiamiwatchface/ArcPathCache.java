@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Pre-stroked outlines of one progress ring, so drawing the ring is a lookup and a fill
+ * instead of stroking an arc from scratch every frame.
+ *
+ * The ring goes around in steps just fine enough that the end moves by about a pixel
+ * (on the outer edge) per step, which is also how often RedrawScheduler redraws it. Each
+ * step has two outlines: growing (from the top, clockwise) and shrinking (from the step
+ * back round to the top), which is what the two drawArc() calls used to draw on even and
+ * odd minutes or seconds. Outlines are built on first use into arrays indexed by step. At
+ * most maxPaths are kept; after that the oldest is dropped, so memory stays bounded.
+ *
+ * A ring has at most maxPaths / 2 - 1 steps, so that every outline of both kinds fits at
+ * once. With more, each lap would evict the outlines the next lap needs, and every lookup
+ * would miss. On a screen big enough to hit that, the end moves a little more than a
+ * pixel per step.
+ *
+ * The outlines are relative to the top left corner of the circle under the time, so the
+ * caller translates the canvas there and fills them.
+ */
+final class ArcPathCache {
+    //Even huge screens don't need more steps than this
+    private static final int MAX_STEPS = 1024;
+    private static final float START_ANGLE = 270;
+    //Rough size of one outline, for dump(): the Path and its native path, plus the stroker's
+    // output, a few quads (two points and a verb each) per side for every 90 degrees of arc
+    private static final int OUTLINE_BASE_BYTES = 96;
+    private static final float OUTLINE_BYTES_PER_DEGREE = 1.5f;
+
+    private final String mName;
+    private final int mMaxPaths;
+    private final Paint mStrokePaint = new Paint();
+    private final RectF mOval = new RectF();
+    private final Path mArc = new Path();
+
+    private int mSteps;
+    private Path[] mGrowing = new Path[0];
+    private Path[] mShrinking = new Path[0];
+    //Keys of cached outlines, oldest first: step*2, plus 1 if growing
+    private final int[] mOrder;
+    private int mOrderHead;
+    private int mCached;
+    private long mCachedBytes;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    ArcPathCache(String name, int maxPaths) {
+        mName = name;
+        mMaxPaths = maxPaths;
+        mOrder = new int[maxPaths];
+    }
+
+    /**
+     * Sets the size of the square the ring sits in, how far in from its edge the ring is,
+     * and the paint it would be stroked with. Drops every cached outline if any of them
+     * changed.
+     */
+    void setGeometry(float size, float inset, Paint strokePaint) {
+        if(mSteps != 0 && mOval.left == inset && mOval.right == size - inset
+                && mStrokePaint.getStrokeWidth() == strokePaint.getStrokeWidth()) {
+            return;
+        }
+        mStrokePaint.set(strokePaint);
+        mStrokePaint.setStyle(Paint.Style.STROKE);
+        mOval.set(inset, inset, size - inset, size - inset);
+        float outerRadius = (size - 2*inset + strokePaint.getStrokeWidth())/2;
+        int maxSteps = Math.min(MAX_STEPS, mMaxPaths/2 - 1);
+        mSteps = Math.max(1, Math.min(maxSteps, (int)Math.ceil(2*Math.PI*outerRadius)));
+        mGrowing = new Path[mSteps + 1];
+        mShrinking = new Path[mSteps + 1];
+        mOrderHead = 0;
+        mCached = 0;
+        mCachedBytes = 0;
+    }
+
+    /**
+     * Returns the outline of the ring with fraction (0 to 1) of it drawn, either growing
+     * from the top or shrinking back to it.
+     */
+    Path get(float fraction, boolean growing) {
+        int step = Math.round(fraction * mSteps);
+        if(step < 0) {
+            step = 0;
+        } else if(step > mSteps) {
+            step = mSteps;
+        }
+        Path[] paths = growing ? mGrowing : mShrinking;
+        Path path = paths[step];
+        if(path != null) {
+            mHits++;
+            return path;
+        }
+        mMisses++;
+        path = build(step, growing);
+        paths[step] = path;
+        mCachedBytes += estimateBytes(step, growing);
+        remember(step*2 + (growing ? 1 : 0));
+        return path;
+    }
+
+    private int estimateBytes(int step, boolean growing) {
+        float angle = 360.0f * step / mSteps;
+        return OUTLINE_BASE_BYTES
+                + (int)((growing ? angle : 360.0f - angle) * OUTLINE_BYTES_PER_DEGREE);
+    }
+
+    private Path build(int step, boolean growing) {
+        float angle = 360.0f * step / mSteps;
+        mArc.reset();
+        if(growing) {
+            mArc.addArc(mOval, START_ANGLE, angle);
+        } else {
+            mArc.addArc(mOval, START_ANGLE + angle, 360.0f - angle);
+        }
+        Path outline = new Path();
+        mStrokePaint.getFillPath(mArc, outline);
+        return outline;
+    }
+
+    /** Drops every cached outline, e.g. when memory is short. */
+    void clear() {
+        Arrays.fill(mGrowing, null);
+        Arrays.fill(mShrinking, null);
+        mOrderHead = 0;
+        mCached = 0;
+        mCachedBytes = 0;
+    }
+
+    private void remember(int key) {
+        if(mCached == mMaxPaths) {
+            int oldest = mOrder[mOrderHead];
+            Path[] paths = (oldest & 1) != 0 ? mGrowing : mShrinking;
+            paths[oldest >> 1] = null;
+            mCachedBytes -= estimateBytes(oldest >> 1, (oldest & 1) != 0);
+            mOrder[mOrderHead] = key;
+            mOrderHead = (mOrderHead + 1) % mMaxPaths;
+            mEvictions++;
+        } else {
+            mOrder[(mOrderHead + mCached) % mMaxPaths] = key;
+            mCached++;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        long lookups = mHits + mMisses;
+        pw.printf("  %s arcs: %d steps, %d of %d outlines cached (about %d KB), hit rate"
+                        + " %.1f%%, evictions %d%n",
+                mName, mSteps, mCached, mMaxPaths, mCachedBytes / 1024,
+                lookups == 0 ? 0.0 : 100.0 * mHits / lookups, mEvictions);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Bitmap;
+
+import java.io.PrintWriter;
+
+/**
+ * Keeps count of the memory held by every bitmap the service makes, and decides how much of
+ * it may be spent on caches.
+ *
+ * Bitmaps are made with create() and freed with recycle(), or handed over with adopt() if
+ * something else made them, like BitmapFactory. Each is tagged with a category for dump().
+ * create() picks the most compact config that holds the content exactly: ALPHA_8 for masks,
+ * RGB_565 for opaque layers that only use colors it can represent, ARGB_8888 otherwise.
+ *
+ * The byte cap only limits caching. Bitmaps a frame needs are never taken away from it,
+ * but RenderResources only keeps resources nobody is using while the total is under the
+ * cap, oldest first. onTrimMemory() goes further, see
+ * HealthyMiamiWatchFaceService.trimCaches(). All methods are synchronized, since adopt()
+ * can be called from the thread that loads resources.
+ */
+final class BitmapBudget {
+    static final int CATEGORY_STIPPLE = 0;
+    static final int CATEGORY_STATIC_LAYER = 1;
+    static final int CATEGORY_GLYPH_ATLAS = 2;
+    static final int CATEGORY_FRAME_BUFFER = 3;
+    static final int CATEGORY_AMBIENT_FRAME = 4;
+    static final int CATEGORY_COUNT = 5;
+
+    private static final String[] CATEGORY_NAMES = {
+            "stipple", "static layer", "glyph atlas", "frame buffer", "ambient frame"
+    };
+
+    //Only the alpha matters, the color comes from the paint
+    static final int CONTENT_MASK = 0;
+    //Every pixel opaque, and every color exact in 16 bits, e.g. only black and white
+    static final int CONTENT_OPAQUE = 1;
+    static final int CONTENT_ANY = 2;
+
+    private long mCapBytes;
+    private long mBytes;
+    private long mPeakBytes;
+    private final long[] mCategoryBytes = new long[CATEGORY_COUNT];
+    private final int[] mCategoryBitmaps = new int[CATEGORY_COUNT];
+    private final long[] mEvictions = new long[CATEGORY_COUNT];
+    private final long[] mEvictedBytes = new long[CATEGORY_COUNT];
+    private long mTrims;
+    private int mLastTrimLevel = -1;
+
+    BitmapBudget(long capBytes) {
+        mCapBytes = capBytes;
+    }
+
+    static Bitmap.Config configFor(int content) {
+        switch (content) {
+            case CONTENT_MASK:
+                return Bitmap.Config.ALPHA_8;
+            case CONTENT_OPAQUE:
+                return Bitmap.Config.RGB_565;
+            default:
+                return Bitmap.Config.ARGB_8888;
+        }
+    }
+
+    Bitmap create(int category, int width, int height, int content) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, configFor(content));
+        adopt(category, bitmap);
+        return bitmap;
+    }
+
+    /** Starts counting a bitmap that was made some other way. */
+    synchronized void adopt(int category, Bitmap bitmap) {
+        long bytes = bitmap.getByteCount();
+        mCategoryBytes[category] += bytes;
+        mCategoryBitmaps[category]++;
+        mBytes += bytes;
+        if(mBytes > mPeakBytes) {
+            mPeakBytes = mBytes;
+        }
+    }
+
+    synchronized void recycle(int category, Bitmap bitmap) {
+        long bytes = bitmap.getByteCount();
+        mCategoryBytes[category] -= bytes;
+        mCategoryBitmaps[category]--;
+        mBytes -= bytes;
+        bitmap.recycle();
+    }
+
+    /** Counts bytes freed because of the cap or memory pressure, rather than disuse. */
+    synchronized void countEviction(int category, long bytes) {
+        mEvictions[category]++;
+        mEvictedBytes[category] += bytes;
+    }
+
+    synchronized void countTrim(int level) {
+        mTrims++;
+        mLastTrimLevel = level;
+    }
+
+    synchronized boolean isOverCap() {
+        return mBytes > mCapBytes;
+    }
+
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    synchronized long getCapBytes() {
+        return mCapBytes;
+    }
+
+    synchronized void setCapBytes(long capBytes) {
+        mCapBytes = capBytes;
+    }
+
+    synchronized long getEvictions() {
+        long total = 0;
+        for(int c=0;c<CATEGORY_COUNT;c++){
+            total += mEvictions[c];
+        }
+        return total;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Bitmap budget: " + mBytes + " of " + mCapBytes + " bytes, peak "
+                + mPeakBytes + ", evictions " + getEvictions() + ", memory trims " + mTrims
+                + (mTrims == 0 ? "" : " (last level " + mLastTrimLevel + ")"));
+        for(int c=0;c<CATEGORY_COUNT;c++){
+            pw.println("  " + CATEGORY_NAMES[c] + ": " + mCategoryBitmaps[c] + " bitmaps, "
+                    + mCategoryBytes[c] + " bytes, evicted " + mEvictions[c] + " ("
+                    + mEvictedBytes[c] + " bytes)");
+        }
+    }
+}
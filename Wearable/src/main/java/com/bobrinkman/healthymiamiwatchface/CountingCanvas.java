@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.Region;
+
+/**
+ * A Canvas that counts the draw calls made on it, so the debug build's RenderHarness can
+ * report draw calls per frame. The engine always draws its offscreen layers through one of
+ * these. Counting is a single increment per call, so there is no need to switch it off.
+ *
+ * Only the overloads the face actually uses are counted. Overloads that the framework
+ * implements by calling one of these would be counted twice, so they are left alone.
+ *
+ * With an OverdrawAnalyzer attached, every counted call, and every save, restore,
+ * translate and clip, is repeated on the analyzer's shadow canvas as well. Attach it only
+ * while nothing is saved, so the shadow starts out in the same state.
+ */
+final class CountingCanvas extends Canvas {
+    private long mDrawCalls;
+    private OverdrawAnalyzer mAnalyzer;
+    private Canvas mShadow;
+
+    CountingCanvas() {
+    }
+
+    CountingCanvas(Bitmap bitmap) {
+        super(bitmap);
+    }
+
+    long getDrawCalls() {
+        return mDrawCalls;
+    }
+
+    /** Starts repeating draw calls for analyzer, or stops if it is null. */
+    void setAnalyzer(OverdrawAnalyzer analyzer) {
+        mAnalyzer = analyzer;
+        mShadow = analyzer != null ? analyzer.newShadow() : null;
+    }
+
+    @Override
+    public int save() {
+        if(mShadow != null) {
+            mShadow.save();
+        }
+        return super.save();
+    }
+
+    @Override
+    public void restore() {
+        if(mShadow != null) {
+            mShadow.restore();
+        }
+        super.restore();
+    }
+
+    @Override
+    public void restoreToCount(int saveCount) {
+        if(mShadow != null) {
+            mShadow.restoreToCount(saveCount);
+        }
+        super.restoreToCount(saveCount);
+    }
+
+    @Override
+    public void translate(float dx, float dy) {
+        if(mShadow != null) {
+            mShadow.translate(dx, dy);
+        }
+        super.translate(dx, dy);
+    }
+
+    @Override
+    public boolean clipRect(Rect rect) {
+        if(mShadow != null) {
+            mShadow.clipRect(rect);
+        }
+        return super.clipRect(rect);
+    }
+
+    @Override
+    public boolean clipRect(Rect rect, Region.Op op) {
+        if(mShadow != null) {
+            mShadow.clipRect(rect, op);
+        }
+        return super.clipRect(rect, op);
+    }
+
+    @Override
+    public boolean clipRect(float left, float top, float right, float bottom) {
+        if(mShadow != null) {
+            mShadow.clipRect(left, top, right, bottom);
+        }
+        return super.clipRect(left, top, right, bottom);
+    }
+
+    @Override
+    public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+        mDrawCalls++;
+        super.drawRect(left, top, right, bottom, paint);
+        if(mAnalyzer != null) {
+            mShadow.drawRect(left, top, right, bottom, mAnalyzer.coverage(paint));
+            mAnalyzer.count(mShadow);
+        }
+    }
+
+    @Override
+    public void drawPath(Path path, Paint paint) {
+        mDrawCalls++;
+        super.drawPath(path, paint);
+        if(mAnalyzer != null) {
+            mShadow.drawPath(path, mAnalyzer.coverage(paint));
+            mAnalyzer.count(mShadow);
+        }
+    }
+
+    @Override
+    public void drawCircle(float cx, float cy, float radius, Paint paint) {
+        mDrawCalls++;
+        super.drawCircle(cx, cy, radius, paint);
+        if(mAnalyzer != null) {
+            mShadow.drawCircle(cx, cy, radius, mAnalyzer.coverage(paint));
+            mAnalyzer.count(mShadow);
+        }
+    }
+
+    @Override
+    public void drawArc(float left, float top, float right, float bottom, float startAngle,
+                        float sweepAngle, boolean useCenter, Paint paint) {
+        mDrawCalls++;
+        super.drawArc(left, top, right, bottom, startAngle, sweepAngle, useCenter, paint);
+        if(mAnalyzer != null) {
+            mShadow.drawArc(left, top, right, bottom, startAngle, sweepAngle, useCenter,
+                    mAnalyzer.coverage(paint));
+            mAnalyzer.count(mShadow);
+        }
+    }
+
+    @Override
+    public void drawRoundRect(float left, float top, float right, float bottom, float rx,
+                              float ry, Paint paint) {
+        mDrawCalls++;
+        super.drawRoundRect(left, top, right, bottom, rx, ry, paint);
+        if(mAnalyzer != null) {
+            mShadow.drawRoundRect(left, top, right, bottom, rx, ry, mAnalyzer.coverage(paint));
+            mAnalyzer.count(mShadow);
+        }
+    }
+
+    @Override
+    public void drawText(String text, float x, float y, Paint paint) {
+        mDrawCalls++;
+        super.drawText(text, x, y, paint);
+        if(mAnalyzer != null) {
+            mShadow.drawText(text, x, y, mAnalyzer.coverage(paint));
+            mAnalyzer.count(mShadow);
+        }
+    }
+
+    @Override
+    public void drawText(char[] text, int index, int count, float x, float y, Paint paint) {
+        mDrawCalls++;
+        super.drawText(text, index, count, x, y, paint);
+        if(mAnalyzer != null) {
+            mShadow.drawText(text, index, count, x, y, mAnalyzer.coverage(paint));
+            mAnalyzer.count(mShadow);
+        }
+    }
+
+    @Override
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+        mDrawCalls++;
+        super.drawBitmap(bitmap, left, top, paint);
+        if(mAnalyzer != null) {
+            mShadow.drawBitmap(bitmap, left, top, mAnalyzer.coverage(paint));
+            mAnalyzer.count(mShadow);
+        }
+    }
+
+    @Override
+    public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+        mDrawCalls++;
+        super.drawBitmap(bitmap, src, dst, paint);
+        if(mAnalyzer != null) {
+            mShadow.drawBitmap(bitmap, src, dst, mAnalyzer.coverage(paint));
+            mAnalyzer.count(mShadow);
+        }
+    }
+
+    @Override
+    public void drawColor(int color) {
+        mDrawCalls++;
+        super.drawColor(color);
+        if(mAnalyzer != null) {
+            mShadow.drawColor(Color.BLACK);
+            mAnalyzer.count(mShadow);
+        }
+    }
+
+    @Override
+    public void drawPaint(Paint paint) {
+        mDrawCalls++;
+        super.drawPaint(paint);
+        if(mAnalyzer != null) {
+            mShadow.drawPaint(mAnalyzer.coverage(paint));
+            mAnalyzer.count(mShadow);
+        }
+    }
+}
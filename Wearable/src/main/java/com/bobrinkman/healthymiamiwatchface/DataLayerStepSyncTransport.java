@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import com.bobrinkman.healthymiamiwatchface.core.StepBatchCodec;
+import com.bobrinkman.healthymiamiwatchface.core.StepSyncTransport;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.Arrays;
+
+/**
+ * Sends step batches to the phone as Data Layer items, one per batch, at
+ * StepBatchCodec.DATA_PATH_PREFIX plus the batch id. The Data Layer holds on to them until
+ * the phone is in range, and the phone deletes each one once it has stored it.
+ *
+ * send() fails while the client isn't connected, and starts connecting again, so the
+ * batcher keeps the steps and retries later. Otherwise it never waits: the put's result
+ * comes back through the callback, on the looper of the thread that sent it, so the sensor
+ * thread isn't held up by the radio. A retry of the same batch puts the same bytes at the
+ * same path, which the Data Layer and the phone both see as one item.
+ */
+final class DataLayerStepSyncTransport implements StepSyncTransport,
+        GoogleApiClient.ConnectionCallbacks {
+    private final GoogleApiClient mClient;
+    private volatile boolean mConnected;
+
+    DataLayerStepSyncTransport(Context context) {
+        mClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .addConnectionCallbacks(this)
+                .build();
+    }
+
+    void connect() {
+        mClient.connect();
+    }
+
+    void disconnect() {
+        mConnected = false;
+        mClient.disconnect();
+    }
+
+    @Override
+    public void onConnected(Bundle connectionHint) {
+        mConnected = true;
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        mConnected = false;
+    }
+
+    @Override
+    public boolean send(final long batchId, byte[] payload, int length,
+            final Callback callback) {
+        if(!mConnected || !mClient.isConnected()) {
+            if(!mClient.isConnecting()) {
+                mClient.connect();
+            }
+            return false;
+        }
+        PutDataRequest request = PutDataRequest.create(StepBatchCodec.DATA_PATH_PREFIX + batchId);
+        request.setData(Arrays.copyOf(payload, length));
+        PendingResult<DataApi.DataItemResult> pending =
+                Wearable.DataApi.putDataItem(mClient, request);
+        pending.setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+            @Override
+            public void onResult(DataApi.DataItemResult result) {
+                callback.onSendDone(batchId, result.getStatus().isSuccess());
+            }
+        });
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+/**
+ * Writes numbers into caller-owned char buffers, so that onDraw() can format the time and
+ * step count without creating Strings. All digits are right-aligned in the buffer, and
+ * each method returns the index of the first character written, which lines up with the
+ * drawText(char[], index, count, ...) and getTextBounds(char[], index, count, ...) overloads.
+ */
+final class DigitFormatter {
+    /** Longest int, with sign: "-2147483648" */
+    static final int MAX_INT_CHARS = 11;
+
+    //Lookup tables for 00 through 99, so that we only do one divide per two digits
+    private static final char[] TENS = new char[100];
+    private static final char[] ONES = new char[100];
+    static {
+        for(int i=0;i<100;i++){
+            TENS[i] = (char)('0' + i/10);
+            ONES[i] = (char)('0' + i%10);
+        }
+    }
+
+    private DigitFormatter() {
+    }
+
+    /**
+     * Writes value as exactly two digits, with a leading zero if needed, into the last two
+     * slots of buf. Value must be between 0 and 99.
+     */
+    static int formatTwoDigits(int value, char[] buf) {
+        int end = buf.length;
+        buf[end-2] = TENS[value];
+        buf[end-1] = ONES[value];
+        return end-2;
+    }
+
+    /**
+     * Writes hour (0-23) as a 12 hour clock value with no leading zero, so 0 becomes "12"
+     * and 13 becomes "1".
+     */
+    static int formatHour12(int hour, char[] buf) {
+        int result = hour % 12;
+        result = (result == 0) ? 12 : result;
+        int start = formatTwoDigits(result, buf);
+        return (result < 10) ? start+1 : start;
+    }
+
+    /**
+     * Writes any int in decimal, with no padding. buf should be at least MAX_INT_CHARS long.
+     */
+    static int formatInt(int value, char[] buf) {
+        int pos = buf.length;
+        //Work with a negative number so that Integer.MIN_VALUE doesn't overflow
+        boolean negative = value < 0;
+        int remaining = negative ? value : -value;
+        while(remaining <= -100){
+            int q = remaining / 100;
+            int r = q*100 - remaining;
+            remaining = q;
+            buf[--pos] = ONES[r];
+            buf[--pos] = TENS[r];
+        }
+        int r = -remaining;
+        buf[--pos] = ONES[r];
+        if(r >= 10){
+            buf[--pos] = TENS[r];
+        }
+        if(negative){
+            buf[--pos] = '-';
+        }
+        return pos;
+    }
+}
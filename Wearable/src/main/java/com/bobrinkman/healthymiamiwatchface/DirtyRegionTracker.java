@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Region;
+
+/**
+ * Keeps track of which parts of the face changed since the last frame, so that onDraw() only
+ * has to recomposite those parts of the frame buffer.
+ *
+ * Each logical region reports where it is this frame and whether its content changed. A
+ * changed region dirties both where it is now and where it was last frame, so that nothing
+ * is left behind when it moves or shrinks. invalidateAll() forces the next frame to repaint
+ * everything, which is what we want on mode and bounds changes.
+ */
+final class DirtyRegionTracker {
+    static final int REGION_RINGS = 0;
+    static final int REGION_DIGITS = 1;
+    static final int REGION_STEP_PILL = 2;
+    static final int REGION_ACTIVITY = 3;
+    static final int REGION_COUNT = 4;
+
+    //Where each region was drawn last frame
+    private final Rect[] mLastBounds = new Rect[REGION_COUNT];
+    //What needs to be repainted this frame
+    private final Rect[] mDirty = new Rect[REGION_COUNT];
+    private final boolean[] mIsDirty = new boolean[REGION_COUNT];
+    private final Rect mFullBounds = new Rect();
+    private boolean mFullRedraw = true;
+
+    //Counters, so we can see how much partial redraw actually saves
+    private long mFrames;
+    private long mFullFrames;
+    private long mPartialFrames;
+
+    DirtyRegionTracker() {
+        for(int i=0;i<REGION_COUNT;i++){
+            mLastBounds[i] = new Rect();
+            mDirty[i] = new Rect();
+        }
+    }
+
+    /** Repaint everything on the next frame. */
+    void invalidateAll() {
+        mFullRedraw = true;
+    }
+
+    /** Starts a frame covering bounds. Must be called before update(). */
+    void beginFrame(Rect bounds) {
+        mFullBounds.set(bounds);
+        for(int i=0;i<REGION_COUNT;i++){
+            mIsDirty[i] = false;
+        }
+    }
+
+    /**
+     * Records where region is this frame. If changed is true, or the region moved, the old
+     * and new areas are both scheduled for repaint.
+     */
+    void update(int region, Rect now, boolean changed) {
+        Rect last = mLastBounds[region];
+        if(changed || !last.equals(now)) {
+            Rect dirty = mDirty[region];
+            dirty.set(now);
+            if(!last.isEmpty()) {
+                dirty.union(last);
+            }
+            mIsDirty[region] = true;
+        }
+        last.set(now);
+    }
+
+    /**
+     * Records where region is this frame, for a region that is already up to date in the
+     * frame buffer (because it was composed ahead of time), so it is not repainted.
+     */
+    void updateRepainted(int region, Rect now) {
+        mLastBounds[region].set(now);
+    }
+
+    boolean isFullRedraw() {
+        return mFullRedraw;
+    }
+
+    boolean hasDirtyRegions() {
+        if(mFullRedraw) {
+            return true;
+        }
+        for(int i=0;i<REGION_COUNT;i++){
+            if(mIsDirty[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Restricts drawing on canvas to the dirty regions. Callers should save() before and
+     * restore() after.
+     */
+    void clip(Canvas canvas) {
+        if(mFullRedraw) {
+            canvas.clipRect(mFullBounds);
+            return;
+        }
+        boolean first = true;
+        for(int i=0;i<REGION_COUNT;i++){
+            if(!mIsDirty[i]) {
+                continue;
+            }
+            canvas.clipRect(mDirty[i], first ? Region.Op.INTERSECT : Region.Op.UNION);
+            first = false;
+        }
+    }
+
+    /** Outlines what was repainted this frame. Debugging aid only. */
+    void drawOverlay(Canvas canvas, Paint paint) {
+        if(mFullRedraw) {
+            canvas.drawRect(mFullBounds, paint);
+            return;
+        }
+        for(int i=0;i<REGION_COUNT;i++){
+            if(mIsDirty[i]) {
+                canvas.drawRect(mDirty[i], paint);
+            }
+        }
+    }
+
+    /** Finishes the frame, after the dirty regions have been repainted. */
+    void endFrame() {
+        mFrames++;
+        if(mFullRedraw) {
+            mFullFrames++;
+        } else if(hasDirtyRegions()) {
+            mPartialFrames++;
+        }
+        mFullRedraw = false;
+    }
+
+    long getFrames() {
+        return mFrames;
+    }
+
+    long getFullFrames() {
+        return mFullFrames;
+    }
+
+    long getPartialFrames() {
+        return mPartialFrames;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Path;
+
+/**
+ * Outlines of the Miami M and the shoe icon, and Paths built from them.
+ *
+ * The points are stored as flat x,y pairs in design units (the 320 pixel round watch). The
+ * built Paths start at the origin, so callers position them with canvas transforms. Engines
+ * get them through RenderResources, which shares one Path per scale between engines, so
+ * they must never be modified.
+ */
+final class FaceGeometry {
+    private static long sBuilds;
+
+    /**
+     * Points to make the beveled M. Note that at the point we
+     * transition from the outer path to the inner path we
+     * have a visual artifact. Need to keep it off screen.
+     */
+    static final float[] M_POINTS = {
+            //Outer perimeter
+            0.0f,163.8f,
+            24.6f,122.8f,
+            29.2f,122.8f,
+            29.2f,41.0f,
+            24.8f,41.0f,
+            0.0f,0.0f,
+            72.8f,0.0f,
+            108.5f,61.2f,
+            144.1f,0.0f,
+            217.0f,0.0f,
+            191.8f,41.0f,
+            187.5f,41.0f,
+            187.5f,122.8f,
+            192.0f,122.8f,
+            217.0f,163.8f,
+            110.0f,163.8f,
+            134.7f,122.8f,
+            139.1f,122.8f,
+            139.1f,97.0f,
+            108.5f,149.1f,
+            77.4f,96.5f,
+            77.4f,122.8f,
+            81.9f,122.8f,
+            106.5f,163.8f,
+
+            //Repeat first point of outer perimenter
+            0.0f,163.8f,
+
+            //Inner perimeter
+            20.3f,155.2f,
+            31.4f,133.9f,
+            40.5f,133.9f,
+            40.5f,29.4f,
+            31.4f,29.4f,
+            20.5f,11.1f,
+            65.9f,11.1f,
+            108.5f,83.7f,
+            151.3f,11.1f,
+            196.5f,11.1f,
+            185.6f,29.4f,
+            176.5f,29.4f,
+            176.5f,133.9f,
+            185.7f,133.9f,
+            196.5f,155.2f,
+            130.4f,155.2f,
+            141.5f,133.9f,
+            150.8f,133.9f,
+            150.8f,54.3f,
+            108.5f,126.3f,
+            66.4f,54.3f,
+            66.4f,133.9f,
+            75.4f,133.9f,
+            86.6f,155.2f,
+            20.3f,155.2f
+    };
+
+    static final float[] SHOE_POINTS = {
+            0.00674493f,11.299466f,
+            0.04524493f,9.913266f,
+            0.27628493f,8.3729658f,
+            0.73836493f,7.1022658f,
+            1.1234349f,6.2936658f,
+            1.7780549f,5.4849658f,
+            2.6252049f,5.0613658f,
+            3.6263849f,4.9843658f,
+            4.3195049f,5.2924658f,
+            5.0126249f,6.1010658f,
+            5.6672449f,7.5258658f,
+            5.8982849f,8.0649658f,
+            5.6287349f,6.6016658f,
+            5.2051649f,5.4849658f,
+            5.0126249f,4.3682658f,
+            5.0511249f,3.0590658f,
+            5.4361949f,1.9808658f,
+            5.8982749f,1.018166f,
+            6.3988649f,0.36356603f,
+            7.1690049f,0.05556603f,
+            8.3627149f,0.05556603f,
+            9.1713549f,0.47906603f,
+            9.8259749f,0.97966599f,
+            10.326565f,1.6728658f,
+            10.673125f,2.4429658f,
+            11.058195f,3.5981658f,
+            11.327735f,4.5608658f,
+            11.366235f,5.2154658f,
+            11.366235f,6.1781658f,
+            11.173705f,7.1792658f,
+            10.942665f,8.4500658f,
+            10.904165f,9.3741658f,
+            10.904165f,10.452366f,
+            10.904165f,11.607566f,
+            10.904165f,13.186366f,
+            10.904165f,14.187566f,
+            10.634615f,15.150166f,
+            10.211045f,15.727766f,
+            9.5179149f,16.266866f,
+            8.7862849f,16.343866f,
+            7.9776449f,16.304866f,
+            7.1690049f,15.996866f,
+            6.6684149f,15.534766f,
+            6.2063249f,14.649166f,
+            6.0523049f,13.763466f,
+            6.1678249f,12.492766f,
+            6.3603549f,11.029466f,
+            6.2833549f,10.336366f,
+            6.0908149f,9.7202658f,
+            6.0523149f,11.067966f,
+            5.7057549f,11.915166f,
+            5.5517249f,12.723766f,
+            5.3591849f,13.686466f,
+            5.3591849f,14.379566f,
+            5.5132149f,15.188266f,
+            5.8597749f,16.189366f,
+            6.0908149f,17.113566f,
+            6.3218549f,17.999166f,
+            6.3988549f,18.653866f,
+            6.4758549f,19.462466f,
+            6.2833249f,20.617666f,
+            5.7827349f,21.349266f,
+            4.9355849f,21.888366f,
+            4.2039549f,22.042466f,
+            3.3568049f,22.042466f,
+            2.6251749f,21.618866f,
+            1.8550349f,20.579166f,
+            1.6239949f,19.616466f,
+            1.4314649f,17.768166f,
+            1.3159449f,16.073866f,
+            1.0848949f,14.995666f,
+            0.73833493f,13.840466f,
+            0.31476493f,12.800766f,
+            0.04521493f,11.876666f
+    };
+
+    private FaceGeometry() {
+    }
+
+    /** The M at the given scale, with its top left corner at the origin. */
+    static Path buildMPath(float uiScale) {
+        return buildPath(M_POINTS, uiScale);
+    }
+
+    /** The shoe at the given scale, with its top left corner at the origin. */
+    static Path buildShoePath(float uiScale) {
+        return buildPath(SHOE_POINTS, uiScale);
+    }
+
+    /** How many Paths have been built, for dump(). */
+    static synchronized long getBuildCount() {
+        return sBuilds;
+    }
+
+    private static Path buildPath(float[] points, float uiScale) {
+        synchronized (FaceGeometry.class) {
+            sBuilds++;
+        }
+        Path path = new Path();
+        path.setFillType(Path.FillType.EVEN_ODD);
+        path.moveTo(uiScale*points[0], uiScale*points[1]);
+        for(int i=2;i<points.length;i+=2){
+            path.lineTo(uiScale*points[i], uiScale*points[i+1]);
+        }
+        path.close();
+        return path;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import com.bobrinkman.healthymiamiwatchface.core.ActivityMetrics;
+
+/**
+ * Where an engine's onDraw() gets the time, ambient state and step numbers from, and where
+ * it reports each frame. The engine's own inputs read the system clock and the step sensor;
+ * a debug harness can swap in scripted ones through ScriptableFace, so its frames don't
+ * depend on when or where they are drawn and don't touch the real step data or pacing.
+ */
+interface FrameInputs {
+    /** Milliseconds since the epoch to draw. Read once per frame. */
+    long getTimeMs();
+
+    boolean isAmbient();
+
+    int getTodaySteps();
+
+    /** Where the activity lines under the step pill come from. */
+    ActivityMetrics getActivity();
+
+    /** Called at the start of each frame, after the clock has been read. */
+    void onFrameStart();
+
+    /** Called at the end of each frame with how long it took to draw, in ns. */
+    void onFrameDrawn(long drawNs, boolean ambient);
+}
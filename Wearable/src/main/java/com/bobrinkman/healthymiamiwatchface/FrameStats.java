@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing histograms for the phases of onDraw(), plus a few frame counters.
+ *
+ * Recording never allocates. Each phase has a fixed set of buckets: 4 per power of two
+ * nanoseconds, so a reported percentile is at most 25% above the real value. The max is
+ * exact. Reads from dump() are not synchronized with the render thread, which is fine for
+ * diagnostics.
+ */
+final class FrameStats {
+    static final int PHASE_BACKGROUND = 0;
+    static final int PHASE_M_PATH = 1;
+    static final int PHASE_RINGS = 2;
+    static final int PHASE_TEXT_MEASURE = 3;
+    static final int PHASE_TEXT_DRAW = 4;
+    static final int PHASE_STEP_PILL = 5;
+    static final int PHASE_PRESENT = 6;
+    static final int PHASE_FRAME = 7;
+    static final int PHASE_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {
+            "background", "M path", "circle+arcs", "text layout", "text draw",
+            "step pill+shoe", "present", "whole frame"
+    };
+
+    //Buckets cover 0 ns up to about 2^40 ns (18 minutes). Anything longer is clamped
+    private static final int SUB_BUCKETS = 4;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final int BUCKET_COUNT = SUB_BUCKETS * MAX_MAGNITUDE;
+
+    private final long[][] mBuckets = new long[PHASE_COUNT][BUCKET_COUNT];
+    private final long[] mSamples = new long[PHASE_COUNT];
+    private final long[] mTotalNs = new long[PHASE_COUNT];
+    private final long[] mMaxNs = new long[PHASE_COUNT];
+
+    private long mFrames;
+    private long mSkippedFrames;
+    private long mLastFrameStartNs;
+    //Bumped from the sensor thread as well as the render thread
+    private final AtomicLong mStepUpdates = new AtomicLong();
+
+    private volatile boolean mEnabled = true;
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    void record(int phase, long ns) {
+        if(ns < 0) {
+            ns = 0;
+        }
+        mBuckets[phase][bucketFor(ns)]++;
+        mSamples[phase]++;
+        mTotalNs[phase] += ns;
+        if(ns > mMaxNs[phase]) {
+            mMaxNs[phase] = ns;
+        }
+    }
+
+    /**
+     * Counts a frame that started at frameStartNs. If it came more than half an interval
+     * later than expectedIntervalNs after the last one, the frames we should have drawn in
+     * between count as skipped. Pass 0 for expectedIntervalNs when no timer is running.
+     */
+    void countFrame(long frameStartNs, long expectedIntervalNs) {
+        mFrames++;
+        if(expectedIntervalNs > 0 && mLastFrameStartNs != 0) {
+            long gap = frameStartNs - mLastFrameStartNs;
+            if(gap > expectedIntervalNs + expectedIntervalNs/2) {
+                mSkippedFrames += gap / expectedIntervalNs - 1;
+            }
+        }
+        mLastFrameStartNs = expectedIntervalNs > 0 ? frameStartNs : 0;
+    }
+
+    void countStepUpdate() {
+        mStepUpdates.incrementAndGet();
+    }
+
+    /** Returns the upper bound of the bucket that holds the given percentile, in ns. */
+    long percentileNs(int phase, double percentile) {
+        long samples = mSamples[phase];
+        if(samples == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil(samples * percentile / 100.0);
+        long seen = 0;
+        long[] buckets = mBuckets[phase];
+        for(int i=0;i<BUCKET_COUNT;i++){
+            seen += buckets[i];
+            if(seen >= target) {
+                return Math.min(bucketUpperBound(i), mMaxNs[phase]);
+            }
+        }
+        return mMaxNs[phase];
+    }
+
+    void reset() {
+        for(int p=0;p<PHASE_COUNT;p++){
+            long[] buckets = mBuckets[p];
+            for(int i=0;i<BUCKET_COUNT;i++){
+                buckets[i] = 0;
+            }
+            mSamples[p] = 0;
+            mTotalNs[p] = 0;
+            mMaxNs[p] = 0;
+        }
+        mFrames = 0;
+        mSkippedFrames = 0;
+        mLastFrameStartNs = 0;
+        mStepUpdates.set(0);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Frame stats (" + (mEnabled ? "enabled" : "disabled") + "):");
+        pw.println("  frames " + mFrames + ", skipped " + mSkippedFrames
+                + ", updateStepData calls " + mStepUpdates.get());
+        pw.println("  phase            samples    mean     p50     p90     p99     max  (us)");
+        for(int p=0;p<PHASE_COUNT;p++){
+            long samples = mSamples[p];
+            pw.printf("  %-15s %8d %7.1f %7.1f %7.1f %7.1f %7.1f%n",
+                    PHASE_NAMES[p], samples,
+                    samples == 0 ? 0.0 : mTotalNs[p] / 1000.0 / samples,
+                    percentileNs(p, 50) / 1000.0,
+                    percentileNs(p, 90) / 1000.0,
+                    percentileNs(p, 99) / 1000.0,
+                    mMaxNs[p] / 1000.0);
+        }
+    }
+
+    private static int bucketFor(long ns) {
+        if(ns < SUB_BUCKETS) {
+            return (int)ns;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(ns);
+        if(magnitude >= MAX_MAGNITUDE) {
+            return BUCKET_COUNT-1;
+        }
+        int sub = (int)(ns >>> (magnitude-2)) & (SUB_BUCKETS-1);
+        return SUB_BUCKETS*(magnitude-1) + sub;
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket/SUB_BUCKETS + 1;
+        int sub = bucket % SUB_BUCKETS;
+        long lower = (long)(SUB_BUCKETS + sub) << (magnitude-2);
+        return lower + (1L << (magnitude-2)) - 1;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Pre-rendered glyphs for one text paint, so that onDraw() can show digits by copying them
+ * out of a bitmap instead of shaping and rasterizing text every frame.
+ *
+ * rebuild() draws each glyph once with the paint into an ALPHA_8 bitmap, side by side, and
+ * records its advance and bounds. draw() then copies one sprite per character, tinted with
+ * the paint's color, and measure() does what Paint.getTextBounds() would without touching
+ * the font. Pen positions are rounded to whole pixels so sprites are never resampled.
+ * Only the characters passed to rebuild() are in the atlas. Text with any other character
+ * falls back to Canvas.drawText(). Rebuild whenever the paint's size, typeface or
+ * anti-aliasing changes.
+ */
+final class GlyphAtlas {
+    //Empty pixels around each glyph, so anti-aliased edges don't bleed into neighbors
+    private static final int GLYPH_PADDING = 2;
+
+    //Index into the arrays below for each character, or -1 if not in the atlas
+    private final int[] mIndex = new int[128];
+    private char[] mGlyphs = new char[0];
+    private float[] mAdvances = new float[0];
+    private Rect[] mBounds = new Rect[0];
+    private int[] mCellLeft = new int[0];
+    //Distance from the top of a cell to the baseline
+    private int mCellBaseline;
+    private int mCellHeight;
+
+    private final BitmapBudget mBudget;
+    private Bitmap mBitmap;
+
+    private final Rect mSrc = new Rect();
+    private final Rect mDst = new Rect();
+
+    GlyphAtlas(BitmapBudget budget) {
+        mBudget = budget;
+        clearIndex();
+    }
+
+    /** Renders glyphs with paint, replacing whatever was in the atlas. */
+    void rebuild(Paint paint, String glyphs) {
+        int count = glyphs.length();
+        if(mGlyphs.length != count) {
+            mGlyphs = new char[count];
+            mAdvances = new float[count];
+            mBounds = new Rect[count];
+            mCellLeft = new int[count];
+            for(int i=0;i<count;i++){
+                mBounds[i] = new Rect();
+            }
+        }
+        glyphs.getChars(0, count, mGlyphs, 0);
+        paint.getTextWidths(glyphs, mAdvances);
+
+        clearIndex();
+        int width = 0;
+        int top = 0;
+        int bottom = 0;
+        for(int i=0;i<count;i++){
+            char c = mGlyphs[i];
+            mIndex[c] = i;
+            Rect bounds = mBounds[i];
+            paint.getTextBounds(glyphs, i, i+1, bounds);
+            mCellLeft[i] = width;
+            width += bounds.width() + 2*GLYPH_PADDING;
+            top = Math.min(top, bounds.top);
+            bottom = Math.max(bottom, bounds.bottom);
+        }
+        mCellBaseline = GLYPH_PADDING - top;
+        mCellHeight = bottom - top + 2*GLYPH_PADDING;
+
+        width = Math.max(1, width);
+        int height = Math.max(1, mCellHeight);
+        if(mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            if(mBitmap != null) {
+                mBudget.recycle(BitmapBudget.CATEGORY_GLYPH_ATLAS, mBitmap);
+            }
+            mBitmap = mBudget.create(BitmapBudget.CATEGORY_GLYPH_ATLAS, width, height,
+                    BitmapBudget.CONTENT_MASK);
+        } else {
+            mBitmap.eraseColor(0);
+        }
+
+        //Same size, typeface and anti-aliasing as the paint, but drawn opaque from the
+        // left. The real color is applied when the sprite is drawn
+        Paint glyphPaint = new Paint(paint);
+        glyphPaint.setTextAlign(Paint.Align.LEFT);
+        glyphPaint.setColor(0xFFFFFFFF);
+        Canvas canvas = new Canvas(mBitmap);
+        for(int i=0;i<count;i++){
+            canvas.drawText(mGlyphs, i, 1,
+                    mCellLeft[i] + GLYPH_PADDING - mBounds[i].left, mCellBaseline, glyphPaint);
+        }
+    }
+
+    /** Frees the bitmap. The atlas must be rebuilt before it is used again. */
+    void release() {
+        if(mBitmap != null) {
+            mBudget.recycle(BitmapBudget.CATEGORY_GLYPH_ATLAS, mBitmap);
+            mBitmap = null;
+        }
+        clearIndex();
+    }
+
+    /**
+     * Like Paint.getTextBounds(): sets bounds to the ink of the text, relative to a pen that
+     * starts at 0 on the baseline. Returns the advance of the whole text, or -1 if some
+     * character isn't in the atlas, in which case bounds is untouched.
+     */
+    float measure(char[] text, int start, int count, Rect bounds) {
+        if(!covers(text, start, count)) {
+            return -1;
+        }
+        float pen = 0;
+        int left = Integer.MAX_VALUE;
+        int top = 0;
+        int right = Integer.MIN_VALUE;
+        int bottom = 0;
+        for(int i=start;i<start+count;i++){
+            int g = mIndex[text[i]];
+            Rect glyph = mBounds[g];
+            int x = Math.round(pen);
+            left = Math.min(left, x + glyph.left);
+            right = Math.max(right, x + glyph.right);
+            top = Math.min(top, glyph.top);
+            bottom = Math.max(bottom, glyph.bottom);
+            pen += mAdvances[g];
+        }
+        if(count == 0) {
+            left = 0;
+            right = 0;
+        }
+        bounds.set(left, top, right, bottom);
+        return pen;
+    }
+
+    /**
+     * Draws text with its baseline at y, positioned at x according to the paint's text
+     * alignment, the same as Canvas.drawText() would.
+     */
+    void draw(Canvas canvas, char[] text, int start, int count, float x, float y,
+              Paint paint) {
+        if(mBitmap == null || !covers(text, start, count)) {
+            canvas.drawText(text, start, count, x, y, paint);
+            return;
+        }
+        float advance = 0;
+        for(int i=start;i<start+count;i++){
+            advance += mAdvances[mIndex[text[i]]];
+        }
+        Paint.Align align = paint.getTextAlign();
+        if(align == Paint.Align.CENTER) {
+            x -= advance/2;
+        } else if(align == Paint.Align.RIGHT) {
+            x -= advance;
+        }
+        int baseline = Math.round(y);
+        float pen = x;
+        for(int i=start;i<start+count;i++){
+            int g = mIndex[text[i]];
+            Rect glyph = mBounds[g];
+            int cellLeft = mCellLeft[g];
+            int cellWidth = glyph.width() + 2*GLYPH_PADDING;
+            mSrc.set(cellLeft, 0, cellLeft + cellWidth, mCellHeight);
+            int dstLeft = Math.round(pen) + glyph.left - GLYPH_PADDING;
+            int dstTop = baseline - mCellBaseline;
+            mDst.set(dstLeft, dstTop, dstLeft + cellWidth, dstTop + mCellHeight);
+            canvas.drawBitmap(mBitmap, mSrc, mDst, paint);
+            pen += mAdvances[g];
+        }
+    }
+
+    int getByteCount() {
+        return mBitmap == null ? 0 : mBitmap.getByteCount();
+    }
+
+    private boolean covers(char[] text, int start, int count) {
+        for(int i=start;i<start+count;i++){
+            char c = text[i];
+            if(c >= mIndex.length || mIndex[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void clearIndex() {
+        for(int i=0;i<mIndex.length;i++){
+            mIndex[i] = -1;
+        }
+    }
+}
@@ -41,17 +41,37 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.BatteryManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.wearable.watchface.CanvasWatchFaceService;
 import android.support.wearable.watchface.WatchFaceStyle;
-import android.text.format.Time;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.WindowInsets;
 
+import com.bobrinkman.healthymiamiwatchface.core.ActivityMetrics;
+import com.bobrinkman.healthymiamiwatchface.core.FaceClock;
+import com.bobrinkman.healthymiamiwatchface.core.FaceLayout;
+import com.bobrinkman.healthymiamiwatchface.core.FrameGovernor;
+import com.bobrinkman.healthymiamiwatchface.core.StepEventRing;
+import com.bobrinkman.healthymiamiwatchface.core.StepHistory;
+import com.bobrinkman.healthymiamiwatchface.core.StepState;
+import com.bobrinkman.healthymiamiwatchface.core.StepSyncBatcher;
+import com.bobrinkman.healthymiamiwatchface.core.StepTracker;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TimeZone;
 
 /**
@@ -59,30 +79,77 @@ import java.util.TimeZone;
  */
 public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
     private static final String TAG = "MiamiWatchFaceSrv";
+    private static final String DIRTY_REGIONS_TAG = "MiamiDirtyRegions";
 
-    //Watch measurement constants
-    private static final float WATCH_DIM_ROUND = 320.0f;
-    private static final float WATCH_DIM_SQUARE = 280.0f;
-    private static final float WATCH_RADIUS =  WATCH_DIM_ROUND/2.0f;
+    //Watch measurement constants. The layout math lives in FaceLayout
+    private static final float WATCH_DIM_ROUND = FaceLayout.WATCH_DIM_ROUND;
+    private static final float WATCH_RADIUS = FaceLayout.WATCH_RADIUS;
 
     //Measurement constants for the main time display
-    private static final float CIRCLE_WIDTH = WATCH_RADIUS;
-    private static final float CIRCLE_RADIUS = CIRCLE_WIDTH/2.0f;
-    private static final float CIRCLE_OFFSET = (float) Math.sqrt(CIRCLE_RADIUS*CIRCLE_RADIUS/2.0f);
+    private static final float CIRCLE_RADIUS = FaceLayout.CIRCLE_RADIUS;
 
     //Measurement constants for fonts and font spacing
     private static final float FONT_SIZE_LARGE = 90.0f;
+    //Everything the hour, minute and step count text can contain
+    private static final String DIGIT_GLYPHS = "0123456789";
     //Padding around step counter as well as spacing between hours and minutes
-    private static final int PADDING = 12;
+    private static final int PADDING = FaceLayout.PADDING;
 
     //Dimensions of the Beveled M path
     private static final float M_PATH_WIDTH = 217.0f;
     private static final float M_PATH_HEIGHT = 164.0f;
     /**
-     * Update rate in milliseconds for normal (not ambient) mode.
-     * 20 FPS seems to be sufficiently smooth looking
+     * Fastest update rate in milliseconds for normal (not ambient) mode.
+     * 20 FPS seems to be sufficiently smooth looking. RedrawScheduler
+     * picks a slower rate when nothing would visibly change that often,
+     * and FrameGovernor caps it lower when frames are expensive or the
+     * battery is low.
      */
     private static final long NORMAL_UPDATE_RATE_MS = 1000/20;
+    //Drawing time per second FrameGovernor lets interactive mode use: 2.5% of a core
+    private static final long FRAME_CPU_BUDGET_NS_PER_S = 25 * 1000 * 1000L;
+    //How often FrameGovernor gets a new battery reading while the timer runs
+    private static final long BATTERY_POLL_MS = 60 * 1000;
+
+    /**
+     * Set to false to compile the onDraw() timing out entirely. When true, it can still be
+     * turned off at run time with:
+     *   adb shell dumpsys activity service .HealthyMiamiWatchFaceService stats off
+     */
+    static final boolean FRAME_STATS_ENABLED = true;
+
+    /**
+     * How long the step counter may hold events in its hardware FIFO before waking us up.
+     * Nobody needs the step count to the second, and batching lets the CPU sleep.
+     */
+    private static final int STEP_SENSOR_MAX_LATENCY_US = 10 * 1000 * 1000;
+    //Events from one batch are collected here before being handled together. Bigger
+    // batches than this just lose time resolution, see StepEventRing
+    private static final int STEP_EVENT_BUFFER_SIZE = 256;
+
+    //How much per-minute step history to keep on the watch, and where
+    private static final int STEP_HISTORY_DAYS = 7;
+    private static final String STEP_HISTORY_FILE = "step_history.bin";
+
+    //Steps go to the phone once this many minutes of them are waiting, or the oldest have
+    // waited this long, so the radio isn't woken for every step
+    private static final int STEP_SYNC_MAX_MINUTES = 60;
+    private static final long STEP_SYNC_MAX_DELAY_MS = 15 * 60 * 1000L;
+
+    //The activity lines under the step pill: "<cadence> spm  <n> active min" and
+    // "<n> /10 min  <n> /hr". Numbers are ints, so a line never needs more than this
+    private static final int ACTIVITY_LINE_CHARS = 48;
+    private static final String ACTIVITY_CADENCE_LABEL = " spm  ";
+    private static final String ACTIVITY_ACTIVE_LABEL = " active min";
+    private static final String ACTIVITY_SHORT_LABEL = " /10 min  ";
+    private static final String ACTIVITY_LONG_LABEL = " /hr";
+
+    //What bitmaps may add up to before render resources nobody is using are let go. A
+    // 320 pixel screen needs about 1.2 MB in use: frame buffer, ambient frame and static
+    // layer. This leaves room to keep the other mode's static layer and atlases around.
+    // Change it at run time with
+    //   adb shell dumpsys activity service .HealthyMiamiWatchFaceService budget <bytes>
+    private static final long BITMAP_BUDGET_BYTES = 2 * 1024 * 1024;
 
     private static final DashPathEffect mTopLayerBorderDashEffect
             = new DashPathEffect(new float[]{(2.0f),(4.0f)},0);
@@ -99,162 +166,29 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
     private static final int INTERACTIVE_CIRCLE_BORDER_COLOR = Color.argb(255,255,255,255);
     private static final int LOWBIT_CIRCLE_BORDER_COLOR = Color.argb(255,255,255,255);
     private static final int INTERACTIVE_MIAMI_M_COLOR = Color.argb(255,255,255,255);
+    private static final int DIRTY_REGION_OVERLAY_COLOR = Color.argb(255,0,255,0);
 
-    private static final float SHOE_PATH_WIDTH = 11.373f;
-    private static final float SHOE_PATH_HEIGHT = 22.0f;
-    /**
-     * Points to make the beveled M. Note that at the point we
-     * transition from the outer path to the inner path we
-     * have a visual artifact. Need to keep it off screen.
-     */
-    private static final float[][] M_POINTS = {
-            //Outer perimeter
-            {0.0f,163.8f},
-            {24.6f,122.8f},
-            {29.2f,122.8f},
-            {29.2f,41.0f},
-            {24.8f,41.0f},
-            {0.0f,0.0f},
-            {72.8f,0.0f},
-            {108.5f,61.2f},
-            {144.1f,0.0f},
-            {217.0f,0.0f},
-            {191.8f,41.0f},
-            {187.5f,41.0f},
-            {187.5f,122.8f},
-            {192.0f,122.8f},
-            {217.0f,163.8f},
-            {110.0f,163.8f},
-            {134.7f,122.8f},
-            {139.1f,122.8f},
-            {139.1f,97.0f},
-            {108.5f,149.1f},
-            {77.4f,96.5f},
-            {77.4f,122.8f},
-            {81.9f,122.8f},
-            {106.5f,163.8f},
-
-            //Repeat first point of outer perimenter
-            {0.0f,163.8f},
-
-            //Inner perimeter
-            {20.3f, 155.2f},
-            {31.4f, 133.9f},
-            {40.5f, 133.9f},
-            {40.5f, 29.4f},
-            {31.4f, 29.4f},
-            {20.5f, 11.1f},
-            {65.9f, 11.1f},
-            {108.5f, 83.7f},
-            {151.3f, 11.1f},
-            {196.5f, 11.1f},
-            {185.6f, 29.4f},
-            {176.5f, 29.4f},
-            {176.5f, 133.9f},
-            {185.7f, 133.9f},
-            {196.5f, 155.2f},
-            {130.4f, 155.2f},
-            {141.5f, 133.9f},
-            {150.8f, 133.9f},
-            {150.8f, 54.3f},
-            {108.5f, 126.3f},
-            {66.4f, 54.3f},
-            {66.4f, 133.9f},
-            {75.4f, 133.9f},
-            {86.6f, 155.2f},
-            {20.3f, 155.2f}
-    } ;
-
-    private static final double[][] SHOE_POINTS = {
-            {0.00674493,11.299466},
-            {0.04524493,9.913266},
-            {0.27628493,8.3729658},
-            {0.73836493,7.1022658},
-            {1.1234349,6.2936658},
-            {1.7780549,5.4849658},
-            {2.6252049,5.0613658},
-            {3.6263849,4.9843658},
-            {4.3195049,5.2924658},
-            {5.0126249,6.1010658},
-            {5.6672449,7.5258658},
-            {5.8982849,8.0649658},
-            {5.6287349,6.6016658},
-            {5.2051649,5.4849658},
-            {5.0126249,4.3682658},
-            {5.0511249,3.0590658},
-            {5.4361949,1.9808658},
-            {5.8982749,1.018166},
-            {6.3988649,0.36356603},
-            {7.1690049,0.05556603},
-            {8.3627149,0.05556603},
-            {9.1713549,0.47906603},
-            {9.8259749,0.97966599},
-            {10.326565,1.6728658},
-            {10.673125,2.4429658},
-            {11.058195,3.5981658},
-            {11.327735,4.5608658},
-            {11.366235,5.2154658},
-            {11.366235,6.1781658},
-            {11.173705,7.1792658},
-            {10.942665,8.4500658},
-            {10.904165,9.3741658},
-            {10.904165,10.452366},
-            {10.904165,11.607566},
-            {10.904165,13.186366},
-            {10.904165,14.187566},
-            {10.634615,15.150166},
-            {10.211045,15.727766},
-            {9.5179149,16.266866},
-            {8.7862849,16.343866},
-            {7.9776449,16.304866},
-            {7.1690049,15.996866},
-            {6.6684149,15.534766},
-            {6.2063249,14.649166},
-            {6.0523049,13.763466},
-            {6.1678249,12.492766},
-            {6.3603549,11.029466},
-            {6.2833549,10.336366},
-            {6.0908149,9.7202658},
-            {6.0523149,11.067966},
-            {5.7057549,11.915166},
-            {5.5517249,12.723766},
-            {5.3591849,13.686466},
-            {5.3591849,14.379566},
-            {5.5132149,15.188266},
-            {5.8597749,16.189366},
-            {6.0908149,17.113566},
-            {6.3218549,17.999166},
-            {6.3988549,18.653866},
-            {6.4758549,19.462466},
-            {6.2833249,20.617666},
-            {5.7827349,21.349266},
-            {4.9355849,21.888366},
-            {4.2039549,22.042466},
-            {3.3568049,22.042466},
-            {2.6251749,21.618866},
-            {1.8550349,20.579166},
-            {1.6239949,19.616466},
-            {1.4314649,17.768166},
-            {1.3159449,16.073866},
-            {1.0848949,14.995666},
-            {0.73833493,13.840466},
-            {0.31476493,12.800766},
-            {0.04521493,11.876666}
-    };
+    private static final float SHOE_PATH_WIDTH = FaceLayout.SHOE_PATH_WIDTH;
 
     /**
      * These are visual elements that aren't changed after they are initialized,
      * they can be safely shared between different Engine instances
      *
      * I'd happily make these final if I could figure out how to statically initialize them
+     *
+     * They take a while to load, so loadSharedResources() does it in the background. Until
+     * they arrive engines draw with the default typeface and no stipple, see
+     * DRAW_MODE_PLACEHOLDER. mStippleShader is set last, so once it is non-null they all are
      */
-    private static Typeface mNormalTypeface;
-    private static Typeface mThinTypeface;
-    private static Shader mStippleShader;
+    private static volatile Typeface mNormalTypeface;
+    private static volatile Typeface mThinTypeface;
+    private static volatile Shader mStippleShader;
+    private static volatile Bitmap mStippleBitmap;
+    //How long the background load of each took, for dump()
+    private static volatile long mFontLoadNs;
+    private static volatile long mStippleLoadNs;
 
     private static final Paint mBlackPaint = new Paint(); //For clearing the screen
-    private static final Paint mInteractiveBackgroundPaint = new Paint(); //red gradient for watch face
-    private static final Paint mAmbientBackgroundPaint = new Paint(); //gray gradient for watch face
     private static final Paint mTopLayerBackgroundPaint = new Paint();
     private static final Paint mTopLayerBorderPaint = new Paint();
     private static final Paint mTopLayerBackgroundPaintLowBit = new Paint();
@@ -262,23 +196,262 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
     private static final Paint mMNoBurnFillPaint = new Paint();
     private static final Paint mMLowBitFillPaint = new Paint();
 
+    //The background gradients depend on the screen bounds, so they come from
+    // mRenderResources rather than living on static paints
+    private static final RenderResources.Factory<Shader> INTERACTIVE_GRADIENT =
+            new RenderResources.Factory<Shader>() {
+                @Override
+                Shader create(RenderResources.Key key) {
+                    return new RadialGradient(key.width/2, key.height/2,
+                            key.uiScale*WATCH_RADIUS,
+                            overBlack(INTERACTIVE_BACKGROUND_COLOR_INNER),
+                            overBlack(INTERACTIVE_BACKGROUND_COLOR_OUTER),
+                            Shader.TileMode.CLAMP);
+                }
+            };
+    private static final RenderResources.Factory<Shader> AMBIENT_GRADIENT =
+            new RenderResources.Factory<Shader>() {
+                @Override
+                Shader create(RenderResources.Key key) {
+                    return new RadialGradient(key.width/2, key.height/2,
+                            key.uiScale*WATCH_RADIUS,
+                            overBlack(AMBIENT_BACKGROUND_COLOR_INNER),
+                            overBlack(AMBIENT_BACKGROUND_COLOR_OUTER),
+                            Shader.TileMode.CLAMP);
+                }
+            };
+    private static final RenderResources.Factory<Path> M_PATH =
+            new RenderResources.Factory<Path>() {
+                @Override
+                Path create(RenderResources.Key key) {
+                    return FaceGeometry.buildMPath(key.uiScale);
+                }
+            };
+    private static final RenderResources.Factory<Path> SHOE_PATH =
+            new RenderResources.Factory<Path>() {
+                @Override
+                Path create(RenderResources.Key key) {
+                    return FaceGeometry.buildShoePath(key.uiScale);
+                }
+            };
+
+    //Live engines, so that dump() can report on them
+    private final List<Engine> mEngines = new ArrayList<>();
+    //Whether loadSharedResources() has a thread running. Guarded by mEngines
+    private boolean mSharedResourcesLoading = false;
+
+    static boolean sharedResourcesReady() {
+        return mStippleShader != null;
+    }
+
+    /**
+     * Starts loading the fonts and the stipple on a background thread, unless they are
+     * already loaded or loading. Each live engine is sent MSG_SHARED_RESOURCES_LOADED when
+     * they are ready. Engines created after that find them in onCreate().
+     */
+    void loadSharedResources() {
+        synchronized (mEngines) {
+            if (mSharedResourcesLoading || sharedResourcesReady()) {
+                return;
+            }
+            mSharedResourcesLoading = true;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    long start = System.nanoTime();
+                    mNormalTypeface = Typeface.createFromAsset(getAssets(), "Open Sans 600.ttf");
+                    mThinTypeface = Typeface.createFromAsset(getAssets(), "Open Sans 300.ttf");
+                    long fontsDone = System.nanoTime();
+                    mFontLoadNs = fontsDone - start;
+                    //The stipple is white where it isn't clear, so only its alpha is kept
+                    Bitmap decoded = BitmapFactory.decodeResource(getResources(),
+                            R.drawable.stipple);
+                    Bitmap stipple = decoded.extractAlpha();
+                    decoded.recycle();
+                    mBitmapBudget.adopt(BitmapBudget.CATEGORY_STIPPLE, stipple);
+                    mStippleBitmap = stipple;
+                    mStippleShader = new BitmapShader(stipple, Shader.TileMode.REPEAT,
+                            Shader.TileMode.REPEAT);
+                    mStippleLoadNs = System.nanoTime() - fontsDone;
+                } catch (RuntimeException e) {
+                    //Engines just keep the fallbacks
+                    Log.e(TAG, "Could not load fonts and stipple", e);
+                }
+                synchronized (mEngines) {
+                    mSharedResourcesLoading = false;
+                    if (sharedResourcesReady()) {
+                        for (Engine engine : mEngines) {
+                            engine.mUpdateTimeHandler.sendEmptyMessage(
+                                    MSG_SHARED_RESOURCES_LOADED);
+                        }
+                    }
+                }
+            }
+        }, "FaceResources").start();
+    }
+
+    //Every bitmap the service makes is counted here
+    final BitmapBudget mBitmapBudget = new BitmapBudget(BITMAP_BUDGET_BYTES);
+
+    //Gradients, paths, static layers and glyph atlases, shared by engines that need the same
+    // ones, e.g. the live face and a preview of the same size
+    final RenderResources mRenderResources = new RenderResources(mBitmapBudget);
+
+    //Steps per minute for the last STEP_HISTORY_DAYS. Shared by all engines, but only fed
+    // by the ones that aren't previews, so steps don't get counted twice
+    private final StepHistory mStepHistory = new StepHistory(STEP_HISTORY_DAYS);
+    private boolean mStepHistoryOpened = false;
+
+    /** Loads the step history from disk, the first time it is called. Does file I/O. */
+    void openStepHistory() {
+        synchronized (mStepHistory) {
+            if (mStepHistoryOpened) {
+                return;
+            }
+            mStepHistoryOpened = true;
+            try {
+                mStepHistory.openLog(new File(getFilesDir(), STEP_HISTORY_FILE));
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open step history, keeping it in memory only", e);
+            }
+        }
+    }
+
+    //Sends what goes into mStepHistory on to the phone. Fed on the sensor thread
+    private DataLayerStepSyncTransport mStepSyncTransport;
+    StepSyncBatcher mStepSync;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        //Loaded by an earlier instance of the service in this process
+        if(mStippleBitmap != null) {
+            mBitmapBudget.adopt(BitmapBudget.CATEGORY_STIPPLE, mStippleBitmap);
+        }
+        mStepSyncTransport = new DataLayerStepSyncTransport(this);
+        mStepSyncTransport.connect();
+        mStepSync = new StepSyncBatcher(mStepSyncTransport, STEP_SYNC_MAX_MINUTES,
+                STEP_SYNC_MAX_DELAY_MS);
+    }
+
     @Override
     public Engine onCreateEngine() {
         return new Engine();
     }
 
-    public static void initializeStaticPaints(){
-        mBlackPaint.setColor(Color.argb(255, 0, 0, 0));
+    @Override
+    public void onDestroy() {
+        mStepHistory.closeLog();
+        //Best effort: if the phone isn't connected, or the put doesn't get to the Data Layer
+        // before we disconnect, these steps only stay on the watch
+        mStepSync.flush(System.currentTimeMillis());
+        mStepSyncTransport.disconnect();
+        mRenderResources.trimIdle();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        trimCaches(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        trimCaches(TRIM_MEMORY_COMPLETE);
+    }
+
+    /**
+     * Drops caches, cheapest to lose first: render resources no engine is using, then
+     * precomposed ambient frames (RUNNING_LOW), then ring outlines (RUNNING_CRITICAL),
+     * then everything held by engines that aren't on screen (UI_HIDDEN and up). Whatever
+     * is dropped is made again when a frame needs it.
+     */
+    void trimCaches(int level) {
+        synchronized (mEngines) {
+            for (Engine engine : mEngines) {
+                engine.trimMemory(level);
+            }
+        }
+        //After the engines, so that what they just released goes too
+        mRenderResources.trimIdle();
+        mBitmapBudget.countTrim(level);
+    }
 
-        mInteractiveBackgroundPaint.setShader(new RadialGradient(WATCH_RADIUS, WATCH_RADIUS,
-                WATCH_RADIUS,
-                INTERACTIVE_BACKGROUND_COLOR_INNER, INTERACTIVE_BACKGROUND_COLOR_OUTER,
-                Shader.TileMode.CLAMP));
+    /**
+     * Prints diagnostics for each live engine. Read it with
+     *   adb shell dumpsys activity service .HealthyMiamiWatchFaceService
+     * Optional arguments: "stats on", "stats off", "stats reset" and "budget <bytes>",
+     * which sets the bitmap budget's cap. In debug builds, "harness" (or "harness save",
+     * or "harness overdraw") starts the render harness on the first engine instead, see
+     * DebugCommands.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        synchronized (mEngines) {
+            if (args != null && args.length >= 2 && "stats".equals(args[0])) {
+                for (Engine engine : mEngines) {
+                    if ("on".equals(args[1])) {
+                        engine.mFrameStats.setEnabled(true);
+                    } else if ("off".equals(args[1])) {
+                        engine.mFrameStats.setEnabled(false);
+                    } else if ("reset".equals(args[1])) {
+                        engine.mFrameStats.reset();
+                        engine.mRedrawScheduler.resetMetrics();
+                    }
+                }
+            }
+            if (args != null && args.length >= 2 && "budget".equals(args[0])) {
+                try {
+                    mBitmapBudget.setCapBytes(Long.parseLong(args[1]));
+                } catch (NumberFormatException e) {
+                    pw.println("Bad budget: " + args[1]);
+                }
+            }
+            if (args != null && args.length >= 1 && "harness".equals(args[0])) {
+                if (mEngines.isEmpty()) {
+                    pw.println("No engine to run the render harness on");
+                } else {
+                    DebugCommands.startRenderHarness(mEngines.get(0), getFilesDir(), args, pw);
+                }
+                return;
+            }
+            pw.println("HealthyMiamiWatchFaceService: " + mEngines.size() + " engine(s)");
+            for (int i = 0; i < mEngines.size(); i++) {
+                Engine engine = mEngines.get(i);
+                pw.println();
+                pw.println("Engine " + i + (engine.isPreview() ? " (preview)" : ""));
+                engine.dump(pw);
+            }
+            pw.println();
+            if (sharedResourcesReady()) {
+                pw.printf("Shared resources: fonts loaded in %.1f ms, stipple in %.1f ms%n",
+                        mFontLoadNs / 1000000.0, mStippleLoadNs / 1000000.0);
+            } else {
+                pw.println("Shared resources: not loaded yet");
+            }
+            mRenderResources.dump(pw);
+            mBitmapBudget.dump(pw);
+        }
+    }
+
+    /**
+     * Returns what color looks like drawn over black. The background gradients are always
+     * drawn over black, so doing that up front makes them opaque, and the black under them
+     * never needs drawing.
+     */
+    static int overBlack(int color) {
+        int alpha = Color.alpha(color);
+        return Color.rgb((Color.red(color)*alpha + 127)/255, (Color.green(color)*alpha + 127)/255,
+                (Color.blue(color)*alpha + 127)/255);
+    }
 
-        mAmbientBackgroundPaint.setShader(new RadialGradient(WATCH_RADIUS, WATCH_RADIUS,
-                WATCH_RADIUS,
-                AMBIENT_BACKGROUND_COLOR_INNER, AMBIENT_BACKGROUND_COLOR_OUTER,
-                Shader.TileMode.CLAMP));
+    public static void initializeStaticPaints(){
+        mBlackPaint.setColor(Color.argb(255, 0, 0, 0));
 
         mTopLayerBackgroundPaint.setColor(INTERACTIVE_CIRCLE_COLOR);
         mTopLayerBackgroundPaint.setStyle(Paint.Style.FILL);
@@ -296,6 +469,9 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
         mMFillPaint.setStyle(Paint.Style.FILL);
         mMFillPaint.setAntiAlias(true);
 
+        //The stipple is an alpha mask, so this is the color it comes out in
+        mMNoBurnFillPaint.setColor(INTERACTIVE_MIAMI_M_COLOR);
+
         mMLowBitFillPaint.setColor(INTERACTIVE_MIAMI_M_COLOR);
         mMLowBitFillPaint.setStyle(Paint.Style.FILL);
         mMLowBitFillPaint.setAntiAlias(false);
@@ -305,6 +481,45 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
     // there is only one type of message to send, "invalidate the screen,
     // so the watch face gets updated"
     static final int MSG_UPDATE_WATCHFACE = 0;
+    //Write the in-memory step state out to SharedPreferences. Always handled on the
+    // main looper, so there is only ever one writer
+    static final int MSG_PERSIST_STEP_STATE = 1;
+    //Handle the step events collected so far. Sent to the step sensor thread
+    static final int MSG_DRAIN_STEP_EVENTS = 2;
+    //Compose next minute's ambient frame, see AmbientFrame
+    static final int MSG_PREPARE_AMBIENT_FRAME = 3;
+    //Send steps that have waited long enough to the phone. Sent to the step sensor thread
+    static final int MSG_FLUSH_STEP_SYNC = 4;
+    //The fonts and stipple have loaded, see loadSharedResources()
+    static final int MSG_SHARED_RESOURCES_LOADED = 5;
+    //Build what the first frames went without, see Engine.warmUp()
+    static final int MSG_WARM_UP = 6;
+
+    //Outlines kept per progress ring. A ring gets at most half this many steps, so a lap
+    // each way always fits. That is a pixel a step up to a radius of about 80 pixels, and
+    // under 2 on a 320 pixel screen, for a few hundred KB per ring
+    static final int ARC_CACHE_PATHS = 1024;
+
+    //Display modes that change what the static layer looks like. Interactive mode ignores
+    // the low-bit and burn-in flags, because they only affect ambient rendering
+    static final int DRAW_MODE_INTERACTIVE = 0;
+    static final int DRAW_MODE_AMBIENT = 1;
+    static final int DRAW_MODE_LOW_BIT = 2;
+    static final int DRAW_MODE_BURN_IN = 4;
+    //Drawn with the fallbacks used until the fonts and stipple load. Keeps layers drawn
+    // that way from being shared with, or mistaken for, ones drawn with the real thing
+    static final int DRAW_MODE_PLACEHOLDER = 8;
+
+    //What goes into the static layer and into each frame, bottom to top, so that
+    // LayerCompositor can skip or clip what opaque layers hide
+    static final int STATIC_LAYER_CLEAR = 0;
+    static final int STATIC_LAYER_BACKGROUND = 1;
+    static final int STATIC_LAYER_M = 2;
+    static final int STATIC_LAYER_CIRCLE = 3;
+    static final int STATIC_LAYER_COUNT = 4;
+    static final int FRAME_LAYER_BACKGROUND = 0;
+    static final int FRAME_LAYER_STEP_PILL = 1;
+    static final int FRAME_LAYER_COUNT = 2;
 
     /** Handler to update the time periodically in interactive mode. */
     //Handler code from the sample is outdated, trips Lint HandlerLeak warning. My version is
@@ -328,18 +543,76 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
 
                     theEngine.invalidate();
                     if (theEngine.shouldTimerBeRunning()) {
+                        theEngine.updateFrameGovernor();
                         long timeMs = System.currentTimeMillis();
-                        long delayMs =
-                                NORMAL_UPDATE_RATE_MS - (timeMs % NORMAL_UPDATE_RATE_MS);
+                        long delayMs = theEngine.mRedrawScheduler.nextDelayMs(timeMs);
+                        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                            Log.v(TAG, "next update in " + delayMs + " ms");
+                        }
                         theEngine.mUpdateTimeHandler.sendEmptyMessageDelayed(MSG_UPDATE_WATCHFACE, delayMs);
                     }
                     break;
+                case MSG_PERSIST_STEP_STATE:
+                    HealthyMiamiWatchFaceService.Engine persistEngine = mEngineRef.get();
+                    if (persistEngine != null) {
+                        persistEngine.persistStepState();
+                    }
+                    break;
+                case MSG_PREPARE_AMBIENT_FRAME:
+                    HealthyMiamiWatchFaceService.Engine ambientEngine = mEngineRef.get();
+                    if (ambientEngine != null) {
+                        ambientEngine.prepareAmbientFrame();
+                    }
+                    break;
+                case MSG_SHARED_RESOURCES_LOADED:
+                    HealthyMiamiWatchFaceService.Engine loadedEngine = mEngineRef.get();
+                    if (loadedEngine != null) {
+                        loadedEngine.applySharedResources();
+                    }
+                    break;
+                case MSG_WARM_UP:
+                    HealthyMiamiWatchFaceService.Engine warmEngine = mEngineRef.get();
+                    if (warmEngine != null) {
+                        warmEngine.warmUp();
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Handler for the step sensor thread. Sensor events for a batch are all delivered before
+     * this gets to run, so one MSG_DRAIN_STEP_EVENTS handles the whole batch.
+     */
+    static class StepSensorHandler extends Handler {
+        WeakReference<HealthyMiamiWatchFaceService.Engine> mEngineRef;
+
+        StepSensorHandler(Looper looper, HealthyMiamiWatchFaceService.Engine aEngine){
+            super(looper);
+            mEngineRef = new WeakReference<>(aEngine);
+        }
+
+        @Override
+        public void handleMessage(Message message) {
+            switch (message.what) {
+                case MSG_DRAIN_STEP_EVENTS:
+                    HealthyMiamiWatchFaceService.Engine theEngine = mEngineRef.get();
+                    if (theEngine != null) {
+                        theEngine.drainStepEvents();
+                    }
+                    break;
+                case MSG_FLUSH_STEP_SYNC:
+                    theEngine = mEngineRef.get();
+                    if (theEngine != null) {
+                        theEngine.flushStepSync();
+                    }
+                    break;
             }
         }
     }
 
     private class Engine extends CanvasWatchFaceService.Engine implements
-            SensorEventListener {
+            SensorEventListener, ScriptableFace {
 
         /**
          * Whether the display supports fewer bits for each color in ambient mode. When true, we
@@ -354,6 +627,7 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
             super.onPropertiesChanged(properties);
             mLowBitAmbient = properties.getBoolean(PROPERTY_LOW_BIT_AMBIENT, false);
             mBurnInProtection = properties.getBoolean(PROPERTY_BURN_IN_PROTECTION, false);
+            invalidateStaticLayer();
 
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, "onPropertiesChanged: low-bit ambient = " + mLowBitAmbient);
@@ -373,53 +647,241 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
         }
 
         final Handler mUpdateTimeHandler = new WatchUpdateHandler(this);
+        final RedrawScheduler mRedrawScheduler = new RedrawScheduler(NORMAL_UPDATE_RATE_MS);
+        //Lowers mRedrawScheduler's cap when frames cost too much or the battery is low
+        final FrameGovernor mFrameGovernor = new FrameGovernor(FRAME_CPU_BUDGET_NS_PER_S);
+        //Whether mFrameGovernor's tier is fast enough to draw the seconds ring
+        boolean mSecondsRingShown = true;
+        final IntentFilter mBatteryFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        //When the battery was last read, in SystemClock.elapsedRealtime(), or 0 for never
+        long mLastBatteryReadMs = 0;
+        final FrameStats mFrameStats = new FrameStats();
+        //Size of one dp in pixels. Used to decide how far something has to move to be visible
+        float mDensity = 1.0f;
         /** Handler to cope with time zone changes */
         final BroadcastReceiver mTimeZoneReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                mTime.clear(intent.getStringExtra("time-zone"));
-                mTime.setToNow();
+                String zoneId = intent.getStringExtra("time-zone");
+                setTimeZone(zoneId != null ?
+                        TimeZone.getTimeZone(zoneId) : TimeZone.getDefault());
             }
         };
         boolean mRegisteredTimeZoneReceiver = false;
 
+        void setTimeZone(TimeZone zone) {
+            mClock.setTimeZone(zone);
+            mSensorTimeZone = zone;
+        }
+
         //Paints for text elements and step icon. These cannot be static because
         // anti-aliasing is turned on and off during run time
         Paint mHourPaint;
         Paint mMinutePaint;
         Paint mStepPaint;
         Paint mTMPaint;
+        Paint mActivityPaint;
+
+        //Digits for the paints above, pre-rendered so onDraw doesn't have to rasterize text.
+        // Looked up again on the next frame after rescalePaints() or onAmbientModeChanged()
+        // change the paints. The paints only depend on the scale and draw mode, so the
+        // atlases can be shared with other engines through mRenderResources
+        GlyphAtlas mHourAtlas;
+        GlyphAtlas mMinuteAtlas;
+        GlyphAtlas mStepAtlas;
+        final RenderResources.Slot<GlyphAtlas> mHourAtlasSlot = new RenderResources.Slot<>(
+                mRenderResources, new GlyphAtlasFactory(RenderResources.KIND_HOUR_ATLAS));
+        final RenderResources.Slot<GlyphAtlas> mMinuteAtlasSlot = new RenderResources.Slot<>(
+                mRenderResources, new GlyphAtlasFactory(RenderResources.KIND_MINUTE_ATLAS));
+        final RenderResources.Slot<GlyphAtlas> mStepAtlasSlot = new RenderResources.Slot<>(
+                mRenderResources, new GlyphAtlasFactory(RenderResources.KIND_STEP_ATLAS));
+        boolean mGlyphAtlasesValid = false;
+        //Until warmUp() runs, frames draw text straight from the paints instead of building
+        // the atlases, so the first frame isn't held up by them
+        boolean mDeferGlyphAtlases = true;
+        //Has no glyphs, so drawing and measuring with it falls back to the paint
+        final GlyphAtlas mEmptyAtlas = new GlyphAtlas(mBitmapBudget);
+
+        //Whether the paints use the loaded fonts and stipple yet, see applySharedResources()
+        boolean mSharedResourcesApplied = false;
+        final StartupTimer mStartup = new StartupTimer();
+
+        //Next minute's ambient frame, composed right after the current one is shown
+        final AmbientFrame mAmbientFrame = new AmbientFrame(mBitmapBudget);
+        final char[] mNextHourChars = new char[2];
+        final char[] mNextMinuteChars = new char[2];
 
         //Cannot be static because anti-aliasing is turned on and off during run time
         Paint mTopLayerBorderPaintNoBurn;
 
-        //Arguably, these paths would make sense to be static except that onDraw() actually
-        // changes the offset based on changes to timeCenterX and timeCenterY. If
-        // onDraw was refactored to not depend on bound, this could be changed
-        final Path mMPath = new Path();
-        final Path mShoePath = new Path();
+        //Shared with other engines at the same scale, see FaceGeometry. Both start at the
+        // origin, so onDraw positions them with canvas.translate() and never changes them
+        Path mMPath;
+        Path mShoePath;
+        final RenderResources.Slot<Path> mMPathSlot =
+                new RenderResources.Slot<>(mRenderResources, M_PATH);
+        final RenderResources.Slot<Path> mShoePathSlot =
+                new RenderResources.Slot<>(mRenderResources, SHOE_PATH);
+
+        //Background gradients for the current bounds
+        final Paint mInteractiveBackgroundPaint = new Paint(); //red gradient for watch face
+        final Paint mAmbientBackgroundPaint = new Paint(); //gray gradient for watch face
+        final RenderResources.Slot<Shader> mInteractiveGradientSlot =
+                new RenderResources.Slot<>(mRenderResources, INTERACTIVE_GRADIENT);
+        final RenderResources.Slot<Shader> mAmbientGradientSlot =
+                new RenderResources.Slot<>(mRenderResources, AMBIENT_GRADIENT);
 
         //Cannot be static because anti-aliasing is turned on and off during run time
         final Paint mMPathPaint = new Paint();
 
+        //Pre-stroked outlines of the minute and seconds rings, filled with mRingFillPaint.
+        // At most one full lap of each is kept
+        final ArcPathCache mMinuteArcs = new ArcPathCache("minute ring", ARC_CACHE_PATHS);
+        final ArcPathCache mSecondArcs = new ArcPathCache("seconds ring", ARC_CACHE_PATHS);
+        final Paint mRingFillPaint = new Paint();
+
+        //Offscreen copy of everything that doesn't change from frame to frame in a given
+        // mode: the background, the M, the TM mark and the circle under the time. onDraw
+        // just blits this, and only looks it up again when the key below stops matching or
+        // invalidateStaticLayer() is called. Engines with the same key share one
+        Bitmap mStaticLayer;
+        final CountingCanvas mStaticLayerCanvas = new CountingCanvas();
+        final LayerCompositor mStaticLayers =
+                new LayerCompositor("static", STATIC_LAYER_COUNT);
+        final RenderResources.Slot<Bitmap> mStaticLayerSlot = new RenderResources.Slot<>(
+                mRenderResources, new RenderResources.Factory<Bitmap>() {
+                    @Override
+                    Bitmap create(RenderResources.Key key) {
+                        //Always opaque, see overBlack(). Only the low-bit layer is pure
+                        // black and white though, the gradients would band in 16 bits
+                        int lowBit = DRAW_MODE_AMBIENT | DRAW_MODE_LOW_BIT;
+                        Bitmap layer = mBitmapBudget.create(BitmapBudget.CATEGORY_STATIC_LAYER,
+                                key.width, key.height, (key.drawMode & lowBit) == lowBit ?
+                                        BitmapBudget.CONTENT_OPAQUE : BitmapBudget.CONTENT_ANY);
+                        mStaticLayerCanvas.setBitmap(layer);
+                        buildStaticLayer(key.width, key.height, key.uiScale, key.drawMode);
+                        mStaticLayerCanvas.setBitmap(null);
+                        return layer;
+                    }
+                });
+        boolean mStaticLayerValid = false;
+        int mStaticLayerWidth;
+        int mStaticLayerHeight;
+        float mStaticLayerScale;
+        int mStaticLayerMode;
+
+        //The face as of the last frame. The surface we are given in onDraw() doesn't keep
+        // its contents between frames, so we keep our own copy, repaint only the regions
+        // mDirtyRegions says have changed, and then copy the whole thing to the screen
+        Bitmap mFrameBuffer;
+        final CountingCanvas mFrameCanvas = new CountingCanvas();
+        final DirtyRegionTracker mDirtyRegions = new DirtyRegionTracker();
+        final LayerCompositor mFrameLayers = new LayerCompositor("frame", FRAME_LAYER_COUNT);
+        final Rect mRegionBounds = new Rect();
+        float mLastMinutePctAround = -1;
+        float mLastSecondPctAround = -1;
+        int mLastHour = -1;
+        int mLastMinute = -1;
+        int mLastTodaySteps = Integer.MIN_VALUE;
+        //What the activity lines show, and the second they were last read for
+        long mActivitySecond = Long.MIN_VALUE;
+        int mCadence;
+        int mShortWindowSteps;
+        int mLongWindowSteps;
+        int mActiveMinutes;
+        int mActivityCount0;
+        int mActivityCount1;
+        boolean mActivityChanged = true;
+        //Set through ScriptableFace while a harness counts overdraw, otherwise null
+        OverdrawAnalyzer mOverdraw;
+        //Outlines repainted regions on screen. Turn on with
+        // adb shell setprop log.tag.MiamiDirtyRegions DEBUG
+        // and then toggle the watch face's visibility
+        boolean mShowDirtyRegions = false;
+        final Paint mDirtyOverlayPaint = new Paint();
+
+        //Scratch space for onDraw(). Everything drawn per frame is formatted into these, so
+        // that drawing a frame doesn't allocate anything
+        final char[] mHourChars = new char[2];
+        final char[] mMinuteChars = new char[2];
+        final char[] mStepChars = new char[DigitFormatter.MAX_INT_CHARS];
+        final char[] mActivityDigits = new char[DigitFormatter.MAX_INT_CHARS];
+        final char[] mActivityChars0 = new char[ACTIVITY_LINE_CHARS];
+        final char[] mActivityChars1 = new char[ACTIVITY_LINE_CHARS];
+        //Only used while a new FaceLayout is measuring the paints
+        final char[] mMeasureChars = new char[FaceLayout.MAX_DIGITS];
+        final Rect mTextBounds = new Rect();
+
         //These are really instance variables, cannot be static
-        final Time mTime = new Time();
+        final FaceClock mClock = new FaceClock(TimeZone.getDefault());
+        //Where onDraw() gets the time, ambient state and steps. mLiveInputs unless a debug
+        // harness is driving the engine through ScriptableFace
+        final FrameInputs mLiveInputs = new FrameInputs() {
+            @Override
+            public long getTimeMs() {
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            public boolean isAmbient() {
+                return isInAmbientMode();
+            }
+
+            @Override
+            public int getTodaySteps() {
+                return mStepTracker.getTodaySteps();
+            }
+
+            @Override
+            public ActivityMetrics getActivity() {
+                return mActivity;
+            }
+
+            @Override
+            public void onFrameStart() {
+                updateStepData(CALLED_FROM_TIME_UPDATE);
+            }
+
+            @Override
+            public void onFrameDrawn(long drawNs, boolean ambient) {
+                //Only interactive frames run on the timer FrameGovernor is pacing
+                if(!ambient) {
+                    mFrameGovernor.recordFrame(drawNs);
+                }
+            }
+        };
+        FrameInputs mInputs = mLiveInputs;
         SensorManager mSensorManager = null;
+        //Step counter events arrive and are handled on this thread, never on the main looper
+        HandlerThread mSensorThread;
+        Handler mSensorHandler;
+        final StepEventRing mStepEvents = new StepEventRing(STEP_EVENT_BUFFER_SIZE);
+        //Cadence and rolling step totals, fed by drainStepEvents() and read by onDraw()
+        final ActivityMetrics mActivity = new ActivityMetrics();
+        //mClock's time zone, for the sensor thread
+        volatile TimeZone mSensorTimeZone = TimeZone.getDefault();
+        //Last raw count seen by drainStepEvents(), or -1 if unknown. Sensor thread only
+        int mLastRawStepCount = -1;
+        boolean mRecordStepHistory;
         SharedPreferences mSettings;
 
+        //Source of truth for the step count. Updated lock-free, so the sensor thread never
+        // blocks the render thread. mSettings is only the persistent copy.
+        final StepTracker mStepTracker = new StepTracker();
+        //Where everything goes on screen. Replaced by updateLayout() when the bounds, chin
+        // or draw mode change, or null before the first frame
+        FaceLayout mLayout;
+
         @Override
         public void onCreate(SurfaceHolder holder) {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, "onCreate");
             }
+            mStartup.begin(!sharedResourcesReady());
+            long stageStart = System.nanoTime();
             super.onCreate(holder);
-
-            //getAssets() cannot be accessed from static, so can't go in initStaticPaints
-            if(mNormalTypeface == null) {
-                mNormalTypeface = Typeface.createFromAsset(getAssets(), "Open Sans 600.ttf");
-            }
-            if(mThinTypeface == null) {
-                mThinTypeface = Typeface.createFromAsset(getAssets(), "Open Sans 300.ttf");
+            synchronized (mEngines) {
+                mEngines.add(this);
             }
 
             setWatchFaceStyle(new WatchFaceStyle.Builder(HealthyMiamiWatchFaceService.this)
@@ -438,62 +900,338 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
             mTopLayerBorderPaintNoBurn.setAntiAlias(true);
             mTopLayerBorderPaintNoBurn.setPathEffect(mTopLayerBorderDashEffect);
 
-            mHourPaint = createTextPaint(INTERACTIVE_DIGITS_COLOR, mNormalTypeface);
+            //Default typeface for now, applySharedResources() sets the real ones
+            mHourPaint = createTextPaint(INTERACTIVE_DIGITS_COLOR);
             mMinutePaint = createTextPaint(INTERACTIVE_DIGITS_COLOR);
             mStepPaint  = createTextPaint(INTERACTIVE_DIGITS_COLOR);
-            mTMPaint  = createTextPaint(INTERACTIVE_DIGITS_COLOR, mNormalTypeface);
-
-            mMPath.setFillType(Path.FillType.EVEN_ODD);
-            mShoePath.setFillType(Path.FillType.EVEN_ODD);
+            mTMPaint  = createTextPaint(INTERACTIVE_DIGITS_COLOR);
+            mActivityPaint = createTextPaint(INTERACTIVE_DIGITS_COLOR);
 
             mMPathPaint.setColor(INTERACTIVE_MIAMI_M_COLOR);
             mMPathPaint.setStyle(Paint.Style.STROKE);
             mMPathPaint.setAntiAlias(true);
 
+            mRingFillPaint.setColor(INTERACTIVE_CIRCLE_BORDER_COLOR);
+            mRingFillPaint.setStyle(Paint.Style.FILL);
+            mRingFillPaint.setAntiAlias(true);
+
+            mDirtyOverlayPaint.setColor(DIRTY_REGION_OVERLAY_COLOR);
+            mDirtyOverlayPaint.setStyle(Paint.Style.STROKE);
+
             //getResources() cannot be accessed from static, so can't go in initStaticPaints
             Resources resources = HealthyMiamiWatchFaceService.this.getResources();
-            if(mStippleShader == null) {
-                Bitmap stipple = BitmapFactory.decodeResource(resources, R.drawable.stipple);
-                mStippleShader = new BitmapShader(stipple, Shader.TileMode.REPEAT,
-                        Shader.TileMode.REPEAT);
-            }
+            mDensity = resources.getDisplayMetrics().density;
 
-            //Depends on mStippleShader, so can't go in initStaticPaints
-            mMNoBurnFillPaint.setShader(mStippleShader);
+            //The shader comes from applySharedResources()
             mMNoBurnFillPaint.setStyle(Paint.Style.FILL);
             mMNoBurnFillPaint.setAntiAlias(false);
 
             rescalePaints(1.0f,new Rect(0,0,(int)WATCH_DIM_ROUND,(int)WATCH_DIM_ROUND));
 
+            //Warm start if an earlier engine already loaded them
+            if(sharedResourcesReady()) {
+                applySharedResources();
+            } else {
+                loadSharedResources();
+            }
+            stageStart = mStartup.record(StartupTimer.STAGE_STYLE, stageStart);
+
+            //Load the step state before the sensor can start delivering counts. This has to
+            // stay here: if the first frame ran with no state, it would roll the day over
+            // and persist that over the real state
+            mSettings = getSharedPreferences("HealthyMiamiWatchFace", MODE_PRIVATE);
+            mStepTracker.set(new StepState(mSettings.getInt(PREF_CUR_DAY, 0),
+                    mSettings.getInt(PREF_LAST_STEPS, 0),
+                    mSettings.getInt(PREF_MIDNIGHT_STEPS, 0)));
+            updateStepData(CALLED_FROM_ON_CREATE);
+            //If we have never stored a count, the first reading would look like one huge
+            // burst of steps, so don't put it in the history
+            mLastRawStepCount = mStepTracker.get().getDay() == 0 ?
+                    -1 : mStepTracker.get().getLastSteps();
+            mRecordStepHistory = !isPreview();
+            stageStart = mStartup.record(StartupTimer.STAGE_STEP_STATE, stageStart);
+
             mSensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
             if(mSensorManager != null) {
                 Sensor countSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
                 if (countSensor != null) {
-                    mSensorManager.registerListener(this,countSensor,SensorManager.SENSOR_DELAY_NORMAL);
+                    mSensorThread = new HandlerThread("StepSensor",
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                    mSensorThread.start();
+                    mSensorHandler = new StepSensorHandler(mSensorThread.getLooper(), this);
+                    //Let the hardware FIFO batch events, so we aren't woken for every step
+                    mSensorManager.registerListener(this, countSensor,
+                            SensorManager.SENSOR_DELAY_NORMAL, STEP_SENSOR_MAX_LATENCY_US,
+                            mSensorHandler);
+                    if (mRecordStepHistory) {
+                        mSensorHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                openStepHistory();
+                                seedActivityMetrics();
+                            }
+                        });
+                    }
                 }
             }
+            mStartup.record(StartupTimer.STAGE_SENSOR, stageStart);
+        }
 
-            mSettings = getSharedPreferences("HealthyMiamiWatchFace", MODE_PRIVATE);
-            updateStepData(CALLED_FROM_ON_CREATE);
+        /**
+         * Switches the paints over to the loaded fonts and stipple. Everything made with
+         * the fallbacks is keyed with DRAW_MODE_PLACEHOLDER, so the next frame gets new
+         * layers and atlases without being told. Main thread only.
+         */
+        void applySharedResources() {
+            if(mSharedResourcesApplied || !sharedResourcesReady()) {
+                return;
+            }
+            long start = System.nanoTime();
+            mSharedResourcesApplied = true;
+            mHourPaint.setTypeface(getHourTypeface(isInAmbientMode()));
+            mMinutePaint.setTypeface(mThinTypeface);
+            mStepPaint.setTypeface(mThinTypeface);
+            mTMPaint.setTypeface(mNormalTypeface);
+            mActivityPaint.setTypeface(mThinTypeface);
+            mMNoBurnFillPaint.setShader(mStippleShader);
+            mGlyphAtlasesValid = false;
+            invalidateStaticLayer();
+            invalidate();
+            mStartup.record(StartupTimer.STAGE_SWAP_IN, start);
+        }
+
+        /**
+         * Builds the glyph atlases the first frames went without. Sent once the first frame
+         * with the real fonts is on screen.
+         */
+        void warmUp() {
+            if(!mSharedResourcesApplied || !mDeferGlyphAtlases) {
+                return;
+            }
+            long start = System.nanoTime();
+            mDeferGlyphAtlases = false;
+            if(mUiScale > 0) {
+                updateGlyphAtlases(mUiScale, getDrawMode());
+            }
+            mStartup.record(StartupTimer.STAGE_WARM_UP, start);
+        }
+
+        /** The hour's typeface for the mode, or null for the default until fonts load. */
+        private Typeface getHourTypeface(boolean inAmbientMode) {
+            if(!mSharedResourcesApplied) {
+                return null;
+            }
+            //Thinner fonts for less burn in
+            return (inAmbientMode && mBurnInProtection) ? mThinTypeface : mNormalTypeface;
         }
 
         @Override
         public void onDestroy() {
+            synchronized (mEngines) {
+                mEngines.remove(this);
+            }
             mUpdateTimeHandler.removeMessages(MSG_UPDATE_WATCHFACE);
+            mUpdateTimeHandler.removeMessages(MSG_PREPARE_AMBIENT_FRAME);
+            mUpdateTimeHandler.removeMessages(MSG_SHARED_RESOURCES_LOADED);
+            mUpdateTimeHandler.removeMessages(MSG_WARM_UP);
+            if(mUpdateTimeHandler.hasMessages(MSG_PERSIST_STEP_STATE)) {
+                mUpdateTimeHandler.removeMessages(MSG_PERSIST_STEP_STATE);
+                persistStepState();
+            }
             super.onDestroy();
             if(mSensorManager != null) {
                 mSensorManager.unregisterListener(this);
             }
+            if(mSensorThread != null) {
+                mSensorHandler.removeMessages(MSG_DRAIN_STEP_EVENTS);
+                mSensorHandler.removeMessages(MSG_FLUSH_STEP_SYNC);
+                mSensorThread.quitSafely();
+                mSensorThread = null;
+            }
+            if(mFrameBuffer != null) {
+                mFrameCanvas.setBitmap(null);
+                mBitmapBudget.recycle(BitmapBudget.CATEGORY_FRAME_BUFFER, mFrameBuffer);
+                mFrameBuffer = null;
+            }
+            mAmbientFrame.release();
+            //Anything no other engine is using gets freed
+            mStaticLayer = null;
+            mStaticLayerSlot.release();
+            mHourAtlas = null;
+            mMinuteAtlas = null;
+            mStepAtlas = null;
+            mHourAtlasSlot.release();
+            mMinuteAtlasSlot.release();
+            mStepAtlasSlot.release();
+            mMPathSlot.release();
+            mShoePathSlot.release();
+            mInteractiveGradientSlot.release();
+            mAmbientGradientSlot.release();
         }
 
-        private Paint createTextPaint(int defaultInteractiveColor) {
-            return createTextPaint(defaultInteractiveColor, mThinTypeface);
+        private void dumpFrameGovernor(PrintWriter pw) {
+            FrameGovernor governor = mFrameGovernor;
+            long nowMs = SystemClock.elapsedRealtime();
+            pw.print("  frame governor: " + governor.getFps() + " FPS, average frame "
+                    + governor.getAverageFrameCostNs() / 1000 + " us, battery "
+                    + governor.getBatteryPercent() + "%" + (governor.isCharging() ? " charging" : "")
+                    + ", " + governor.getTierChanges() + " changes, seconds at");
+            for(int t=0;t<FrameGovernor.TIER_COUNT;t++){
+                pw.print(" " + FrameGovernor.getTierFps(t) + " FPS "
+                        + governor.getTimeInTierMs(t, nowMs) / 1000);
+            }
+            pw.println();
+        }
+
+        /** This engine's part of trimCaches(). */
+        void trimMemory(int level) {
+            if(level >= TRIM_MEMORY_RUNNING_LOW) {
+                mUpdateTimeHandler.removeMessages(MSG_PREPARE_AMBIENT_FRAME);
+                mAmbientFrame.evict();
+            }
+            if(level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+                mMinuteArcs.clear();
+                mSecondArcs.clear();
+            }
+            if(level >= TRIM_MEMORY_UI_HIDDEN && !isVisible()) {
+                //Nothing on screen, so the next onDraw() can make it all again
+                if(mFrameBuffer != null) {
+                    mFrameCanvas.setBitmap(null);
+                    mBitmapBudget.countEviction(BitmapBudget.CATEGORY_FRAME_BUFFER,
+                            mFrameBuffer.getByteCount());
+                    mBitmapBudget.recycle(BitmapBudget.CATEGORY_FRAME_BUFFER, mFrameBuffer);
+                    mFrameBuffer = null;
+                }
+                mStaticLayer = null;
+                mStaticLayerValid = false;
+                mStaticLayerSlot.release();
+                mHourAtlas = null;
+                mMinuteAtlas = null;
+                mStepAtlas = null;
+                mGlyphAtlasesValid = false;
+                mHourAtlasSlot.release();
+                mMinuteAtlasSlot.release();
+                mStepAtlasSlot.release();
+            }
+        }
+
+        void dump(PrintWriter pw) {
+            pw.println("  bounds " + mStaticLayerWidth + "x" + mStaticLayerHeight
+                    + ", uiScale " + mUiScale + ", ambient " + isInAmbientMode()
+                    + ", low-bit " + mLowBitAmbient + ", burn-in " + mBurnInProtection);
+            mStartup.dump(pw);
+            pw.println("  steps today " + mStepTracker.getTodaySteps());
+            pw.println("  activity: cadence " + mActivity.getCadence() + " spm, last "
+                    + ActivityMetrics.SHORT_WINDOW_MINUTES + " min "
+                    + mActivity.getShortWindowSteps() + ", last "
+                    + ActivityMetrics.LONG_WINDOW_MINUTES + " min "
+                    + mActivity.getLongWindowSteps() + ", active minutes today "
+                    + mActivity.getActiveMinutesToday() + ", " + mActivity.getEvents()
+                    + " events, " + mActivity.getLateSteps() + " late steps");
+            if (mRecordStepHistory) {
+                long newest = mStepHistory.getNewestMinute();
+                pw.println("  step history: last hour " + mStepHistory.sum(newest - 59, newest + 1)
+                        + ", last day " + mStepHistory.sum(newest - 1439, newest + 1)
+                        + ", last week " + mStepHistory.sum(newest - 10079, newest + 1)
+                        + ", dropped " + mStepHistory.getDroppedSteps()
+                        + ", " + mStepHistory.getMemoryFootprintBytes() + " bytes");
+                pw.println("  step sync: " + mStepSync.getPendingBuckets() + " minutes waiting, "
+                        + mStepSync.getBatchesSent() + " batches sent with "
+                        + mStepSync.getBucketsSent() + " minutes in "
+                        + mStepSync.getBytesSent() + " bytes, " + mStepSync.getSendFailures()
+                        + " failed sends, " + mStepSync.getDroppedBuckets() + " minutes dropped");
+            }
+            pw.println("  frames " + mDirtyRegions.getFrames() + ", full redraws "
+                    + mDirtyRegions.getFullFrames() + ", partial redraws "
+                    + mDirtyRegions.getPartialFrames());
+            pw.println("  clock: " + mClock.getTimeZone().getID() + ", incremental minutes "
+                    + mClock.getIncrementalMinutes() + ", recomputes " + mClock.getRecomputes()
+                    + ", date recomputes " + mClock.getCalendarRecomputes());
+            pw.println("  M/shoe path builds (all engines) " + FaceGeometry.getBuildCount());
+            mStaticLayers.dump(pw);
+            mFrameLayers.dump(pw);
+            mAmbientFrame.dump(pw);
+            mMinuteArcs.dump(pw);
+            mSecondArcs.dump(pw);
+            mRedrawScheduler.dump(pw);
+            dumpFrameGovernor(pw);
+            mFrameStats.dump(pw);
+        }
+
+        /**
+         * Reads the battery if it is due, and applies FrameGovernor's tier to
+         * mRedrawScheduler. Called before each interactive wakeup is scheduled.
+         */
+        void updateFrameGovernor() {
+            long nowMs = SystemClock.elapsedRealtime();
+            if(mLastBatteryReadMs == 0 || nowMs - mLastBatteryReadMs >= BATTERY_POLL_MS) {
+                mLastBatteryReadMs = nowMs;
+                //The sticky broadcast, so nothing is actually registered
+                Intent battery = HealthyMiamiWatchFaceService.this.registerReceiver(null,
+                        mBatteryFilter);
+                if(battery != null) {
+                    int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                    int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+                    int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+                    if(level >= 0 && scale > 0) {
+                        mFrameGovernor.setBattery(level * 100 / scale,
+                                status == BatteryManager.BATTERY_STATUS_CHARGING
+                                        || status == BatteryManager.BATTERY_STATUS_FULL);
+                    }
+                }
+            }
+            FrameGovernor governor = mFrameGovernor;
+            if(governor.update(nowMs)) {
+                mRedrawScheduler.setMinDelayMs(governor.getMinDelayMs());
+                if(governor.isSecondsRingShown() != mSecondsRingShown) {
+                    mSecondsRingShown = governor.isSecondsRingShown();
+                    mRedrawScheduler.setSecondsRingShown(mSecondsRingShown);
+                    mDirtyRegions.invalidateAll();
+                }
+                String limit = "";
+                if(governor.getLimit() == FrameGovernor.LIMIT_CPU) {
+                    limit = ", limited by CPU";
+                } else if(governor.getLimit() == FrameGovernor.LIMIT_BATTERY) {
+                    limit = ", limited by battery";
+                }
+                Log.i(TAG, "Frame rate now " + governor.getFps() + " FPS: average frame "
+                        + governor.getAverageFrameCostNs() / 1000 + " us, battery "
+                        + governor.getBatteryPercent() + "%"
+                        + (governor.isCharging() ? " charging" : "") + limit);
+            }
+        }
+
+        /** Tells mOverdraw, if we have one, which part of the face is drawn next. */
+        private void markLayer(int layer) {
+            if(mOverdraw != null) {
+                mOverdraw.setLayer(layer);
+            }
         }
 
-        private Paint createTextPaint(int defaultInteractiveColor, Typeface typeface) {
+        /** Returns a start time for endPhase(), or 0 if frame timing is off. */
+        private long startPhase() {
+            if (FRAME_STATS_ENABLED && mFrameStats.isEnabled()) {
+                return System.nanoTime();
+            }
+            return 0;
+        }
+
+        /**
+         * Records the time since start against phase, and returns the current time so
+         * that it can be used as the start of the next phase.
+         */
+        private long endPhase(int phase, long start) {
+            if (FRAME_STATS_ENABLED && start != 0) {
+                long now = System.nanoTime();
+                mFrameStats.record(phase, now - start);
+                return now;
+            }
+            return 0;
+        }
+
+        private Paint createTextPaint(int defaultInteractiveColor) {
             Paint paint = new Paint();
             paint.setColor(defaultInteractiveColor);
-            paint.setTypeface(typeface);
             paint.setAntiAlias(true);
             paint.setTextAlign(Paint.Align.CENTER);
             return paint;
@@ -508,10 +1246,18 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
 
             if (visible) {
                 registerReceiver();
+                mShowDirtyRegions = Log.isLoggable(DIRTY_REGIONS_TAG, Log.DEBUG);
+                mDirtyRegions.invalidateAll();
 
                 // Update time zone in case it changed while we weren't visible.
-                mTime.clear(TimeZone.getDefault().getID());
-                mTime.setToNow();
+                setTimeZone(TimeZone.getDefault());
+
+                //Don't show a step count that is up to STEP_SENSOR_MAX_LATENCY_US old
+                if(mSensorThread != null) {
+                    mSensorManager.flush(this);
+                }
+                //The battery may have changed a lot while we were hidden
+                mLastBatteryReadMs = 0;
             } else {
                 unregisterReceiver();
             }
@@ -551,23 +1297,7 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
                 Log.d(TAG, "onAmbientModeChanged: " + inAmbientMode);
             }
 
-            /**
-             * These paints are normally anti-aliased in ambient mode, but shouldn't be
-             * if we have a low bit ambient
-             */
-            if (mLowBitAmbient) {
-                boolean antiAlias = !inAmbientMode;
-                mHourPaint.setAntiAlias(antiAlias);
-                mMinutePaint.setAntiAlias(antiAlias);
-                mStepPaint.setAntiAlias(antiAlias);
-                mTMPaint.setAntiAlias(antiAlias);
-                mMPathPaint.setAntiAlias(antiAlias);
-                mTopLayerBorderPaintNoBurn.setAntiAlias(antiAlias);
-            }
-            //Thinner fonts for less burn in
-            if(mBurnInProtection){
-                mHourPaint.setTypeface(inAmbientMode ? mThinTypeface : mNormalTypeface);
-            }
+            applyAmbientMode(inAmbientMode);
             invalidate();
 
             // Whether the timer should be running depends on whether we're in ambient mode (as well
@@ -575,13 +1305,31 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
             updateTimer();
         }
 
-        private String formatTwoDigitNumber(int hour) {
-            return String.format("%02d", hour);
-        }
-
-        private int convertTo12Hour(int hour) {
-            int result = hour % 12;
-            return (result == 0) ? 12 : result;
+        /**
+         * Sets up the paints and caches for ambient or interactive drawing, given the
+         * current low-bit and burn-in properties.
+         */
+        void applyAmbientMode(boolean inAmbientMode) {
+            /**
+             * These paints are normally anti-aliased in ambient mode, but shouldn't be
+             * if we have a low bit ambient
+             */
+            boolean antiAlias = !(inAmbientMode && mLowBitAmbient);
+            mHourPaint.setAntiAlias(antiAlias);
+            mMinutePaint.setAntiAlias(antiAlias);
+            mStepPaint.setAntiAlias(antiAlias);
+            mTMPaint.setAntiAlias(antiAlias);
+            mActivityPaint.setAntiAlias(antiAlias);
+            mMPathPaint.setAntiAlias(antiAlias);
+            mTopLayerBorderPaintNoBurn.setAntiAlias(antiAlias);
+            mHourPaint.setTypeface(getHourTypeface(inAmbientMode));
+            mGlyphAtlasesValid = false;
+            invalidateStaticLayer();
+            if (!inAmbientMode) {
+                //Don't hold on to a second frame buffer while interactive
+                mUpdateTimeHandler.removeMessages(MSG_PREPARE_AMBIENT_FRAME);
+                mAmbientFrame.release();
+            }
         }
 
         private float mUiScale=-1.0f;
@@ -589,143 +1337,180 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
             if(mUiScale == uiScale) return;
 
             mUiScale = uiScale;
+            invalidateStaticLayer();
             mTopLayerBorderPaintNoBurn.setStrokeWidth(Math.max(1,(int)uiScale*2.0f));
 
             mHourPaint.setTextSize(uiScale*FONT_SIZE_LARGE);
             mMinutePaint.setTextSize(uiScale*FONT_SIZE_LARGE/2);
             mStepPaint.setTextSize(uiScale*FONT_SIZE_LARGE/4);
             mTMPaint.setTextSize(uiScale*FONT_SIZE_LARGE/8);
+            mActivityPaint.setTextSize(uiScale*FONT_SIZE_LARGE/8);
+            mGlyphAtlasesValid = false;
 
-            mMPath.reset();
-            mMPath.moveTo(uiScale*(M_POINTS[0][0]),uiScale*(M_POINTS[0][1]));
-            for(int i=1;i<M_POINTS.length;i++){
-                mMPath.lineTo(uiScale*(M_POINTS[i][0]),uiScale*(M_POINTS[i][1]));
-            }
-            mMPath.close();
-
-            mShoePath.reset();
-            mShoePath.moveTo(uiScale*(float)(SHOE_POINTS[0][0]),
-                    uiScale*(float)(SHOE_POINTS[0][1]));
-            for(int i=1;i<SHOE_POINTS.length;i++){
-                mShoePath.lineTo(uiScale*(float)(SHOE_POINTS[i][0]),
-                        uiScale*(float)(SHOE_POINTS[i][1]));
-            }
-            mShoePath.close();
+            mMPath = mMPathSlot.get(RenderResources.KIND_M_PATH, 0, 0, uiScale, 0);
+            mShoePath = mShoePathSlot.get(RenderResources.KIND_SHOE_PATH, 0, 0, uiScale, 0);
 
             mMPathPaint.setStrokeWidth(Math.max(1,(int)(uiScale*1.0f)));
 
             mTopLayerBorderPaint.setStrokeWidth(Math.max(1,(int)(uiScale*2.0f)));
 
-            mInteractiveBackgroundPaint.setShader(new RadialGradient(bounds.width()/2,
-                    bounds.height()/2,
-                    uiScale*WATCH_RADIUS,
-                    INTERACTIVE_BACKGROUND_COLOR_INNER, INTERACTIVE_BACKGROUND_COLOR_OUTER,
-                    Shader.TileMode.CLAMP));
+            mInteractiveBackgroundPaint.setShader(mInteractiveGradientSlot.get(
+                    RenderResources.KIND_INTERACTIVE_GRADIENT,
+                    bounds.width(), bounds.height(), uiScale, 0));
+            mAmbientBackgroundPaint.setShader(mAmbientGradientSlot.get(
+                    RenderResources.KIND_AMBIENT_GRADIENT,
+                    bounds.width(), bounds.height(), uiScale, 0));
+        }
 
-            mAmbientBackgroundPaint.setShader(new RadialGradient(bounds.width()/2,
-                    bounds.height()/2,
-                    uiScale*WATCH_RADIUS,
-                    AMBIENT_BACKGROUND_COLOR_INNER, AMBIENT_BACKGROUND_COLOR_OUTER,
-                    Shader.TileMode.CLAMP));
+        /** isInAmbientMode(), unless scripted inputs say otherwise. */
+        boolean isAmbient() {
+            return mInputs.isAmbient();
         }
 
-        @Override
-        public void onDraw(Canvas canvas, Rect bounds) {
-            mTime.setToNow();
-            long millis = System.currentTimeMillis() % 1000;
-            updateStepData(CALLED_FROM_TIME_UPDATE);
+        /**
+         * Returns the DRAW_MODE_* flags that describe how the static layer should look right now.
+         */
+        int getDrawMode() {
+            int placeholder = mSharedResourcesApplied ? 0 : DRAW_MODE_PLACEHOLDER;
+            if(!isAmbient()) {
+                return DRAW_MODE_INTERACTIVE | placeholder;
+            }
+            int mode = DRAW_MODE_AMBIENT | placeholder;
+            if(mLowBitAmbient) {
+                mode |= DRAW_MODE_LOW_BIT;
+            }
+            if(mBurnInProtection) {
+                mode |= DRAW_MODE_BURN_IN;
+            }
+            return mode;
+        }
 
-            float watchSize = (float)(bounds.width() > bounds.height() ?
-                    bounds.width() : bounds.height());
-            float uiScale = watchSize / (mIsRound ? WATCH_DIM_ROUND : WATCH_DIM_SQUARE);
-            rescalePaints(uiScale,bounds);
+        /**
+         * Marks the static layer as stale, so that the next onDraw() rebuilds it. Call this
+         * whenever anything that goes into buildStaticLayer() changes.
+         */
+        private void invalidateStaticLayer() {
+            mStaticLayerValid = false;
+            mDirtyRegions.invalidateAll();
+            mAmbientFrame.invalidate();
+        }
 
-            //Clear the screen to black
-            canvas.drawRect(0, 0, bounds.width(), bounds.height(), mBlackPaint);
+        private boolean isStaticLayerCurrent(Rect bounds, float uiScale, int drawMode) {
+            return mStaticLayerValid && mStaticLayer != null
+                    && mStaticLayerWidth == bounds.width()
+                    && mStaticLayerHeight == bounds.height()
+                    && mStaticLayerScale == uiScale
+                    && mStaticLayerMode == drawMode;
+        }
 
-            //Draw the gradient background, if in interactive mode
-            if(!isInAmbientMode()){
-                canvas.drawRect(0, 0, bounds.width(), bounds.height(), mInteractiveBackgroundPaint);
-            } else if(!mLowBitAmbient) {
+        /**
+         * Renders the parts of the face that don't change between frames into whatever
+         * bitmap mStaticLayerCanvas is drawing to. Called by mStaticLayerSlot when no
+         * engine has a static layer for this key yet.
+         */
+        void buildStaticLayer(int width, int height, float uiScale, int drawMode) {
+            FaceLayout layout = mLayout;
+            int timeCenterX = layout.getTimeCenterX();
+            int timeCenterY = layout.getTimeCenterY();
+            Canvas canvas = mStaticLayerCanvas;
+            boolean ambient = (drawMode & DRAW_MODE_AMBIENT) != 0;
+            boolean lowBit = (drawMode & DRAW_MODE_LOW_BIT) != 0;
+            boolean burnIn = (drawMode & DRAW_MODE_BURN_IN) != 0;
+            boolean placeholder = (drawMode & DRAW_MODE_PLACEHOLDER) != 0;
+
+            int circleLeft = layout.getCircleLeft();
+            int circleRight = layout.getCircleRight();
+            int circleTop = layout.getCircleTop();
+            int circleBot = layout.getCircleBottom();
+
+            //Gradient background in interactive mode, and in ambient mode unless low-bit
+            Paint backgroundPaint = null;
+            if(!ambient){
+                backgroundPaint = mInteractiveBackgroundPaint;
+            } else if(!lowBit) {
                 //Okay to use this even in burn-in-protection mode?
-                canvas.drawRect(0, 0, bounds.width(), bounds.height(), mAmbientBackgroundPaint);
-            } /* else {
-                //Do nothing, black background
-            }*/
-
-            //The time is shown in a circle whose circumference touches
-            // both the center of the view and (in a circular watch), the
-            // edge of the view. It is at a 45 degree angle up and right
-            // of the center of the view
-            int timeCenterX = (int)(bounds.width()/2 + uiScale*CIRCLE_OFFSET);
-            int timeCenterY = (int)(bounds.height()/2 - uiScale*CIRCLE_OFFSET);
-
-            int circleLeft = (int)(timeCenterX - (uiScale*CIRCLE_RADIUS));
-            int circleRight = (int)(circleLeft + (2 * uiScale*CIRCLE_RADIUS));
-            int circleTop = (int)(timeCenterY - (uiScale*CIRCLE_RADIUS));
-            int circleBot = (int)(circleTop + (2 * uiScale*CIRCLE_RADIUS));
+                backgroundPaint = mAmbientBackgroundPaint;
+            }
 
+            LayerCompositor layers = mStaticLayers;
+            layers.clear();
+            layers.declare(STATIC_LAYER_CLEAR, 0, 0, width, height);
+            if(backgroundPaint != null) {
+                //See overBlack()
+                layers.declare(STATIC_LAYER_BACKGROUND, 0, 0, width, height);
+                layers.setOpaque(STATIC_LAYER_BACKGROUND, 0, 0, width, height);
+            }
+            layers.declare(STATIC_LAYER_M, 0, 0, width, height);
+            layers.declare(STATIC_LAYER_CIRCLE, circleLeft, circleTop, circleRight, circleBot);
+            if(ambient && lowBit) {
+                //The low-bit circle is solid black. Nothing under the largest square that
+                // fits inside it, less a pixel for the edge, shows
+                int half = (int)(uiScale*CIRCLE_RADIUS/Math.sqrt(2)) - 1;
+                layers.setOpaque(STATIC_LAYER_CIRCLE, timeCenterX - half, timeCenterY - half,
+                        timeCenterX + half, timeCenterY + half);
+            }
+
+            //Clear the screen to black
+            markLayer(OverdrawAnalyzer.LAYER_CLEAR);
+            if(!layers.isHidden(STATIC_LAYER_CLEAR)) {
+                int clearSaveCount = layers.clipOutCovered(canvas, STATIC_LAYER_CLEAR);
+                canvas.drawRect(0, 0, width, height, mBlackPaint);
+                canvas.restoreToCount(clearSaveCount);
+            }
+
+            markLayer(OverdrawAnalyzer.LAYER_BACKGROUND);
+            if(backgroundPaint != null) {
+                int backgroundSaveCount = layers.clipOutCovered(canvas, STATIC_LAYER_BACKGROUND);
+                canvas.drawRect(0, 0, width, height, backgroundPaint);
+                canvas.restoreToCount(backgroundSaveCount);
+            }
+
+            long phaseStart = startPhase();
+            markLayer(OverdrawAnalyzer.LAYER_M);
+            int mSaveCount = layers.clipOutCovered(canvas, STATIC_LAYER_M);
             //Want upper-right corner of path to line up with centerX, centerY
-            mMPath.offset(-uiScale*M_PATH_WIDTH+timeCenterX,timeCenterY);
+            int pathSaveCount = canvas.save();
+            canvas.translate(-uiScale*M_PATH_WIDTH+timeCenterX,timeCenterY);
             //Always fill. Use stipple only in ambient mode, and only when burninprotection
             // is enabled
             Paint whichFill = mMFillPaint;
-            if(isInAmbientMode()){
-                if(mBurnInProtection){
-                    //Use this version in both lowBit and non-lowBit, when doing burn-in protect
-                    whichFill = mMNoBurnFillPaint;
-                } else if (mLowBitAmbient) {
+            if(ambient){
+                if(burnIn){
+                    //Use this version in both lowBit and non-lowBit, when doing burn-in protect.
+                    // Until the stipple loads, the outline alone is kinder to the screen
+                    // than a solid M
+                    whichFill = placeholder ? null : mMNoBurnFillPaint;
+                } else if (lowBit) {
                     //Just disable anti-alias
                     whichFill = mMLowBitFillPaint;
                 }
             }
-            canvas.drawPath(mMPath,whichFill);
-            //Add TM symbol
-            canvas.drawText("TM",timeCenterX+uiScale*PADDING,timeCenterY+uiScale*M_PATH_HEIGHT,
-                    mTMPaint);
-
+            if(whichFill != null) {
+                canvas.drawPath(mMPath,whichFill);
+            }
             //Draw outline only when stipple is used
-            if(isInAmbientMode() && mBurnInProtection) {
+            if(ambient && burnIn) {
                 canvas.drawPath(mMPath,mMPathPaint);
             }
-            mMPath.offset(uiScale*M_PATH_WIDTH-timeCenterX,-timeCenterY);
+            canvas.restoreToCount(pathSaveCount);
+
+            //Add TM symbol
+            canvas.drawText("TM",timeCenterX+uiScale*PADDING,timeCenterY+uiScale*M_PATH_HEIGHT,
+                    mTMPaint);
+            canvas.restoreToCount(mSaveCount);
+            endPhase(FrameStats.PHASE_M_PATH, phaseStart);
 
             // Draw the circle that goes under the time
+            markLayer(OverdrawAnalyzer.LAYER_CIRCLE);
             canvas.drawCircle(timeCenterX, timeCenterY,
                     (uiScale*CIRCLE_RADIUS),
-                    ((isInAmbientMode() && mLowBitAmbient) ?
+                    ((ambient && lowBit) ?
                             mTopLayerBackgroundPaintLowBit : mTopLayerBackgroundPaint));
 
-            if(!isInAmbientMode()) {
-                float pctAround = (mTime.second + millis/1000.0f)/60.0f;
-
-                if (mTime.minute % 2 == 0) {
-                    canvas.drawArc(circleLeft+uiScale*1, circleTop+uiScale*1,
-                            circleRight-uiScale*1, circleBot-uiScale*1, 270,
-                            360*pctAround, false, mTopLayerBorderPaint);
-                } else {
-                    canvas.drawArc(circleLeft+uiScale*1, circleTop+uiScale*1,
-                            circleRight-uiScale*1, circleBot-uiScale*1,
-                            (270+360*pctAround),
-                            360*(1.0f-pctAround), false, mTopLayerBorderPaint);
-                }
-
-                //Inner circle counts each second
-                pctAround = millis/1000.0f;
-                if (mTime.second % 2 == 0) {
-                    canvas.drawArc(circleLeft+uiScale*4, circleTop+uiScale*4,
-                            circleRight-uiScale*4, circleBot-uiScale*4, 270,
-                            360*pctAround, false, mTopLayerBorderPaint);
-                } else {
-                    canvas.drawArc(circleLeft+uiScale*4, circleTop+uiScale*4,
-                            circleRight-uiScale*4, circleBot-uiScale*4,
-                            (270+360*pctAround),
-                            360*(1.0f-pctAround), false, mTopLayerBorderPaint);
-                }
-
-            } else {
+            //In ambient mode the border doesn't animate, so it is part of the static layer too
+            if(ambient) {
                 Paint whichBorderPaint = mTopLayerBorderPaint;
-                if(mBurnInProtection || mLowBitAmbient){
+                if(burnIn || lowBit){
                     //Use dotted, whether in low bit or not
                     whichBorderPaint = mTopLayerBorderPaintNoBurn;
                 }
@@ -734,72 +1519,526 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
                         360, false,
                         whichBorderPaint);
             }
+        }
 
-            String hourString = String.valueOf(convertTo12Hour(mTime.hour));
-            String minuteString = formatTwoDigitNumber(mTime.minute);
-
-            Rect textBounds = new Rect();
-            mHourPaint.getTextBounds(hourString,0,hourString.length(),textBounds);
-            float hourHeight = textBounds.height();
-            mMinutePaint.getTextBounds(minuteString,0,minuteString.length(),textBounds);
-            float minuteHeight = textBounds.height();
-            float totalHeight = hourHeight + uiScale*PADDING + minuteHeight;
-
-            canvas.drawText(hourString, timeCenterX, timeCenterY + (hourHeight-(totalHeight/2)),
-                    mHourPaint);
-            canvas.drawText(minuteString, timeCenterX,
-                    timeCenterY+(totalHeight/2), mMinutePaint);
-
-            String stepString = String.valueOf(mSettings.getInt(PREF_LAST_STEPS,0)
-                    - mSettings.getInt(PREF_MIDNIGHT_STEPS,0));
-            mStepPaint.getTextBounds(stepString,0,stepString.length(),textBounds);
-
-            int textWidth = textBounds.width();
-            int textHeight = textBounds.height();
-            int stepCenterY = timeCenterY + (int)(0.75*uiScale*CIRCLE_WIDTH);
-            int contentWidth = textWidth + (int)(uiScale*SHOE_PATH_WIDTH);
-            int roomForRounded = textHeight+(int)(2*uiScale*PADDING);
-            int fullWidth = contentWidth + roomForRounded;
-            int fullHeight = textHeight + (int)(2*uiScale*PADDING);
-            int radius = roomForRounded/2;
-
-            canvas.drawRoundRect(
-                    timeCenterX - fullWidth/2,
-                    stepCenterY - fullHeight/2,
-                    timeCenterX + fullWidth/2,
-                    stepCenterY + fullHeight/2,
-                    radius, radius,
-                    ((isInAmbientMode() && mLowBitAmbient) ?
-                            mTopLayerBackgroundPaintLowBit : mTopLayerBackgroundPaint));
-
-            if(isInAmbientMode() && mLowBitAmbient) {
-                //Only draw border on step area in low bit ambient mode
-                canvas.drawRoundRect(
-                        timeCenterX - fullWidth/2,
-                        stepCenterY - fullHeight/2,
-                        timeCenterX + fullWidth/2,
-                        stepCenterY + fullHeight/2,
+        @Override
+        public void onDraw(Canvas canvas, Rect bounds) {
+            long drawStart = System.nanoTime();
+            long startupFrameStart = mStartup.isComplete() ? 0 : drawStart;
+            long frameStart = startPhase();
+            if (FRAME_STATS_ENABLED && frameStart != 0) {
+                mFrameStats.countFrame(frameStart, shouldTimerBeRunning() ?
+                        mRedrawScheduler.getLastDelayMs() * 1000000L : 0);
+            }
+            //One reading per frame, so the seconds and the millis always agree
+            FrameInputs inputs = mInputs;
+            FaceClock clock = mClock;
+            clock.update(inputs.getTimeMs());
+            inputs.onFrameStart();
+            int hour = clock.getHour();
+            int minute = clock.getMinute();
+            int second = clock.getSecond();
+            int millis = clock.getMillis();
+
+            int drawMode = getDrawMode();
+            FaceLayout layout = mLayout;
+            if(layout == null || !layout.matches(bounds.width(), bounds.height(), mIsRound,
+                    mChinSize, drawMode)) {
+                layout = updateLayout(bounds, drawMode);
+            }
+            float uiScale = layout.getUiScale();
+
+            int timeCenterX = layout.getTimeCenterX();
+            int circleLeft = layout.getCircleLeft();
+            int circleRight = layout.getCircleRight();
+            int circleTop = layout.getCircleTop();
+            int circleBot = layout.getCircleBottom();
+
+            //Background, M and the circle under the time come from the cached layer
+            long phaseStart = startPhase();
+            if(!isStaticLayerCurrent(bounds, uiScale, drawMode)) {
+                mStaticLayer = mStaticLayerSlot.get(RenderResources.KIND_STATIC_LAYER,
+                        bounds.width(), bounds.height(), uiScale, drawMode);
+                mStaticLayerWidth = bounds.width();
+                mStaticLayerHeight = bounds.height();
+                mStaticLayerScale = uiScale;
+                mStaticLayerMode = drawMode;
+                mStaticLayerValid = true;
+                mDirtyRegions.invalidateAll();
+            }
+            ensureFrameBuffer(bounds);
+            mDirtyRegions.beginFrame(bounds);
+
+            //At an ambient tick, next minute's frame is usually ready. Swap it in, and only
+            // the step pill needs to be drawn
+            boolean ambient = isAmbient();
+            boolean precomposed = false;
+            if(ambient && (hour != mLastHour || minute != mLastMinute)) {
+                if(mAmbientFrame.matches(drawMode, bounds.width(), bounds.height(), uiScale,
+                        hour, minute)) {
+                    mFrameBuffer = mAmbientFrame.swap(mFrameBuffer);
+                    mFrameCanvas.setBitmap(mFrameBuffer);
+                    precomposed = true;
+                } else {
+                    mAmbientFrame.countMiss();
+                }
+            }
+            long backgroundNs = startPhase() - phaseStart;
+
+            //Work out what the animated parts look like this frame, and what changed
+            float minutePctAround = (second + millis/1000.0f)/60.0f;
+            //A hidden seconds ring stays put, so it never dirties the rings on its own
+            boolean secondsRingShown = mSecondsRingShown;
+            float secondPctAround = secondsRingShown ? millis/1000.0f : 0;
+            boolean growMinuteRing = minute % 2 == 0;
+            boolean growSecondsRing = second % 2 == 0;
+            int ringPad = layout.getRingPad();
+            mRegionBounds.set(circleLeft - ringPad, circleTop - ringPad,
+                    circleRight + ringPad, circleBot + ringPad);
+            mDirtyRegions.update(DirtyRegionTracker.REGION_RINGS, mRegionBounds,
+                    !ambient && (minutePctAround != mLastMinutePctAround
+                            || secondPctAround != mLastSecondPctAround));
+            mLastMinutePctAround = minutePctAround;
+            mLastSecondPctAround = secondPctAround;
+
+            phaseStart = startPhase();
+            if(!mGlyphAtlasesValid) {
+                if(mDeferGlyphAtlases) {
+                    //Empty, so text is drawn with the paints until warmUp()
+                    mHourAtlas = mEmptyAtlas;
+                    mMinuteAtlas = mEmptyAtlas;
+                    mStepAtlas = mEmptyAtlas;
+                } else {
+                    updateGlyphAtlases(uiScale, drawMode);
+                }
+            }
+            int hourStart = DigitFormatter.formatHour12(hour, mHourChars);
+            int hourCount = mHourChars.length - hourStart;
+            int minuteStart = DigitFormatter.formatTwoDigits(minute, mMinuteChars);
+            int minuteCount = mMinuteChars.length - minuteStart;
+
+            mRegionBounds.set(layout.getDigitsLeft(hourCount), layout.getDigitsTop(),
+                    layout.getDigitsRight(hourCount), layout.getDigitsBottom());
+            if(precomposed) {
+                mDirtyRegions.updateRepainted(DirtyRegionTracker.REGION_DIGITS, mRegionBounds);
+            } else {
+                mDirtyRegions.update(DirtyRegionTracker.REGION_DIGITS, mRegionBounds,
+                        hour != mLastHour || minute != mLastMinute);
+            }
+            mLastHour = hour;
+            mLastMinute = minute;
+
+            int todaySteps = inputs.getTodaySteps();
+            int stepStart = DigitFormatter.formatInt(todaySteps, mStepChars);
+            int stepCount = mStepChars.length - stepStart;
+            int radius = layout.getPillRadius();
+            int pillLeft = layout.getPillLeft(stepCount);
+            int pillRight = layout.getPillRight(stepCount);
+
+            mRegionBounds.set(pillLeft - ringPad, layout.getPillTop() - ringPad,
+                    pillRight + ringPad, layout.getPillBottom() + ringPad);
+            //A precomposed frame has no step pill at all
+            mDirtyRegions.update(DirtyRegionTracker.REGION_STEP_PILL, mRegionBounds,
+                    todaySteps != mLastTodaySteps || precomposed);
+            mLastTodaySteps = todaySteps;
+
+            //Cadence only changes by the second, so there's no point reading it more often
+            long activitySecond = clock.getTimeMs() / 1000;
+            if(activitySecond != mActivitySecond) {
+                mActivitySecond = activitySecond;
+                updateActivityLines(inputs.getActivity(), clock);
+            }
+            mRegionBounds.set(0, layout.getActivityTop(),
+                    bounds.width(), layout.getActivityBottom());
+            //Like the step pill, not part of a precomposed frame
+            mDirtyRegions.update(DirtyRegionTracker.REGION_ACTIVITY, mRegionBounds,
+                    mActivityChanged || precomposed);
+            mActivityChanged = false;
+            endPhase(FrameStats.PHASE_TEXT_MEASURE, phaseStart);
+
+            //Recomposite only what changed, on top of the cached background
+            if(mDirtyRegions.hasDirtyRegions()) {
+                Canvas frame = mFrameCanvas;
+                int saveCount = frame.save();
+                mDirtyRegions.clip(frame);
+                phaseStart = startPhase();
+                LayerCompositor layers = mFrameLayers;
+                layers.clear();
+                layers.declare(FRAME_LAYER_BACKGROUND, 0, 0, bounds.width(), bounds.height());
+                layers.declare(FRAME_LAYER_STEP_PILL, pillLeft, layout.getPillTop(),
+                        pillRight, layout.getPillBottom());
+                if(ambient && mLowBitAmbient) {
+                    //The low-bit pill is solid black between its rounded ends
+                    layers.setOpaque(FRAME_LAYER_STEP_PILL, pillLeft + radius,
+                            layout.getPillTop() + 1, pillRight - radius,
+                            layout.getPillBottom() - 1);
+                }
+                markLayer(OverdrawAnalyzer.LAYER_STATIC_BLIT);
+                int backgroundSaveCount = layers.clipOutCovered(frame, FRAME_LAYER_BACKGROUND);
+                frame.drawBitmap(mStaticLayer, 0, 0, null);
+                frame.restoreToCount(backgroundSaveCount);
+                backgroundNs += startPhase() - phaseStart;
+                phaseStart = startPhase();
+
+                markLayer(OverdrawAnalyzer.LAYER_RINGS);
+                if(!ambient) {
+                    //Outer circle counts each minute, inner circle counts each second
+                    int ringSaveCount = frame.save();
+                    frame.translate(circleLeft, circleTop);
+                    frame.drawPath(mMinuteArcs.get(minutePctAround, growMinuteRing),
+                            mRingFillPaint);
+                    if(secondsRingShown) {
+                        frame.drawPath(mSecondArcs.get(secondPctAround, growSecondsRing),
+                                mRingFillPaint);
+                    }
+                    frame.restoreToCount(ringSaveCount);
+                }
+                phaseStart = endPhase(FrameStats.PHASE_RINGS, phaseStart);
+
+                markLayer(OverdrawAnalyzer.LAYER_DIGITS);
+                mHourAtlas.draw(frame, mHourChars, hourStart, hourCount,
+                        timeCenterX, layout.getHourBaseline(), mHourPaint);
+                mMinuteAtlas.draw(frame, mMinuteChars, minuteStart, minuteCount,
+                        timeCenterX, layout.getMinuteBaseline(), mMinutePaint);
+                phaseStart = endPhase(FrameStats.PHASE_TEXT_DRAW, phaseStart);
+
+                markLayer(OverdrawAnalyzer.LAYER_STEP_PILL);
+                frame.drawRoundRect(
+                        pillLeft, layout.getPillTop(),
+                        pillRight, layout.getPillBottom(),
                         radius, radius,
-                        mTopLayerBorderPaintNoBurn);
+                        ((ambient && mLowBitAmbient) ?
+                                mTopLayerBackgroundPaintLowBit : mTopLayerBackgroundPaint));
+
+                if(ambient && mLowBitAmbient) {
+                    //Only draw border on step area in low bit ambient mode
+                    frame.drawRoundRect(
+                            pillLeft, layout.getPillTop(),
+                            pillRight, layout.getPillBottom(),
+                            radius, radius,
+                            mTopLayerBorderPaintNoBurn);
+                }
+                mStepAtlas.draw(frame, mStepChars, stepStart, stepCount,
+                        layout.getStepTextX(), layout.getStepTextY(), mStepPaint);
+                frame.drawText(mActivityChars0, 0, mActivityCount0,
+                        timeCenterX, layout.getActivityBaseline(0), mActivityPaint);
+                frame.drawText(mActivityChars1, 0, mActivityCount1,
+                        timeCenterX, layout.getActivityBaseline(1), mActivityPaint);
+
+                Paint whichPaint = mMFillPaint;
+                if(ambient){
+                    if(mBurnInProtection){
+                        //Use this version in both lowBit and non-lowBit, when doing burn-in protect
+                        whichPaint = mMPathPaint;
+                    } else if (mLowBitAmbient) {
+                        //Just disable anti-alias
+                        whichPaint = mMLowBitFillPaint;
+                    }
+                }
+                markLayer(OverdrawAnalyzer.LAYER_SHOE);
+                int shoeSaveCount = frame.save();
+                frame.translate(layout.getShoeLeft(stepCount), layout.getShoeTop());
+                frame.drawPath(mShoePath, whichPaint);
+                frame.restoreToCount(shoeSaveCount);
+                endPhase(FrameStats.PHASE_STEP_PILL, phaseStart);
+
+                frame.restoreToCount(saveCount);
+            }
+            if (FRAME_STATS_ENABLED && frameStart != 0) {
+                mFrameStats.record(FrameStats.PHASE_BACKGROUND, backgroundNs);
             }
-            canvas.drawText(stepString, timeCenterX+uiScale*SHOE_PATH_WIDTH/2,
-                    stepCenterY+textHeight/2,mStepPaint);
 
-            Paint whichPaint = mMFillPaint;
-            if(isInAmbientMode()){
-                if(mBurnInProtection){
-                    //Use this version in both lowBit and non-lowBit, when doing burn-in protect
-                    whichPaint = mMPathPaint;
-                } else if (mLowBitAmbient) {
-                    //Just disable anti-alias
-                    whichPaint = mMLowBitFillPaint;
+            phaseStart = startPhase();
+            markLayer(OverdrawAnalyzer.LAYER_PRESENT);
+            canvas.drawBitmap(mFrameBuffer, 0, 0, null);
+            if(mShowDirtyRegions) {
+                mDirtyRegions.drawOverlay(canvas, mDirtyOverlayPaint);
+            }
+            mDirtyRegions.endFrame();
+            endPhase(FrameStats.PHASE_PRESENT, phaseStart);
+            endPhase(FrameStats.PHASE_FRAME, frameStart);
+
+            if(ambient) {
+                mUpdateTimeHandler.removeMessages(MSG_PREPARE_AMBIENT_FRAME);
+                mUpdateTimeHandler.sendEmptyMessage(MSG_PREPARE_AMBIENT_FRAME);
+            }
+            inputs.onFrameDrawn(System.nanoTime() - drawStart, ambient);
+            if(startupFrameStart != 0) {
+                mStartup.frameDrawn(startupFrameStart, mSharedResourcesApplied);
+                if(mStartup.isComplete()) {
+                    mUpdateTimeHandler.sendEmptyMessage(MSG_WARM_UP);
+                }
+            }
+        }
+
+        /**
+         * Rescales the paints for bounds, then measures them for a new mLayout. Only called
+         * when the layout no longer matches, so onDraw() never measures text itself.
+         */
+        private FaceLayout updateLayout(Rect bounds, int drawMode) {
+            rescalePaints(FaceLayout.getUiScale(bounds.width(), bounds.height(), mIsRound),
+                    bounds);
+            FaceLayout layout = new FaceLayout(bounds.width(), bounds.height(), mIsRound,
+                    mChinSize, drawMode, mTextMeasurer);
+            //These keep what they have if the geometry is the same
+            float circleSize = layout.getCircleSize();
+            mMinuteArcs.setGeometry(circleSize, layout.getMinuteRingInset(), mTopLayerBorderPaint);
+            mSecondArcs.setGeometry(circleSize, layout.getSecondsRingInset(),
+                    mTopLayerBorderPaint);
+            float radius = circleSize/2;
+            mRedrawScheduler.setGeometry(radius - layout.getMinuteRingInset(),
+                    radius - layout.getSecondsRingInset(), mDensity);
+            mLayout = layout;
+            return layout;
+        }
+
+        /** Measures the text paints for FaceLayout, as they are set up right now. */
+        private final FaceLayout.TextMeasurer mTextMeasurer = new FaceLayout.TextMeasurer() {
+            @Override
+            public int getDigitsWidth(int font, int count) {
+                Paint paint = getLayoutPaint(font);
+                //Digits are all the same advance in our fonts, so the widest run of digits
+                // is the one with the widest ink repeated
+                char widest = '0';
+                int widestWidth = -1;
+                for(int i=0;i<DIGIT_GLYPHS.length();i++){
+                    paint.getTextBounds(DIGIT_GLYPHS, i, i+1, mTextBounds);
+                    if(mTextBounds.width() > widestWidth) {
+                        widestWidth = mTextBounds.width();
+                        widest = DIGIT_GLYPHS.charAt(i);
+                    }
                 }
+                for(int i=0;i<count;i++){
+                    mMeasureChars[i] = widest;
+                }
+                paint.getTextBounds(mMeasureChars, 0, count, mTextBounds);
+                return mTextBounds.width();
             }
-            float shoeOffsetX = timeCenterX - contentWidth / 2 - uiScale*SHOE_PATH_WIDTH / 2;
-            float shoeOffsetY = stepCenterY - uiScale*SHOE_PATH_HEIGHT/ 2;
-            mShoePath.offset(shoeOffsetX,shoeOffsetY);
-            canvas.drawPath(mShoePath, whichPaint);
-            mShoePath.offset(-shoeOffsetX,-shoeOffsetY);
+
+            @Override
+            public int getDigitsHeight(int font) {
+                getLayoutPaint(font).getTextBounds(DIGIT_GLYPHS, 0, DIGIT_GLYPHS.length(),
+                        mTextBounds);
+                return mTextBounds.height();
+            }
+        };
+
+        private Paint getLayoutPaint(int font) {
+            return font == FaceLayout.FONT_HOUR ? mHourPaint
+                    : font == FaceLayout.FONT_MINUTE ? mMinutePaint
+                    : font == FaceLayout.FONT_STEPS ? mStepPaint
+                    : mActivityPaint;
+        }
+
+        /**
+         * Reads activity as of the clock's time, and formats the activity lines again if
+         * anything on them changed.
+         */
+        private void updateActivityLines(ActivityMetrics activity, FaceClock clock) {
+            activity.advanceTo(clock.getTimeMs() + clock.getOffsetMs());
+            int cadence = activity.getCadence();
+            int shortWindowSteps = activity.getShortWindowSteps();
+            int longWindowSteps = activity.getLongWindowSteps();
+            int activeMinutes = activity.getActiveMinutesToday();
+            if(mActivityCount0 != 0 && cadence == mCadence
+                    && shortWindowSteps == mShortWindowSteps
+                    && longWindowSteps == mLongWindowSteps && activeMinutes == mActiveMinutes) {
+                return;
+            }
+            mCadence = cadence;
+            mShortWindowSteps = shortWindowSteps;
+            mLongWindowSteps = longWindowSteps;
+            mActiveMinutes = activeMinutes;
+
+            char[] line = mActivityChars0;
+            int end = appendInt(line, 0, cadence);
+            end = appendLabel(line, end, ACTIVITY_CADENCE_LABEL);
+            end = appendInt(line, end, activeMinutes);
+            mActivityCount0 = appendLabel(line, end, ACTIVITY_ACTIVE_LABEL);
+
+            line = mActivityChars1;
+            end = appendInt(line, 0, shortWindowSteps);
+            end = appendLabel(line, end, ACTIVITY_SHORT_LABEL);
+            end = appendInt(line, end, longWindowSteps);
+            mActivityCount1 = appendLabel(line, end, ACTIVITY_LONG_LABEL);
+            mActivityChanged = true;
+        }
+
+        /** Writes value into line at pos, without allocating. Returns where it ends. */
+        private int appendInt(char[] line, int pos, int value) {
+            char[] digits = mActivityDigits;
+            int start = DigitFormatter.formatInt(value, digits);
+            int count = digits.length - start;
+            System.arraycopy(digits, start, line, pos, count);
+            return pos + count;
+        }
+
+        private int appendLabel(char[] line, int pos, String label) {
+            label.getChars(0, label.length(), line, pos);
+            return pos + label.length();
+        }
+
+        private void updateGlyphAtlases(float uiScale, int drawMode) {
+            mHourAtlas = mHourAtlasSlot.get(RenderResources.KIND_HOUR_ATLAS,
+                    0, 0, uiScale, drawMode);
+            mMinuteAtlas = mMinuteAtlasSlot.get(RenderResources.KIND_MINUTE_ATLAS,
+                    0, 0, uiScale, drawMode);
+            mStepAtlas = mStepAtlasSlot.get(RenderResources.KIND_STEP_ATLAS,
+                    0, 0, uiScale, drawMode);
+            mGlyphAtlasesValid = true;
+        }
+
+        /**
+         * Composes the frame for the minute after the one on screen: the static layer plus
+         * the digits, but no step pill, since the step count may change before the tick.
+         * Does nothing if that frame is already ready, or we aren't in ambient mode.
+         */
+        @Override
+        public void prepareAmbientFrame() {
+            if(!isAmbient() || !mStaticLayerValid || !mGlyphAtlasesValid) {
+                return;
+            }
+            int drawMode = getDrawMode();
+            FaceLayout layout = mLayout;
+            if(mStaticLayerMode != drawMode || layout == null
+                    || !layout.matches(mStaticLayerWidth, mStaticLayerHeight, mIsRound,
+                            mChinSize, drawMode)) {
+                return;
+            }
+            int nextMinute = (mClock.getMinute() + 1) % 60;
+            int nextHour = nextMinute == 0 ? (mClock.getHour() + 1) % 24 : mClock.getHour();
+            int width = mStaticLayerWidth;
+            int height = mStaticLayerHeight;
+            float uiScale = mStaticLayerScale;
+            if(mAmbientFrame.matches(drawMode, width, height, uiScale, nextHour, nextMinute)) {
+                return;
+            }
+
+            Canvas canvas = mAmbientFrame.begin(drawMode, width, height, uiScale,
+                    nextHour, nextMinute);
+            canvas.drawBitmap(mStaticLayer, 0, 0, null);
+
+            //Same placement as onDraw
+            int hourStart = DigitFormatter.formatHour12(nextHour, mNextHourChars);
+            int hourCount = mNextHourChars.length - hourStart;
+            int minuteStart = DigitFormatter.formatTwoDigits(nextMinute, mNextMinuteChars);
+            int minuteCount = mNextMinuteChars.length - minuteStart;
+            mHourAtlas.draw(canvas, mNextHourChars, hourStart, hourCount,
+                    layout.getTimeCenterX(), layout.getHourBaseline(), mHourPaint);
+            mMinuteAtlas.draw(canvas, mNextMinuteChars, minuteStart, minuteCount,
+                    layout.getTimeCenterX(), layout.getMinuteBaseline(), mMinutePaint);
+            mAmbientFrame.setReady();
+        }
+
+        @Override
+        public void setFrameInputs(FrameInputs inputs) {
+            mInputs = inputs != null ? inputs : mLiveInputs;
+            applyAmbientMode(isAmbient());
+            invalidate();
+        }
+
+        @Override
+        public boolean isRound() {
+            return mIsRound;
+        }
+
+        @Override
+        public int getChinSize() {
+            return mChinSize;
+        }
+
+        @Override
+        public boolean isLowBitAmbient() {
+            return mLowBitAmbient;
+        }
+
+        @Override
+        public boolean hasBurnInProtection() {
+            return mBurnInProtection;
+        }
+
+        @Override
+        public void setDisplay(boolean isRound, int chinSize, boolean lowBitAmbient,
+                               boolean burnInProtection) {
+            mIsRound = isRound;
+            mChinSize = chinSize;
+            mLowBitAmbient = lowBitAmbient;
+            mBurnInProtection = burnInProtection;
+            applyAmbientMode(isAmbient());
+        }
+
+        @Override
+        public FaceClock getClock() {
+            return mClock;
+        }
+
+        @Override
+        public FrameStats getFrameStats() {
+            return mFrameStats;
+        }
+
+        @Override
+        public long getOffscreenDrawCalls() {
+            return mFrameCanvas.getDrawCalls() + mStaticLayerCanvas.getDrawCalls();
+        }
+
+        @Override
+        public void setOverdrawAnalyzer(OverdrawAnalyzer analyzer) {
+            mOverdraw = analyzer;
+            mFrameCanvas.setAnalyzer(analyzer);
+            mStaticLayerCanvas.setAnalyzer(analyzer);
+        }
+
+        @Override
+        public void drawStaticLayer(Bitmap layer) {
+            mStaticLayerCanvas.setBitmap(layer);
+            buildStaticLayer(layer.getWidth(), layer.getHeight(), mLayout.getUiScale(),
+                    getDrawMode());
+            mStaticLayerCanvas.setBitmap(null);
+            mDirtyRegions.invalidateAll();
+        }
+
+        /** Makes the glyph atlas for one of the text paints, for mRenderResources. */
+        private final class GlyphAtlasFactory extends RenderResources.Factory<GlyphAtlas> {
+            private final int mKind;
+
+            GlyphAtlasFactory(int kind) {
+                mKind = kind;
+            }
+
+            @Override
+            GlyphAtlas create(RenderResources.Key key) {
+                Paint paint = mKind == RenderResources.KIND_HOUR_ATLAS ? mHourPaint
+                        : mKind == RenderResources.KIND_MINUTE_ATLAS ? mMinutePaint
+                        : mStepPaint;
+                GlyphAtlas atlas = new GlyphAtlas(mBitmapBudget);
+                atlas.rebuild(paint, DIGIT_GLYPHS);
+                return atlas;
+            }
+
+            @Override
+            void destroy(GlyphAtlas atlas) {
+                atlas.release();
+            }
+        }
+
+        /**
+         * Makes sure mFrameBuffer matches bounds. A new buffer has nothing in it, so it
+         * forces a full redraw.
+         */
+        private void ensureFrameBuffer(Rect bounds) {
+            if(mFrameBuffer != null && mFrameBuffer.getWidth() == bounds.width()
+                    && mFrameBuffer.getHeight() == bounds.height()) {
+                return;
+            }
+            if(mFrameBuffer != null) {
+                mBitmapBudget.recycle(BitmapBudget.CATEGORY_FRAME_BUFFER, mFrameBuffer);
+            }
+            //Swapped with mAmbientFrame's bitmap, so has to be made the same way
+            mFrameBuffer = mBitmapBudget.create(BitmapBudget.CATEGORY_FRAME_BUFFER,
+                    bounds.width(), bounds.height(), BitmapBudget.CONTENT_ANY);
+            mFrameCanvas.setBitmap(mFrameBuffer);
+            mDirtyRegions.invalidateAll();
         }
 
         /**
@@ -808,7 +2047,8 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
          */
         private void updateTimer() {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "updateTimer");
+                Log.d(TAG, "updateTimer: " + mRedrawScheduler.getWakeups()
+                        + " wakeups, average delay " + mRedrawScheduler.getAverageDelayMs() + " ms");
             }
             mUpdateTimeHandler.removeMessages(MSG_UPDATE_WATCHFACE);
             if (shouldTimerBeRunning()) {
@@ -831,93 +2071,168 @@ public class HealthyMiamiWatchFaceService extends CanvasWatchFaceService {
         private final String PREF_LAST_STEPS = "LastStepCount";
         private final String PREF_MIDNIGHT_STEPS = "MidnightStepCount";
         /**
-         * Updates step count info in storage. This is a single function so that
-         * we don't have to think too hard about race conditions on the preferences.
-         * This should be the only place that mSettings gets edited.
+         * Updates the in-memory step state. This is a single function so that
+         * we don't have to think too hard about race conditions on the step state.
+         * This should be the only place that mStepTracker gets changed after onCreate.
          *
          * Callers:
          *  - Time update function (really, onDraw)
          *  - Step counter callback
          *  - onCreate
          */
-        //I believe it is safe to use apply() instead of commit(). Because the method
-        // is synchronized, it isn't possible to have two editors editing mSettings
-        // at the same time, so don't have to worry about which invocation of apply()
-        // wins. According to the docs, SharedPreferences are singletons, so
-        // the in-memory structure will always be consistent, and the disk will be
-        // written with the latest version.
-        private synchronized void updateStepData(int curStepCount){
-            if(mSettings == null){
-                return;
+        //Lock-free, see StepTracker. Nothing here touches mSettings, so it is safe to call
+        // from onDraw. Changes are written out later by persistStepState().
+        private void updateStepData(int curStepCount){
+            if (FRAME_STATS_ENABLED) {
+                mFrameStats.countStepUpdate();
             }
-
-            if(curStepCount == CALLED_FROM_TIME_UPDATE){
+            boolean changed;
+            if (curStepCount == CALLED_FROM_TIME_UPDATE) {
                 //being called from the time update function, check for day rollover.
-                //When day changes, store the current step count as the midnight
-                // step count and update the current day
-                int todayIs = mTime.year * 10000 + mTime.month * 100 + mTime.monthDay;
-
-                //Note: If pref doesn't exist, this will set the current day and
-                // step count, which is probably the right thing to do
-                //If todayIs greater than the last day we stored the pref, then
-                // we will update. But what if someone had a problem with the date
-                // on their device, and so the pref is set to something far in the future?
-                // If the current day is at least 2 days before the currently stored pref,
-                // we also go ahead and do an update. The idea here is that if someone
-                // goes back and forth between two timezones we don't want to reset the
-                // counter multiple times.
-                if(todayIs > mSettings.getInt(PREF_CUR_DAY,0) ||
-                        todayIs < mSettings.getInt(PREF_CUR_DAY,0)-1){
-                    int lastSteps = mSettings.getInt(PREF_LAST_STEPS, 0);
-                    SharedPreferences.Editor editor = mSettings.edit();
-                    editor.putInt(PREF_CUR_DAY,todayIs);
-                    editor.putInt(PREF_MIDNIGHT_STEPS,lastSteps);
-                    editor.apply();
-                }
+                changed = mStepTracker.rollOverIfNewDay(mClock.getDayKey());
             } else if (curStepCount == CALLED_FROM_ON_CREATE) {
                 //In onCreate we may discover invalid preference state,
                 // which is when LAST_STEPS < MIDNIGHT_STEPS
-                //This should only result from debugging, so we should log it as an error
-                if(mSettings.getInt(PREF_LAST_STEPS,0) < mSettings.getInt(PREF_MIDNIGHT_STEPS,0)) {
+                changed = mStepTracker.resetIfInvalid();
+                if (changed) {
+                    //This should only result from debugging, so we should log it as an error
                     Log.e(TAG, "updateStepData: LAST_STEPS < MIDNIGHT_STEPS");
-                    SharedPreferences.Editor editor = mSettings.edit();
-                    //Since this is an invalid state, we will just clear all the prefs
-                    editor.putInt(PREF_CUR_DAY, 0);
-                    editor.putInt(PREF_MIDNIGHT_STEPS, 0);
-                    editor.putInt(PREF_LAST_STEPS, 0);
-                    editor.apply();
                 }
             } else {
-                //Called by the sensor callback. Two possibilities:
-                // - Just a normal update of step count
-                // - curStepCount < LAST_STEPS ... this indicates a reboot.
-
-                if (curStepCount < mSettings.getInt(PREF_LAST_STEPS,0)) {
-                    //If this was a reboot, then we want to save the amount of steps
-                    // we had, by setting the MIDNIGHT_STEPS to an appropriate
-                    // negative number
-                    int lastSteps = mSettings.getInt(PREF_LAST_STEPS,0);
-                    int midnightSteps = mSettings.getInt(PREF_MIDNIGHT_STEPS,0);
-
-                    SharedPreferences.Editor editorMidnight = mSettings.edit();
-                    midnightSteps = -(lastSteps - midnightSteps);
-                    editorMidnight.putInt(PREF_MIDNIGHT_STEPS, midnightSteps);
-                    editorMidnight.putInt(PREF_LAST_STEPS, curStepCount);
-                    editorMidnight.apply();
-                } else {
-                    //Just got a new step count, nothing wacky happened
-                    SharedPreferences.Editor editor = mSettings.edit();
-                    editor.putInt(PREF_LAST_STEPS, curStepCount);
-                    editor.apply();
-                }
+                //Called by the sensor callback
+                changed = mStepTracker.onSensorCount(curStepCount);
+            }
+
+            //Coalesce writes: one pending message will save whatever the latest state is
+            if (changed && !mUpdateTimeHandler.hasMessages(MSG_PERSIST_STEP_STATE)) {
+                mUpdateTimeHandler.sendEmptyMessage(MSG_PERSIST_STEP_STATE);
             }
         }
 
+        /**
+         * Writes the current step state to mSettings. Only called from the main looper.
+         */
+        //It is safe to use apply() instead of commit(). We always write the latest
+        // mStepState, and all writes happen on one thread, so it doesn't matter which
+        // invocation of apply() wins. According to the docs, SharedPreferences are
+        // singletons, so the in-memory structure will always be consistent, and the disk
+        // will be written with the latest version.
+        private void persistStepState() {
+            if(mSettings == null){
+                return;
+            }
+            StepState state = mStepTracker.get();
+            SharedPreferences.Editor editor = mSettings.edit();
+            editor.putInt(PREF_CUR_DAY, state.getDay());
+            editor.putInt(PREF_LAST_STEPS, state.getLastSteps());
+            editor.putInt(PREF_MIDNIGHT_STEPS, state.getMidnightSteps());
+            editor.apply();
+        }
+
+        //Called on mSensorThread. Just collect the event; drainStepEvents() handles the
+        // whole batch once the sensor is done delivering it
         @Override
         public void onSensorChanged(SensorEvent event) {
             //curStepCount is steps since system reboot
             int curStepCount = (int)event.values[0];
-            updateStepData(curStepCount);
+            mStepEvents.push(event.timestamp, curStepCount);
+            if (!mSensorHandler.hasMessages(MSG_DRAIN_STEP_EVENTS)) {
+                mSensorHandler.sendEmptyMessage(MSG_DRAIN_STEP_EVENTS);
+            }
+        }
+
+        /**
+         * Turns a batch of step counter events into as few state updates as possible, and
+         * redraws only if the step count on screen changed. Called on mSensorThread.
+         */
+        private void drainStepEvents() {
+            StepEventRing events = mStepEvents;
+            int size = events.size();
+            if (size == 0) {
+                return;
+            }
+            int shownBefore = mStepTracker.getTodaySteps();
+            recordStepDeltas(events);
+            for (int i = 0; i < size; i++) {
+                //The counter is cumulative, so only the last value matters. The exception is a
+                // reboot in the middle of the batch, where we need the value from before it too
+                boolean last = i == size-1;
+                if (last || events.getCount(i+1) < events.getCount(i)) {
+                    updateStepData(events.getCount(i));
+                }
+            }
+            events.clear();
+            if (mStepTracker.getTodaySteps() != shownBefore) {
+                postInvalidate();
+            }
+        }
+
+        /**
+         * Adds the steps between consecutive events to mActivity, and to the minute each
+         * event happened in, in the step history. Called on mSensorThread.
+         */
+        private void recordStepDeltas(StepEventRing events) {
+            //Sensor timestamps are on the elapsedRealtime clock, we want wall clock minutes
+            long nowMs = System.currentTimeMillis();
+            long wallMinusElapsedMs = nowMs - SystemClock.elapsedRealtimeNanos() / 1000000L;
+            int offsetMs = mSensorTimeZone.getOffset(nowMs);
+            boolean recordHistory = mRecordStepHistory;
+            ActivityMetrics activity = mActivity;
+            int previous = mLastRawStepCount;
+            for (int i = 0; i < events.size(); i++) {
+                int count = events.getCount(i);
+                if (previous >= 0) {
+                    //After a reboot the counter starts over from 0
+                    int steps = count >= previous ? count - previous : count;
+                    long wallMs = wallMinusElapsedMs + events.getTimestampNs(i) / 1000000L;
+                    activity.add(wallMs + offsetMs, steps);
+                    if (recordHistory) {
+                        mStepHistory.add(wallMs / 60000L, steps);
+                        mStepSync.add(wallMs / 60000L, steps, nowMs);
+                    }
+                }
+                previous = count;
+            }
+            mLastRawStepCount = previous;
+            if (recordHistory) {
+                mStepHistory.flushLog();
+                flushStepSync();
+            }
+        }
+
+        /**
+         * Counts today's active minutes in the stored step history, for when the engine
+         * starts partway through the day. Called on mSensorThread, after openStepHistory().
+         */
+        private void seedActivityMetrics() {
+            long nowMs = System.currentTimeMillis();
+            int offsetMs = mSensorTimeZone.getOffset(nowMs);
+            long localMinute = (nowMs + offsetMs) / 60000L;
+            long nowMinute = nowMs / 60000L;
+            //History minutes are UTC, so today starts offsetMs before local midnight
+            long dayStartMinute = localMinute - localMinute % StepHistory.MINUTES_PER_DAY
+                    - offsetMs / 60000L;
+            int activeMinutes = 0;
+            for (long m = dayStartMinute; m <= nowMinute; m++) {
+                if (mStepHistory.sum(m, m + 1) >= ActivityMetrics.ACTIVE_MINUTE_STEPS) {
+                    activeMinutes++;
+                }
+            }
+            mActivity.seedActiveMinutesToday(nowMs + offsetMs, activeMinutes);
+        }
+
+        /**
+         * Sends waiting steps to the phone if they are due, and if some are still waiting
+         * afterwards, comes back to check once they could be. Called on mSensorThread.
+         */
+        private void flushStepSync() {
+            StepSyncBatcher sync = mStepSync;
+            sync.flushIfDue(System.currentTimeMillis());
+            if (sync.getPendingBuckets() > 0
+                    && !mSensorHandler.hasMessages(MSG_FLUSH_STEP_SYNC)) {
+                mSensorHandler.sendEmptyMessageDelayed(MSG_FLUSH_STEP_SYNC,
+                        sync.getMaxDelayMs());
+            }
         }
 
         @Override
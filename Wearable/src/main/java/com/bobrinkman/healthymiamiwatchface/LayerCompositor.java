@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.Region;
+
+import java.io.PrintWriter;
+
+/**
+ * Works out which draws are hidden under opaque layers drawn after them, so they can be
+ * skipped or clipped.
+ *
+ * Layers are numbered bottom to top. Before drawing, the caller declares each layer it is
+ * about to draw: where it may draw, and optionally a rectangle it is certain to cover with
+ * opaque pixels (for anti-aliased shapes, one that stays clear of the edges). Then, for
+ * each layer in turn, isHidden() says whether opaque layers above it cover all of it, and
+ * if not, clipOutCovered() clips away the parts they do cover. The pixels that end up on
+ * screen are the same; there are just fewer of them painted twice.
+ *
+ * Only rectangles are used, because clipping out a rectangle is cheap and can't change
+ * the anti-aliased edge of anything.
+ */
+final class LayerCompositor {
+    private final String mName;
+    private final Rect[] mBounds;
+    private final Rect[] mOpaque;
+    private final boolean[] mDeclared;
+    private final boolean[] mHasOpaque;
+
+    //Counters, so we can see what this saves
+    private long mDraws;
+    private long mSkipped;
+    private long mClipped;
+
+    LayerCompositor(String name, int layers) {
+        mName = name;
+        mBounds = new Rect[layers];
+        mOpaque = new Rect[layers];
+        mDeclared = new boolean[layers];
+        mHasOpaque = new boolean[layers];
+        for(int i=0;i<layers;i++){
+            mBounds[i] = new Rect();
+            mOpaque[i] = new Rect();
+        }
+    }
+
+    /** Forgets every layer. Call before declaring the layers of a new frame. */
+    void clear() {
+        for(int i=0;i<mDeclared.length;i++){
+            mDeclared[i] = false;
+            mHasOpaque[i] = false;
+        }
+    }
+
+    /** Declares that layer will be drawn, somewhere within the given bounds. */
+    void declare(int layer, int left, int top, int right, int bottom) {
+        mBounds[layer].set(left, top, right, bottom);
+        mDeclared[layer] = true;
+        mHasOpaque[layer] = false;
+    }
+
+    /** Declares that layer covers the given rectangle with opaque pixels. */
+    void setOpaque(int layer, int left, int top, int right, int bottom) {
+        mOpaque[layer].set(left, top, right, bottom);
+        mHasOpaque[layer] = !mOpaque[layer].isEmpty();
+    }
+
+    /** Returns true if one opaque layer above layer covers everything it would draw. */
+    boolean isHidden(int layer) {
+        Rect bounds = mBounds[layer];
+        for(int i=layer+1;i<mDeclared.length;i++){
+            if(mDeclared[i] && mHasOpaque[i] && mOpaque[i].contains(bounds)) {
+                mSkipped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Saves canvas and clips out what opaque layers above layer will cover. Returns the
+     * count to pass to restoreToCount() after drawing the layer.
+     */
+    int clipOutCovered(Canvas canvas, int layer) {
+        mDraws++;
+        int saveCount = canvas.save();
+        Rect bounds = mBounds[layer];
+        boolean clipped = false;
+        for(int i=layer+1;i<mDeclared.length;i++){
+            if(mDeclared[i] && mHasOpaque[i] && Rect.intersects(mOpaque[i], bounds)) {
+                canvas.clipRect(mOpaque[i], Region.Op.DIFFERENCE);
+                clipped = true;
+            }
+        }
+        if(clipped) {
+            mClipped++;
+        }
+        return saveCount;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  " + mName + " layers: " + mDraws + " drawn, " + mClipped
+                + " of them clipped, " + mSkipped + " skipped as hidden");
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.PrintWriter;
+
+/**
+ * Counts how many times each pixel is painted while drawing a frame, and by which part of
+ * the face. Used by the debug build's RenderHarness, through ScriptableFace; the engine
+ * never creates one on its own.
+ *
+ * Every CountingCanvas the analyzer is attached to repeats each draw call on a shadow
+ * canvas backed by an ALPHA_8 mask the size of the screen, with the same clip and
+ * transform, using a copy of the paint with no shader or transfer mode. The pixels that
+ * call touched are the non-zero pixels of the mask. Those are added to a per-pixel count
+ * and to the layer the engine last named with setLayer(). The offscreen layers are the
+ * same size as the screen and drawn at the same position, so their pixels count towards
+ * the same screen pixels.
+ *
+ * This is slow (it reads the mask back after every call), so only use it for analysis.
+ */
+final class OverdrawAnalyzer {
+    static final int LAYER_CLEAR = 0;
+    static final int LAYER_BACKGROUND = 1;
+    static final int LAYER_M = 2;
+    static final int LAYER_CIRCLE = 3;
+    static final int LAYER_STATIC_BLIT = 4;
+    static final int LAYER_RINGS = 5;
+    static final int LAYER_DIGITS = 6;
+    static final int LAYER_STEP_PILL = 7;
+    static final int LAYER_SHOE = 8;
+    static final int LAYER_PRESENT = 9;
+    static final int LAYER_COUNT = 10;
+
+    private static final String[] LAYER_NAMES = {
+            "black clear", "background", "M + TM", "circle", "static blit", "rings",
+            "digits", "step pill", "shoe", "present"
+    };
+
+    //Same colors as "Debug GPU overdraw" in the developer options: painted once, twice,
+    // three times, four or more times
+    private static final int[] HEAT_COLORS = {
+            Color.BLACK, Color.rgb(0x8f, 0x8f, 0xff), Color.rgb(0x8f, 0xff, 0x8f),
+            Color.rgb(0xff, 0x8f, 0x8f), Color.rgb(0xff, 0x1f, 0x1f)
+    };
+
+    private final int mWidth;
+    private final int mHeight;
+    private final Bitmap mMask;
+    private final int[] mMaskPixels;
+    private final int[] mHeat;
+    private final Rect mClip = new Rect();
+    private final Paint mCoverage = new Paint();
+    private final Paint mBitmapCoverage = new Paint();
+
+    private int mLayer = LAYER_CLEAR;
+    private final long[] mLayerDraws = new long[LAYER_COUNT];
+    private final long[] mLayerPixels = new long[LAYER_COUNT];
+
+    OverdrawAnalyzer(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mMask = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+        mMaskPixels = new int[width * height];
+        mHeat = new int[width * height];
+        mBitmapCoverage.setColor(Color.BLACK);
+    }
+
+    /** Returns a canvas that draws into the shared mask, for a CountingCanvas to mirror. */
+    Canvas newShadow() {
+        return new Canvas(mMask);
+    }
+
+    /** Draw calls from now on count towards layer, one of the LAYER_ constants. */
+    void setLayer(int layer) {
+        mLayer = layer;
+    }
+
+    /**
+     * Returns the paint to repeat a call on the shadow with: paint, but opaque and with
+     * nothing that changes which pixels it touches.
+     */
+    Paint coverage(Paint paint) {
+        if(paint == null) {
+            return mBitmapCoverage;
+        }
+        mCoverage.set(paint);
+        mCoverage.setShader(null);
+        mCoverage.setXfermode(null);
+        mCoverage.setColor(Color.BLACK);
+        return mCoverage;
+    }
+
+    /** Counts what the call just repeated on shadow touched, then clears the mask. */
+    void count(Canvas shadow) {
+        mLayerDraws[mLayer]++;
+        if(!shadow.getClipBounds(mClip) || !mClip.intersect(0, 0, mWidth, mHeight)) {
+            return;
+        }
+        int width = mClip.width();
+        int height = mClip.height();
+        mMask.getPixels(mMaskPixels, 0, width, mClip.left, mClip.top, width, height);
+        long pixels = 0;
+        for(int y=0;y<height;y++){
+            int row = (mClip.top + y) * mWidth + mClip.left;
+            for(int x=0;x<width;x++){
+                if(mMaskPixels[y*width + x] != 0) {
+                    mHeat[row + x]++;
+                    pixels++;
+                }
+            }
+        }
+        mLayerPixels[mLayer] += pixels;
+        mMask.eraseColor(Color.TRANSPARENT);
+    }
+
+    /** Starts counting a new frame from zero. */
+    void reset() {
+        for(int i=0;i<mHeat.length;i++){
+            mHeat[i] = 0;
+        }
+        for(int i=0;i<LAYER_COUNT;i++){
+            mLayerDraws[i] = 0;
+            mLayerPixels[i] = 0;
+        }
+        mLayer = LAYER_CLEAR;
+    }
+
+    /** Returns the counts as an image, in the same colors as the developer option. */
+    Bitmap createHeatmap() {
+        int[] colors = new int[mHeat.length];
+        for(int i=0;i<colors.length;i++){
+            colors[i] = HEAT_COLORS[Math.min(mHeat[i], HEAT_COLORS.length - 1)];
+        }
+        Bitmap heatmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        heatmap.setPixels(colors, 0, mWidth, 0, 0, mWidth, mHeight);
+        return heatmap;
+    }
+
+    /**
+     * Prints draw calls and pixels for each layer that drew anything, then the totals. The
+     * output only depends on what was drawn, so it can be diffed between builds.
+     */
+    void dump(PrintWriter pw, String title) {
+        long draws = 0;
+        long pixels = 0;
+        int maxHeat = 0;
+        int painted = 0;
+        for(int i=0;i<mHeat.length;i++){
+            maxHeat = Math.max(maxHeat, mHeat[i]);
+            if(mHeat[i] > 0) {
+                painted++;
+            }
+        }
+        double screenPixels = mHeat.length;
+        pw.println("  " + title);
+        pw.println("    layer          draws     pixels  x screen");
+        for(int i=0;i<LAYER_COUNT;i++){
+            if(mLayerDraws[i] == 0) {
+                continue;
+            }
+            draws += mLayerDraws[i];
+            pixels += mLayerPixels[i];
+            pw.printf("    %-12s %7d %10d %9.2f%n", LAYER_NAMES[i], mLayerDraws[i],
+                    mLayerPixels[i], mLayerPixels[i] / screenPixels);
+        }
+        pw.printf("    %-12s %7d %10d %9.2f  (%d of %d pixels painted, max %d times)%n",
+                "total", draws, pixels, pixels / screenPixels, painted, mHeat.length,
+                maxHeat);
+    }
+
+    void release() {
+        mMask.recycle();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import java.io.PrintWriter;
+
+/**
+ * Works out when the next visible change on the interactive face will happen, so that the
+ * update timer only wakes up when there is something new to draw.
+ *
+ * Each animated element is a ring whose end sweeps around a circle at a constant rate. The
+ * tip moves 2*PI*radius pixels per period, so the time for it to move far enough to be seen
+ * is period * minVisiblePx / (2*PI*radius). The digits only change on the minute boundary.
+ * The next wakeup is the earliest of these, but never sooner than the frame rate cap.
+ *
+ * When the earliest change is due within one cap interval, the wakeup goes on the next
+ * multiple of the cap on the wall clock instead, as it always did at a fixed rate, so frames
+ * stay evenly spaced and land on the second and minute boundaries. While the seconds ring
+ * is drawn that is every frame: its tip moves a visible step every few ms, far less than
+ * any cap, so the ring pins the rate to the cap. dump() says when that is happening.
+ */
+final class RedrawScheduler {
+    static final int ELEMENT_MINUTE_RING = 0;
+    static final int ELEMENT_SECONDS_RING = 1;
+    static final int ELEMENT_DIGITS = 2;
+    static final int ELEMENT_COUNT = 3;
+
+    private static final String[] ELEMENT_NAMES = {"minute ring", "seconds ring", "digits"};
+
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long SECOND_MS = 1000;
+
+    private long mMinDelayMs;
+
+    //Time, in ms, for the tip of each ring to move one visible step. 0 means "not drawn"
+    private double mMinuteRingStepMs;
+    private double mSecondsRingStepMs;
+    //False while FrameGovernor is too slow for the seconds ring, so it isn't drawn
+    private boolean mSecondsRingShown = true;
+
+    //Metrics
+    private long mWakeups;
+    private long mTotalDelayMs;
+    private long mLastDelayMs;
+    private final long[] mWinnerCounts = new long[ELEMENT_COUNT];
+
+    /**
+     * @param minDelayMs the shortest delay we will ever schedule, i.e. the frame rate cap
+     */
+    RedrawScheduler(long minDelayMs) {
+        mMinDelayMs = minDelayMs;
+    }
+
+    /** Changes the frame rate cap, e.g. for FrameGovernor. */
+    void setMinDelayMs(long minDelayMs) {
+        mMinDelayMs = minDelayMs;
+    }
+
+    /** Leaves the seconds ring out of the schedule while it isn't drawn. */
+    void setSecondsRingShown(boolean shown) {
+        mSecondsRingShown = shown;
+    }
+
+    /**
+     * Sets the size of the rings, in pixels. minVisiblePx is how far the tip of a ring needs
+     * to move before the change is worth a frame. One dp (the display density in pixels, but
+     * at least one physical pixel) is a good choice.
+     */
+    void setGeometry(float minuteRingRadiusPx, float secondsRingRadiusPx, float minVisiblePx) {
+        mMinuteRingStepMs = stepMs(MINUTE_MS, minuteRingRadiusPx, minVisiblePx);
+        mSecondsRingStepMs = stepMs(SECOND_MS, secondsRingRadiusPx, minVisiblePx);
+    }
+
+    private static double stepMs(long periodMs, float radiusPx, float minVisiblePx) {
+        if(radiusPx <= 0) {
+            return 0;
+        }
+        return periodMs * Math.max(1.0f, minVisiblePx) / (2.0 * Math.PI * radiusPx);
+    }
+
+    /**
+     * Returns how long to wait, from nowMs (wall clock), until the next frame. Also records
+     * the result in the metrics.
+     */
+    long nextDelayMs(long nowMs) {
+        long minuteMs = nowMs % MINUTE_MS;
+        long secondMs = nowMs % SECOND_MS;
+
+        long best = MINUTE_MS - minuteMs;
+        int winner = ELEMENT_DIGITS;
+
+        long minuteRing = untilNextStep(minuteMs, mMinuteRingStepMs);
+        if(minuteRing < best) {
+            best = minuteRing;
+            winner = ELEMENT_MINUTE_RING;
+        }
+        long secondsRing = untilNextStep(secondMs, mSecondsRingShown ? mSecondsRingStepMs : 0);
+        if(secondsRing < best) {
+            best = secondsRing;
+            winner = ELEMENT_SECONDS_RING;
+        }
+
+        long delay = best > mMinDelayMs ? best : mMinDelayMs - nowMs % mMinDelayMs;
+        mWakeups++;
+        mTotalDelayMs += delay;
+        mLastDelayMs = delay;
+        mWinnerCounts[winner]++;
+        return delay;
+    }
+
+    private static long untilNextStep(long phaseMs, double stepMs) {
+        if(stepMs <= 0) {
+            return Long.MAX_VALUE;
+        }
+        double next = (Math.floor(phaseMs / stepMs) + 1) * stepMs;
+        return Math.max(1, (long)Math.ceil(next - phaseMs));
+    }
+
+    long getWakeups() {
+        return mWakeups;
+    }
+
+    long getLastDelayMs() {
+        return mLastDelayMs;
+    }
+
+    /** Average scheduled delay, in ms, over all wakeups so far. */
+    double getAverageDelayMs() {
+        return mWakeups == 0 ? 0 : (double)mTotalDelayMs / mWakeups;
+    }
+
+    /** How many wakeups were scheduled because of the given ELEMENT_* */
+    long getWinnerCount(int element) {
+        return mWinnerCounts[element];
+    }
+
+    void resetMetrics() {
+        mWakeups = 0;
+        mTotalDelayMs = 0;
+        mLastDelayMs = 0;
+        for(int i=0;i<ELEMENT_COUNT;i++){
+            mWinnerCounts[i] = 0;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Redraw scheduler:");
+        pw.printf("  step ms: minute ring %.2f, seconds ring %.2f%s, cap %d%n",
+                mMinuteRingStepMs, mSecondsRingStepMs, mSecondsRingShown ? "" : " (hidden)",
+                mMinDelayMs);
+        if(mSecondsRingShown && mSecondsRingStepMs > 0 && mSecondsRingStepMs < mMinDelayMs) {
+            pw.println("  the seconds ring moves faster than the cap, so it pins the rate to it");
+        }
+        double avg = getAverageDelayMs();
+        pw.printf("  wakeups %d, last delay %d ms, average delay %.1f ms (%.1f FPS)%n",
+                mWakeups, mLastDelayMs, avg, avg > 0 ? 1000.0 / avg : 0.0);
+        for(int i=0;i<ELEMENT_COUNT;i++){
+            pw.printf("  woken by %s: %d%n", ELEMENT_NAMES[i], mWinnerCounts[i]);
+        }
+    }
+}
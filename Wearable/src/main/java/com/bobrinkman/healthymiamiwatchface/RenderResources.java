@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Bitmap;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Render resources shared by every engine in the service: gradients, paths, the static
+ * layer and glyph atlases. Each is identified by a kind and the (size, scale, draw mode) it
+ * was made for, and is treated as immutable once made, so engines that want the same one
+ * share it instead of making their own. Each is reference counted.
+ *
+ * When the last engine releases a resource it isn't destroyed straight away, but kept
+ * idle in case it is wanted again, e.g. the interactive static layer while the watch is
+ * in ambient mode. Idle resources are destroyed oldest first once mBudget goes over its
+ * cap, or there are more than MAX_IDLE of them. Destroying a Bitmap means recycling it
+ * through mBudget.
+ *
+ * Engines don't call acquire() and release() directly. Each holds a Slot per resource it
+ * uses, which keeps whatever the engine currently needs and swaps it when the key changes.
+ * All methods are synchronized. In practice everything happens on the main thread.
+ */
+final class RenderResources {
+    static final int KIND_INTERACTIVE_GRADIENT = 0;
+    static final int KIND_AMBIENT_GRADIENT = 1;
+    static final int KIND_M_PATH = 2;
+    static final int KIND_SHOE_PATH = 3;
+    static final int KIND_STATIC_LAYER = 4;
+    static final int KIND_HOUR_ATLAS = 5;
+    static final int KIND_MINUTE_ATLAS = 6;
+    static final int KIND_STEP_ATLAS = 7;
+
+    private static final String[] KIND_NAMES = {
+            "interactive gradient", "ambient gradient", "M path", "shoe path", "static layer",
+            "hour atlas", "minute atlas", "step atlas"
+    };
+
+    //Paths and shaders aren't counted by the budget, so bound how many are kept idle too
+    private static final int MAX_IDLE = 8;
+
+    /** What a resource is for. Fields that don't matter for a kind should be 0. */
+    static final class Key {
+        final int kind;
+        final int width;
+        final int height;
+        final float uiScale;
+        final int drawMode;
+
+        Key(int kind, int width, int height, float uiScale, int drawMode) {
+            this.kind = kind;
+            this.width = width;
+            this.height = height;
+            this.uiScale = uiScale;
+            this.drawMode = drawMode;
+        }
+
+        boolean matches(int kind, int width, int height, float uiScale, int drawMode) {
+            return this.kind == kind && this.width == width && this.height == height
+                    && this.uiScale == uiScale && this.drawMode == drawMode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return matches(other.kind, other.width, other.height, other.uiScale, other.drawMode);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = kind;
+            h = 31*h + width;
+            h = 31*h + height;
+            h = 31*h + Float.floatToIntBits(uiScale);
+            h = 31*h + drawMode;
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            return KIND_NAMES[kind] + " " + width + "x" + height + " scale " + uiScale
+                    + " mode " + drawMode;
+        }
+    }
+
+    /** Makes, and optionally cleans up, one kind of resource. */
+    abstract static class Factory<T> {
+        abstract T create(Key key);
+
+        /** Called when the resource is dropped. Bitmaps are recycled regardless. */
+        void destroy(T value) {
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final Factory<?> factory;
+        int refs;
+
+        Entry(Object value, Factory<?> factory) {
+            this.value = value;
+            this.factory = factory;
+        }
+    }
+
+    /**
+     * One engine's hold on one resource. get() returns the resource for a key, releasing
+     * the one held before if the key changed. Comparing keys doesn't allocate, so get() is
+     * fine to call every frame.
+     */
+    static final class Slot<T> {
+        private final RenderResources mResources;
+        private final Factory<T> mFactory;
+        private Key mKey;
+        private T mValue;
+
+        Slot(RenderResources resources, Factory<T> factory) {
+            mResources = resources;
+            mFactory = factory;
+        }
+
+        T get(int kind, int width, int height, float uiScale, int drawMode) {
+            if(mKey != null && mKey.matches(kind, width, height, uiScale, drawMode)) {
+                return mValue;
+            }
+            release();
+            Key key = new Key(kind, width, height, uiScale, drawMode);
+            mValue = mResources.acquire(key, mFactory);
+            mKey = key;
+            return mValue;
+        }
+
+        /** What get() last returned, or null. */
+        T peek() {
+            return mValue;
+        }
+
+        void release() {
+            if(mKey != null) {
+                mResources.release(mKey);
+                mKey = null;
+                mValue = null;
+            }
+        }
+    }
+
+    private final BitmapBudget mBudget;
+    //Everything, in use or idle
+    private final Map<Key, Entry> mEntries = new HashMap<>();
+    //The entries nobody holds, least recently released first
+    private final LinkedHashMap<Key, Entry> mIdle = new LinkedHashMap<>();
+    private long mCreated;
+    private long mShared;
+    private long mRevived;
+    private long mDestroyed;
+
+    RenderResources(BitmapBudget budget) {
+        mBudget = budget;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized <T> T acquire(Key key, Factory<T> factory) {
+        Entry entry = mEntries.get(key);
+        if(entry == null) {
+            entry = new Entry(factory.create(key), factory);
+            mEntries.put(key, entry);
+            mCreated++;
+            trimToBudget();
+        } else if(entry.refs == 0) {
+            mIdle.remove(key);
+            mRevived++;
+        } else {
+            mShared++;
+        }
+        entry.refs++;
+        return (T)entry.value;
+    }
+
+    synchronized void release(Key key) {
+        Entry entry = mEntries.get(key);
+        if(entry == null) {
+            return;
+        }
+        entry.refs--;
+        if(entry.refs > 0) {
+            return;
+        }
+        mIdle.put(key, entry);
+        trimToBudget();
+    }
+
+    /** Destroys every idle resource, e.g. when memory is short. */
+    synchronized void trimIdle() {
+        evictIdle(true);
+    }
+
+    private void trimToBudget() {
+        evictIdle(false);
+    }
+
+    private void evictIdle(boolean all) {
+        Iterator<Map.Entry<Key, Entry>> it = mIdle.entrySet().iterator();
+        while(it.hasNext() && (all || mIdle.size() > MAX_IDLE || mBudget.isOverCap())) {
+            Map.Entry<Key, Entry> e = it.next();
+            it.remove();
+            Key key = e.getKey();
+            Entry entry = e.getValue();
+            long bytes = getByteCount(entry.value);
+            if(bytes > 0) {
+                mBudget.countEviction(getCategory(key.kind), bytes);
+            }
+            destroy(key, entry);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void destroy(Key key, Entry entry) {
+        mEntries.remove(key);
+        mDestroyed++;
+        ((Factory<Object>)entry.factory).destroy(entry.value);
+        if(entry.value instanceof Bitmap) {
+            mBudget.recycle(getCategory(key.kind), (Bitmap)entry.value);
+        }
+    }
+
+    private static int getCategory(int kind) {
+        return kind == KIND_STATIC_LAYER ?
+                BitmapBudget.CATEGORY_STATIC_LAYER : BitmapBudget.CATEGORY_GLYPH_ATLAS;
+    }
+
+    private static long getByteCount(Object value) {
+        if(value instanceof Bitmap) {
+            return ((Bitmap)value).getByteCount();
+        } else if(value instanceof GlyphAtlas) {
+            return ((GlyphAtlas)value).getByteCount();
+        }
+        return 0;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Render resources: " + mEntries.size() + " live (" + mIdle.size()
+                + " idle), created " + mCreated + ", shared " + mShared + ", revived "
+                + mRevived + ", destroyed " + mDestroyed);
+        for(Map.Entry<Key, Entry> e : mEntries.entrySet()) {
+            long bytes = getByteCount(e.getValue().value);
+            pw.println("  " + e.getKey() + ": " + e.getValue().refs + " refs"
+                    + (bytes > 0 ? ", " + bytes + " bytes" : ""));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import com.bobrinkman.healthymiamiwatchface.core.FaceClock;
+
+/**
+ * What a debug harness needs to drive an engine's drawing: scripted frame inputs, a fake
+ * screen shape and ambient properties, and a look at the offscreen canvases. The engine
+ * implements it so the harness doesn't need to see the engine itself. Only called on the
+ * main thread, and nothing in a release build calls it.
+ */
+interface ScriptableFace {
+    /**
+     * Draws from inputs from now on, or from the clock and sensors again if inputs is null,
+     * and sets the paints up for its ambient state.
+     */
+    void setFrameInputs(FrameInputs inputs);
+
+    boolean isRound();
+
+    int getChinSize();
+
+    boolean isLowBitAmbient();
+
+    boolean hasBurnInProtection();
+
+    /** Overrides what the system said about the screen, until it says something new. */
+    void setDisplay(boolean isRound, int chinSize, boolean lowBitAmbient,
+                    boolean burnInProtection);
+
+    FaceClock getClock();
+
+    FrameStats getFrameStats();
+
+    void onDraw(Canvas canvas, Rect bounds);
+
+    /** What the engine does while idle after an ambient frame. */
+    void prepareAmbientFrame();
+
+    /** Draw calls on the engine's frame buffer and static layer canvases so far. */
+    long getOffscreenDrawCalls();
+
+    /** Counts what the engine draws in analyzer, or stops counting if it is null. */
+    void setOverdrawAnalyzer(OverdrawAnalyzer analyzer);
+
+    /**
+     * Draws the static layer for the current layout and draw mode into layer, which is
+     * not kept, and has the next frame redraw everything. Needs a frame drawn first.
+     */
+    void drawStaticLayer(Bitmap layer);
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bobrinkman.healthymiamiwatchface;
+
+import java.io.PrintWriter;
+
+/**
+ * How long one engine took to get going: the time spent in each stage of startup, when
+ * the first frame was drawn, and when the first frame with the real fonts and stipple was.
+ *
+ * A cold start is one where the engine had to wait for the shared resources to load in
+ * the background. A warm start found them already loaded by an earlier engine. Only
+ * touched on the main thread.
+ */
+final class StartupTimer {
+    static final int STAGE_STYLE = 0;
+    static final int STAGE_STEP_STATE = 1;
+    static final int STAGE_SENSOR = 2;
+    static final int STAGE_FIRST_FRAME = 3;
+    static final int STAGE_SWAP_IN = 4;
+    static final int STAGE_WARM_UP = 5;
+    static final int STAGE_COUNT = 6;
+
+    private static final String[] STAGE_NAMES = {
+            "style+paints", "step state", "sensor", "first frame", "swap in resources",
+            "glyph atlases"
+    };
+
+    private final long[] mStageNs = new long[STAGE_COUNT];
+    private long mCreateStartNs;
+    private boolean mCold;
+    //Time from begin() to the end of each milestone frame, or -1 until it happens
+    private long mFirstFrameNs = -1;
+    private long mCompleteFrameNs = -1;
+
+    /** Call at the very start of Engine.onCreate(). */
+    void begin(boolean cold) {
+        mCreateStartNs = System.nanoTime();
+        mCold = cold;
+    }
+
+    /**
+     * Adds the time since startNs to stage, and returns the current time so that it can be
+     * used as the start of the next stage.
+     */
+    long record(int stage, long startNs) {
+        long now = System.nanoTime();
+        mStageNs[stage] += now - startNs;
+        return now;
+    }
+
+    /**
+     * Call at the end of each frame until isComplete(). complete says whether the frame
+     * was drawn with the real resources, rather than the fallbacks.
+     */
+    void frameDrawn(long frameStartNs, boolean complete) {
+        long now = System.nanoTime();
+        if(mFirstFrameNs < 0) {
+            mFirstFrameNs = now - mCreateStartNs;
+            mStageNs[STAGE_FIRST_FRAME] = now - frameStartNs;
+        }
+        if(complete) {
+            mCompleteFrameNs = now - mCreateStartNs;
+        }
+    }
+
+    /** Whether a frame with the real resources has been drawn. */
+    boolean isComplete() {
+        return mCompleteFrameNs >= 0;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.printf("  startup (%s): first frame at %s, complete frame at %s%n",
+                mCold ? "cold" : "warm", formatMs(mFirstFrameNs), formatMs(mCompleteFrameNs));
+        pw.print("   ");
+        for(int s=0;s<STAGE_COUNT;s++){
+            pw.printf(" %s %.2f ms%s", STAGE_NAMES[s], mStageNs[s] / 1000000.0,
+                    s == STAGE_COUNT-1 ? "" : ",");
+        }
+        pw.println();
+    }
+
+    private static String formatMs(long ns) {
+        return ns < 0 ? "-" : String.format("%.1f ms", ns / 1000000.0);
+    }
+}
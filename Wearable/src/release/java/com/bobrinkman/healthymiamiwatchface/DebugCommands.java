@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2015 Bo Brinkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bobrinkman.healthymiamiwatchface;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+/**
+ * Stands in for the debug build's dump() commands, which release builds don't have.
+ */
+final class DebugCommands {
+    private DebugCommands() {
+    }
+
+    static void startRenderHarness(ScriptableFace face, File filesDir, String[] args,
+                                   PrintWriter pw) {
+        pw.println("The render harness is only in debug builds");
+    }
+}